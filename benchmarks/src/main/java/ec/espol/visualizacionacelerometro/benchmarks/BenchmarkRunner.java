@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.benchmarks;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Entry point of benchmarks.jar. Runs JMH with the given arguments, adding by default
+ * the GC profiler (allocation rate) and a JSON results file named benchmarks-yyyyMMdd-HHmmss.json,
+ * so results of different releases can be compared.
+ * @author Federico Domínguez
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        ArrayList<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+
+        if(!jmhArgs.contains("-rf")){
+            jmhArgs.add("-rf");
+            jmhArgs.add("json");
+        }
+        if(!jmhArgs.contains("-rff")){
+            jmhArgs.add("-rff");
+            jmhArgs.add("benchmarks-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        }
+        if(!jmhArgs.contains("-prof")){
+            jmhArgs.add("-prof");
+            jmhArgs.add("gc");
+        }
+
+        org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+    }
+
+}
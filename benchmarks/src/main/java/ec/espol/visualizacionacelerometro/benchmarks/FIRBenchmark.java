@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.benchmarks;
+
+import ec.espol.visualizacionacelerometro.data.FIRFilter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of FIR filtering, one sample at a time (direct form) and by blocks
+ * (direct form or FFT overlap-save, chosen by the filter). Results are samples per microsecond.
+ * @author Federico Domínguez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FIRBenchmark {
+
+    //Samples filtered in each invocation, the pipeline drain batch
+    public static final int BLOCK = 512;
+
+    @Param({"15", "255", "1023"})
+    public int taps;
+
+    private double[] input;
+    private double[] output;
+    private FIRFilter fir;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(42);
+        input = new double[BLOCK];
+        for(int i = 0; i < BLOCK; i++)
+            input[i] = Math.sin(i * 0.05) + 0.1 * random.nextGaussian();
+        output = new double[BLOCK];
+        fir = new FIRFilter(FIRFilter.lowPass(taps, 1000, 50));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] perSample(){
+        for(int i = 0; i < BLOCK; i++)
+            output[i] = fir.filter(input[i]);
+        return output;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] block(){
+        fir.filter(input, output, 0, BLOCK);
+        return output;
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.benchmarks;
+
+import ec.espol.visualizacionacelerometro.data.DataFilterInterface;
+import ec.espol.visualizacionacelerometro.data.BiquadFilter;
+import ec.espol.visualizacionacelerometro.data.EMAFilter;
+import ec.espol.visualizacionacelerometro.data.FilterChain;
+import ec.espol.visualizacionacelerometro.data.KalmanFilter;
+import ec.espol.visualizacionacelerometro.data.MedianFilter;
+import ec.espol.visualizacionacelerometro.data.TriaxialEMAFilter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the DataFilterInterface implementations, one sample at a time and with the block API,
+ * and of the fused three axis filter. Results are samples (of one axis) per microsecond.
+ * @author Federico Domínguez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark {
+
+    //Samples filtered in each invocation, the pipeline drain batch
+    public static final int BLOCK = 512;
+
+    private double[] input;
+    private double[] output;
+    private double[] x;
+    private double[] y;
+    private double[] z;
+    private DataFilterInterface ema;
+    private DataFilterInterface emaX;
+    private DataFilterInterface emaY;
+    private DataFilterInterface emaZ;
+    private TriaxialEMAFilter triaxial;
+    private DataFilterInterface biquad;
+    private DataFilterInterface median;
+    private DataFilterInterface kalman;
+    private DataFilterInterface chain;
+
+    //Window of the median filter
+    @Param({"5", "31"})
+    public int medianLength;
+
+    @Setup
+    public void setup(){
+        Random random = new Random(42);
+        input = new double[BLOCK];
+        for(int i = 0; i < BLOCK; i++)
+            input[i] = Math.sin(i * 0.05) + 0.1 * random.nextGaussian();
+        output = new double[BLOCK];
+        x = input.clone();
+        y = input.clone();
+        z = input.clone();
+        ema = new EMAFilter(0.5);
+        emaX = new EMAFilter(0.5);
+        emaY = new EMAFilter(0.5);
+        emaZ = new EMAFilter(0.5);
+        triaxial = new TriaxialEMAFilter(0.5);
+        biquad = new BiquadFilter(BiquadFilter.RESPONSE.LOW_PASS, 100, 20);
+        median = new MedianFilter(medianLength);
+        kalman = new KalmanFilter(0.01, 0.1);
+        chain = new FilterChain(FilterChain.createStages("highpass:0.5,median:" + medianLength + ",lowpass:20", 100));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double ema(){
+        return filterBlock(ema);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] emaBlock(){
+        ema.filter(input, output, 0, BLOCK);
+        return output;
+    }
+
+    /**
+     * Three separate filters, as the pipeline did before the fused filter.
+     */
+    @Benchmark
+    @OperationsPerInvocation(3 * BLOCK)
+    public double emaThreeAxes(){
+        return filterBlock(emaX) + filterBlock(emaY) + filterBlock(emaZ);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(3 * BLOCK)
+    public double[] triaxialEma(){
+        //Filtered in place, the signal just keeps being smoothed
+        triaxial.filter(x, y, z, 0, BLOCK);
+        return z;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] biquadBlock(){
+        biquad.filter(input, output, 0, BLOCK);
+        return output;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] medianBlock(){
+        median.filter(input, output, 0, BLOCK);
+        return output;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] kalmanBlock(){
+        kalman.filter(input, output, 0, BLOCK);
+        return output;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCK)
+    public double[] chainBlock(){
+        chain.filter(input, output, 0, BLOCK);
+        return output;
+    }
+
+    private double filterBlock(DataFilterInterface filter){
+        double last = 0;
+        for(int i = 0; i < BLOCK; i++)
+            last = filter.filter(input[i]);
+        return last;
+    }
+
+}
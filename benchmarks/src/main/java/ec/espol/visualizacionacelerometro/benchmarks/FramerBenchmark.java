@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.benchmarks;
+
+import ec.espol.visualizacionacelerometro.data.AccBinaryDecoder;
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import ec.espol.visualizacionacelerometro.data.LineFramer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the framing and decoding of a serial byte stream, as done by serialEvent().
+ * The stream is split in chunks of the given size, as returned by successive reads of the port.
+ * Results are samples per microsecond.
+ * @author Federico Domínguez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FramerBenchmark {
+
+    //Samples in the stream
+    public static final int SAMPLES = 4096;
+
+    //Bytes available on each read of the port
+    @Param({"64", "4096"})
+    public int chunkSize;
+
+    private byte[] ascii;
+    private byte[] binary;
+    private LineFramer framer;
+    private AccBinaryDecoder decoder;
+    private AccDataParser parser;
+    private double[] values;
+    private byte[] lineBuffer;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole){
+        this.blackhole = blackhole;
+        StringBuilder lines = new StringBuilder();
+        binary = new byte[SAMPLES * AccBinaryDecoder.FRAME_LENGTH];
+        for(int i = 0; i < SAMPLES; i++){
+            int x = (512 + i) % 1024, y = (300 + 7*i) % 1024, z = (700 + 3*i) % 1024;
+            lines.append(x).append('\t').append(y).append('\t').append(z).append('\n');
+            AccBinaryDecoder.encode(i, x, y, z, binary, i * AccBinaryDecoder.FRAME_LENGTH);
+        }
+        ascii = lines.toString().getBytes(StandardCharsets.US_ASCII);
+
+        parser = new AccDataParser();
+        values = new double[AccDataParser.AXES];
+        lineBuffer = new byte[LineFramer.DEFAULT_MAX_LINE];
+        framer = new LineFramer((buffer, offset, length) -> {
+            parser.parseRaw(buffer, offset, length, values);
+            blackhole.consume(values);
+        });
+        decoder = new AccBinaryDecoder((x, y, z) -> blackhole.consume(x + y + z));
+    }
+
+    /**
+     * Original serialEvent(): one read() call per byte, a String per line and the String parser.
+     */
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void legacyPerByte() throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(ascii);
+        int data;
+        int len = 0;
+        while((data = in.read()) > -1){
+            if(data == '\n'){
+                blackhole.consume(parser.parse(new String(lineBuffer, 0, len)));
+                len = 0;
+            }else
+                lineBuffer[len++] = (byte) data;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void lineFramer(){
+        for(int p = 0; p < ascii.length; p += chunkSize)
+            framer.feed(ascii, p, Math.min(chunkSize, ascii.length - p));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public void binaryDecoder(){
+        for(int p = 0; p < binary.length; p += chunkSize)
+            decoder.feed(binary, p, Math.min(chunkSize, binary.length - p));
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.benchmarks;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the line parsers: the original String based parse() and the byte range fast paths.
+ * @author Federico Domínguez
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    //Typical Arduino line and one with signs and fractions
+    @Param({"512\t498\t735", "-1.25\t0.5\t1023.0"})
+    public String line;
+
+    private AccDataParser parser;
+    private byte[] bytes;
+    private double[] values;
+
+    @Setup
+    public void setup(){
+        parser = new AccDataParser();
+        bytes = line.getBytes(StandardCharsets.US_ASCII);
+        values = new double[AccDataParser.AXES];
+    }
+
+    @Benchmark
+    public ArrayList<Double> parseString(){
+        return parser.parse(line);
+    }
+
+    @Benchmark
+    public double[] parseBytes(){
+        parser.parse(bytes, 0, bytes.length, values);
+        return values;
+    }
+
+    @Benchmark
+    public double[] parseRaw(){
+        parser.parseRaw(bytes, 0, bytes.length, values);
+        return values;
+    }
+
+}
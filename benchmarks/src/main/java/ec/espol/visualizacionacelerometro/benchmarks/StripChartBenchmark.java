@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.benchmarks;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import ec.espol.visualizacionacelerometro.data.SampleHistory;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reducing the sample history to one min/max pair per screen column, as done by the strip chart
+ * on every frame. The history holds samples at 1 kHz, the whole of it is decimated to a 1920 pixel wide chart.
+ * @author Federico Domínguez
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StripChartBenchmark {
+
+    private static final int COLUMNS = 1920;
+    private static final long PERIOD = 1000000;
+
+    @Param({"65536", "1048576"})
+    public int samples;
+
+    private SampleHistory history;
+    private double[][] colMin;
+    private double[][] colMax;
+
+    @Setup
+    public void setup(){
+        history = new SampleHistory("benchmark", samples);
+        SampleBatch batch = new SampleBatch(256, null);
+        for(int i = 0; i < samples; i++){
+            double t = i * 0.001;
+            batch.add(i * PERIOD, 0, 0, 0);
+            batch.x[batch.getLength() - 1] = Math.sin(2 * Math.PI * 2 * t);
+            batch.y[batch.getLength() - 1] = Math.cos(2 * Math.PI * 2 * t);
+            batch.z[batch.getLength() - 1] = 1;
+            if(batch.isFull()){
+                history.receiveBatch(batch);
+                batch.setLength(0);
+            }
+        }
+        history.receiveBatch(batch);
+        colMin = new double[AccDataParser.AXES][COLUMNS];
+        colMax = new double[AccDataParser.AXES][COLUMNS];
+    }
+
+    @Benchmark
+    public double[][] decimate(){
+        history.decimate(history.getOldestTime(), history.getLatestTime(), COLUMNS, colMin, colMax);
+        return colMax;
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.GUI;
+
+import java.awt.Color;
+import org.math.plot.Plot3DPanel;
+import org.math.plot.plots.LinePlot;
+
+/**
+ * 3D plot of the acceleration vector and its three axis components.
+ * Does not depend on the main frame, so it can also be used headless (benchmarks).
+ * @author Federico Domínguez
+ */
+public class OrientationPlot extends Plot3DPanel {
+    
+    private final LinePlot xLine;
+    private final LinePlot yLine;
+    private final LinePlot zLine;
+    private final LinePlot xyzLine;
+    
+    //Segments from the origin of each line, updated in place (LinePlot keeps a reference, not a copy)
+    private final double[][] xData;
+    private final double[][] yData;
+    private final double[][] zData;
+    private final double[][] xyzData;
+    
+    /**
+     * Creates the three line plots, colors them and sets the bounds.
+     * @param maxAxis Maximum +/- value for all three axis.
+     */
+    public OrientationPlot(double maxAxis) {
+        setAxisLabel(0, "X [g]");
+        setAxisLabel(1, "Y [g]");
+        setAxisLabel(2, "Z [g]");
+        
+        //All lines start and end at the origin
+        xData = new double[2][3];
+        yData = new double[2][3];
+        zData = new double[2][3];
+        xyzData = new double[2][3];
+        
+        xLine = new LinePlot("X", Color.blue, xData);
+        yLine = new LinePlot("Y", Color.blue, yData);
+        zLine = new LinePlot("Z", Color.blue, zData);
+        xyzLine = new LinePlot("XYZ", Color.red, xyzData);
+        addPlot(xLine);
+        addPlot(yLine);
+        addPlot(zLine);
+        addPlot(xyzLine);
+        setFixedBounds(0, -1*maxAxis, maxAxis);
+        setFixedBounds(1, -1*maxAxis, maxAxis);
+        setFixedBounds(2, -1*maxAxis, maxAxis);
+    }
+    
+    /**
+     * Draws the three dimensional axes from the serial port data.
+     * Only the end points of the lines change, nothing is allocated.
+     * All values are in g units. 1 g = 9.81 m/s^2
+     * @param x x-axis acceleration value.
+     * @param y y-axis acceleration value.
+     * @param z z-axis acceleration value.
+     */
+    public void drawXYZData(double x, double y, double z){
+        xData[1][0] = x;
+        yData[1][1] = y;
+        zData[1][2] = z;
+        
+        xyzData[1][0] = x;
+        xyzData[1][1] = y;
+        xyzData[1][2] = z;
+        
+        xLine.setData(xData);
+        yLine.setData(yData);
+        zLine.setData(zData);
+        xyzLine.setData(xyzData);
+        repaint();
+    }
+    
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.GUI;
+
+import ec.espol.visualizacionacelerometro.storage.CompressedRecordingFormat;
+import ec.espol.visualizacionacelerometro.storage.RecordingBrowser;
+import ec.espol.visualizacionacelerometro.storage.RecordingFormat;
+import java.awt.BorderLayout;
+import java.awt.FlowLayout;
+import java.io.File;
+import java.io.IOException;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.filechooser.FileNameExtensionFilter;
+
+/**
+ * Browses a recorded session in a strip chart. The session is opened in a background thread,
+ * since the segments recorded without index (or left open by a crash) are indexed first.
+ * @author Federico Domínguez
+ */
+public class RecordingPanel extends JPanel {
+
+    private final StripChartPanel chart;
+    private final JLabel infoLabel;
+    private final JButton openButton;
+    private File directory;
+    private RecordingBrowser recording;
+
+    /**
+     * @param maxAxis Maximum +/- value shown, in g units.
+     */
+    public RecordingPanel(double maxAxis){
+        super(new BorderLayout());
+        chart = new StripChartPanel(maxAxis);
+        infoLabel = new JLabel("Rueda: zoom, arrastrar: mover");
+        openButton = new JButton("Abrir grabación...");
+        openButton.addActionListener(e -> chooseRecording());
+
+        JPanel bar = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        bar.add(openButton);
+        bar.add(infoLabel);
+        add(bar, BorderLayout.NORTH);
+        add(chart, BorderLayout.CENTER);
+    }
+
+    /**
+     * @param directory Directory shown first when choosing a recording, null for the user's default.
+     */
+    public void setDirectory(File directory){
+        this.directory = directory;
+    }
+
+    private void chooseRecording(){
+        JFileChooser chooser = new JFileChooser(directory);
+        chooser.setFileFilter(new FileNameExtensionFilter("Grabaciones",
+                RecordingFormat.FILE_EXTENSION.substring(1), CompressedRecordingFormat.FILE_EXTENSION.substring(1)));
+        if(chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION)
+            open(chooser.getSelectedFile());
+    }
+
+    /**
+     * Opens a session in the background and shows it. Must be called from the EDT.
+     * @param file Any segment file of the session, the following segments are opened too.
+     */
+    public void open(File file){
+        openButton.setEnabled(false);
+        infoLabel.setText("Abriendo " + file.getName() + "...");
+
+        Thread opener = new Thread(() -> {
+            RecordingBrowser opened = null;
+            String error = null;
+            try{
+                opened = new RecordingBrowser(file);
+            }catch(IOException e){
+                System.out.println("Error opening recording: "+e.getLocalizedMessage());
+                error = e.getLocalizedMessage();
+            }
+            RecordingBrowser result = opened;
+            String message = error;
+            java.awt.EventQueue.invokeLater(() -> show(result, message));
+        }, "Recording opener");
+        opener.setDaemon(true);
+        opener.start();
+    }
+
+    private void show(RecordingBrowser opened, String error){
+        openButton.setEnabled(true);
+        if(opened == null){
+            infoLabel.setText("Error: " + error);
+            return;
+        }
+
+        closeRecording();
+        recording = opened;
+        chart.setRecording(opened);
+        infoLabel.setText(String.format("%s: %d muestras, %d segmentos. Rueda: zoom, arrastrar: mover",
+                opened.getFile().getName(), opened.getCount(), opened.getSegmentCount()));
+    }
+
+    /**
+     * Closes the recording shown, if any.
+     */
+    public void closeRecording(){
+        if(recording == null)
+            return;
+        chart.setRecording(null);
+        try{
+            recording.close();
+        }catch(IOException e){
+            System.out.println("Error closing recording: "+e.getLocalizedMessage());
+        }
+        recording = null;
+    }
+
+}
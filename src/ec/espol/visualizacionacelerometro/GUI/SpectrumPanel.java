@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.GUI;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import ec.espol.visualizacionacelerometro.data.SpectrumAnalyzer;
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import javax.swing.JPanel;
+
+/**
+ * Magnitude spectrum of the three axes, in dB relative to 1 g, from 0 to half the sample rate.
+ * The spectrum is copied from a {@link SpectrumAnalyzer} at display rate into arrays that are
+ * only reallocated when the number of bins changes.
+ * @author Federico Domínguez
+ */
+public class SpectrumPanel extends JPanel {
+
+    //Vertical range in dB
+    public static final double MIN_DB = -80;
+    public static final double MAX_DB = 10;
+
+    private static final Color[] AXIS_COLORS = {Color.red, new Color(0, 150, 0), Color.blue};
+    private static final String[] AXIS_NAMES = {"X", "Y", "Z"};
+    private static final int MARGIN = 40;
+
+    private double[][] spectrum;
+    private int[] xPoints;
+    private int[] yPoints;
+    private double sampleRate;
+    private boolean hasData;
+
+    public SpectrumPanel(){
+        setBackground(Color.white);
+        spectrum = new double[AccDataParser.AXES][0];
+        xPoints = new int[0];
+        yPoints = new int[0];
+    }
+
+    /**
+     * Copies the latest spectrum of the analyzer and repaints. Must be called from the EDT.
+     * @param analyzer Spectrum source, null to clear the panel.
+     */
+    public void update(SpectrumAnalyzer analyzer){
+        if(analyzer == null){
+            hasData = false;
+        }else{
+            if(spectrum[0].length != analyzer.getBinCount()){
+                spectrum = new double[AccDataParser.AXES][analyzer.getBinCount()];
+                xPoints = new int[analyzer.getBinCount()];
+                yPoints = new int[analyzer.getBinCount()];
+            }
+            sampleRate = analyzer.readSpectrum(spectrum);
+            hasData = true;
+        }
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2 = (Graphics2D) g;
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        int width = getWidth() - 2*MARGIN;
+        int height = getHeight() - 2*MARGIN;
+        if(width <= 0 || height <= 0)
+            return;
+        FontMetrics metrics = g2.getFontMetrics();
+
+        //Grid and dB labels
+        g2.setColor(Color.lightGray);
+        for(double db = MIN_DB; db <= MAX_DB; db += 10){
+            int y = toY(db, height);
+            g2.drawLine(MARGIN, y, MARGIN + width, y);
+            g2.drawString(String.valueOf((int) db), 2, y + metrics.getAscent()/2);
+        }
+        g2.setColor(Color.black);
+        g2.drawRect(MARGIN, MARGIN, width, height);
+        g2.drawString("dB (g)", 2, MARGIN - 10);
+
+        if(!hasData || sampleRate <= 0){
+            g2.drawString("Sin datos", MARGIN + width/2 - metrics.stringWidth("Sin datos")/2, MARGIN + height/2);
+            return;
+        }
+
+        //Frequency labels
+        double nyquist = sampleRate/2;
+        for(int i = 0; i <= 4; i++){
+            String label = String.format("%.0f Hz", nyquist*i/4);
+            int x = MARGIN + width*i/4;
+            g2.drawString(label, x - metrics.stringWidth(label)/2, MARGIN + height + metrics.getAscent() + 4);
+        }
+
+        //One curve per axis, the DC bin is left out (the mean is removed by the analyzer)
+        int bins = spectrum[0].length;
+        for(int axis = 0; axis < AccDataParser.AXES; axis++){
+            for(int k = 1; k < bins; k++){
+                xPoints[k - 1] = MARGIN + (int) ((long) width*k/(bins - 1));
+                double db = 20*Math.log10(Math.max(spectrum[axis][k], 1e-12));
+                yPoints[k - 1] = toY(Math.max(MIN_DB, Math.min(MAX_DB, db)), height);
+            }
+            g2.setColor(AXIS_COLORS[axis]);
+            g2.drawPolyline(xPoints, yPoints, bins - 1);
+            g2.drawString(AXIS_NAMES[axis], MARGIN + width - 60 + 20*axis, MARGIN - 10);
+        }
+    }
+
+    private int toY(double db, int height){
+        return MARGIN + (int) ((MAX_DB - db)/(MAX_DB - MIN_DB)*height);
+    }
+
+}
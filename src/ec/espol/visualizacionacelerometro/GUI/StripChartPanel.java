@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.GUI;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import ec.espol.visualizacionacelerometro.data.SampleHistory;
+import ec.espol.visualizacionacelerometro.data.SessionStore;
+import ec.espol.visualizacionacelerometro.data.SignalSummaryInterface;
+import ec.espol.visualizacionacelerometro.storage.RecordingBrowser;
+import java.awt.Color;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import javax.swing.JPanel;
+
+/**
+ * Scrolling chart of the filtered x,y,z values of a device over the last seconds or minutes.
+ * Each pixel column shows the minimum and maximum of the samples of its time slice, read from
+ * the {@link SampleHistory} pyramid, so painting costs the same for a hundred or millions of samples.
+ * The mouse wheel changes the time span shown, up to 10 minutes or all the samples of a {@link SessionStore}.
+ * The column arrays are only reallocated when the panel grows.
+ * A recorded session ({@link RecordingBrowser}) can be shown instead: the chart starts with the whole
+ * session, the wheel zooms around the pointer down to single samples and dragging moves in time.
+ * @author Federico Domínguez
+ */
+public class StripChartPanel extends JPanel {
+
+    //Time span shown, changed with the mouse wheel
+    public static final double DEFAULT_SPAN_SECONDS = 10;
+    public static final double MIN_SPAN_SECONDS = 1;
+    public static final double MAX_SPAN_SECONDS = 600;
+
+    //Shortest span of a recording, a few samples
+    public static final double MIN_BROWSE_SPAN_SECONDS = 0.01;
+
+    //Columns without samples are joined to the previous ones over shorter gaps
+    private static final long MAX_GAP_NANOS = 500000000L;
+
+    private static final Color[] AXIS_COLORS = {Color.red, new Color(0, 150, 0), Color.blue};
+    private static final String[] AXIS_NAMES = {"X", "Y", "Z"};
+    private static final int MARGIN = 40;
+
+    private final double maxAxis;
+    private SignalSummaryInterface history;
+    private double spanSeconds;
+
+    //Recording shown and right edge of the view, the live history always ends now
+    private RecordingBrowser recording;
+    private long viewEnd;
+    private int dragX;
+    private long dragEnd;
+
+    //Decimated columns, colMin[axis][column]
+    private double[][] colMin;
+    private double[][] colMax;
+
+    /**
+     * @param maxAxis Maximum +/- value shown, in g units.
+     */
+    public StripChartPanel(double maxAxis){
+        this.maxAxis = maxAxis;
+        spanSeconds = DEFAULT_SPAN_SECONDS;
+        colMin = new double[AccDataParser.AXES][0];
+        colMax = new double[AccDataParser.AXES][0];
+        setBackground(Color.white);
+
+        //Wheel up zooms in, down zooms out
+        addMouseWheelListener(e -> zoom(e));
+
+        //Dragging moves a recording in time
+        MouseAdapter drag = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                dragX = e.getX();
+                dragEnd = viewEnd;
+            }
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                int width = getWidth() - 2*MARGIN;
+                if(recording != null && width > 0){
+                    viewEnd = dragEnd - (long) ((e.getX() - dragX)*spanSeconds*1e9/width);
+                    clampView();
+                    repaint();
+                }
+            }
+        };
+        addMouseListener(drag);
+        addMouseMotionListener(drag);
+    }
+
+    private void zoom(MouseWheelEvent e){
+        double factor = e.getWheelRotation() > 0 ? 2 : 0.5;
+        if(recording == null){
+            //A store may hold hours
+            double max = MAX_SPAN_SECONDS;
+            if(history != null)
+                max = Math.max(max, (history.getLatestTime() - history.getOldestTime())/1e9);
+            spanSeconds = Math.max(MIN_SPAN_SECONDS, Math.min(max, spanSeconds*factor));
+        }else{
+            //The time under the pointer stays in place
+            int width = getWidth() - 2*MARGIN;
+            double right = width <= 0 ? 0 : Math.max(0, Math.min(1, (MARGIN + width - e.getX())/(double) width));
+            long pointer = viewEnd - (long) (right*spanSeconds*1e9);
+            spanSeconds = Math.max(MIN_BROWSE_SPAN_SECONDS, Math.min(getRecordingSeconds(), spanSeconds*factor));
+            viewEnd = pointer + (long) (right*spanSeconds*1e9);
+            clampView();
+        }
+        repaint();
+    }
+
+    /**
+     * Shows the history of another device. Must be called from the EDT.
+     * @param history History or store of the device, null to clear the chart.
+     */
+    public void setHistory(SignalSummaryInterface history){
+        this.history = history;
+        recording = null;
+        repaint();
+    }
+
+    /**
+     * Shows a recorded session, all of it at first. Must be called from the EDT.
+     * @param recording Recorded session, null to clear the chart.
+     */
+    public void setRecording(RecordingBrowser recording){
+        this.history = recording;
+        this.recording = recording;
+        if(recording != null){
+            spanSeconds = getRecordingSeconds();
+            viewEnd = recording.getLatestTime();
+        }else
+            spanSeconds = DEFAULT_SPAN_SECONDS;
+        repaint();
+    }
+
+    /**
+     * @return Duration of the recording shown, at least the shortest span.
+     */
+    private double getRecordingSeconds(){
+        return Math.max(MIN_BROWSE_SPAN_SECONDS, (recording.getLatestTime() - recording.getOldestTime())/1e9);
+    }
+
+    /**
+     * Keeps the view inside the recording.
+     */
+    private void clampView(){
+        long span = (long) (spanSeconds*1e9);
+        viewEnd = Math.min(recording.getLatestTime(), Math.max(recording.getOldestTime() + span, viewEnd));
+    }
+
+    public double getSpanSeconds(){
+        return spanSeconds;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2 = (Graphics2D) g;
+
+        int width = getWidth() - 2*MARGIN;
+        int height = getHeight() - 2*MARGIN;
+        if(width <= 0 || height <= 0)
+            return;
+        FontMetrics metrics = g2.getFontMetrics();
+
+        //Grid every 0.5 g and labels
+        g2.setColor(Color.lightGray);
+        for(double v = -Math.floor(maxAxis); v <= maxAxis; v += 0.5){
+            int y = toY(v, height);
+            g2.drawLine(MARGIN, y, MARGIN + width, y);
+            if(v == Math.rint(v))
+                g2.drawString(String.valueOf((int) v), 2, y + metrics.getAscent()/2);
+        }
+        g2.setColor(Color.black);
+        g2.drawRect(MARGIN, MARGIN, width, height);
+        g2.drawString("g", 2, MARGIN - 10);
+
+        //The live chart ends now, so it scrolls smoothly between samples
+        long to = recording == null ? System.nanoTime() : viewEnd;
+        long from = to - (long) (spanSeconds*1e9);
+
+        String left, right;
+        if(recording == null){
+            left = "-" + formatSpan(spanSeconds);
+            right = "0";
+        }else{
+            //Wall clock times of the edges, and the span in the middle
+            SimpleDateFormat clock = new SimpleDateFormat(spanSeconds < 10 ? "HH:mm:ss.SSS" : "HH:mm:ss");
+            left = clock.format(new Date(recording.toEpochMillis(from)));
+            right = clock.format(new Date(recording.toEpochMillis(to)));
+            String span = formatSpan(spanSeconds);
+            g2.drawString(span, MARGIN + width/2 - metrics.stringWidth(span)/2, MARGIN + height + metrics.getAscent() + 4);
+        }
+        g2.drawString(left, MARGIN, MARGIN + height + metrics.getAscent() + 4);
+        g2.drawString(right, MARGIN + width - metrics.stringWidth(right), MARGIN + height + metrics.getAscent() + 4);
+
+        if(history == null || history.getCount() == 0){
+            g2.drawString("Sin datos", MARGIN + width/2 - metrics.stringWidth("Sin datos")/2, MARGIN + height/2);
+            return;
+        }
+
+        if(colMin[0].length < width){
+            colMin = new double[AccDataParser.AXES][width];
+            colMax = new double[AccDataParser.AXES][width];
+        }
+
+        history.decimate(from, to, width, colMin, colMax);
+        int maxGap = (int) Math.min(width, MAX_GAP_NANOS*width/((to - from) + 1));
+
+        for(int axis = 0; axis < AccDataParser.AXES; axis++){
+            g2.setColor(AXIS_COLORS[axis]);
+            double[] lo = colMin[axis];
+            double[] hi = colMax[axis];
+            int previousTop = 0, previousBottom = 0;
+            int previous = -1;
+
+            for(int c = 0; c < width; c++){
+                if(Double.isNaN(lo[c]))
+                    continue;
+                int top = toY(Math.min(hi[c], maxAxis), height);
+                int bottom = toY(Math.max(lo[c], -maxAxis), height);
+
+                //Joins the column to the previous one so the trace has no gaps,
+                //with a line when zoomed in further than the samples
+                if(previous == c - 1){
+                    g2.drawLine(MARGIN + c, Math.min(top, previousBottom), MARGIN + c, Math.max(bottom, previousTop));
+                }else{
+                    if(previous >= 0 && c - previous <= maxGap)
+                        g2.drawLine(MARGIN + previous, (previousTop + previousBottom)/2, MARGIN + c, (top + bottom)/2);
+                    g2.drawLine(MARGIN + c, top, MARGIN + c, bottom);
+                }
+                previousTop = top;
+                previousBottom = bottom;
+                previous = c;
+            }
+            g2.drawString(AXIS_NAMES[axis], MARGIN + width - 60 + 20*axis, MARGIN - 10);
+        }
+    }
+
+    private static String formatSpan(double seconds){
+        if(seconds >= 3600)
+            return String.format("%.1f h", seconds/3600);
+        if(seconds >= 60)
+            return String.format("%.0f min", seconds/60);
+        if(seconds >= 1)
+            return String.format("%.0f s", seconds);
+        return String.format("%.0f ms", seconds*1000);
+    }
+
+    private int toY(double v, int height){
+        return MARGIN + (int) ((maxAxis - v)/(2*maxAxis)*height);
+    }
+
+}
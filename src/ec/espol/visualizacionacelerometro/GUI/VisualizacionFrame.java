@@ -16,16 +16,19 @@
  */
 package ec.espol.visualizacionacelerometro.GUI;
 
+import ec.espol.visualizacionacelerometro.control.DeviceManager;
 import ec.espol.visualizacionacelerometro.control.VisualizacionAcelerometro;
 import ec.espol.visualizacionacelerometro.data.*;
-import java.awt.Color;
+import java.awt.Component;
 import java.awt.Image;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import javax.swing.DefaultListCellRenderer;
 import javax.swing.ImageIcon;
-import org.math.plot.Plot3DPanel;
-import org.math.plot.plots.LinePlot;
+import javax.swing.JList;
 
 /**
  * Main view frame class.
@@ -33,9 +36,16 @@ import org.math.plot.plots.LinePlot;
  */
 public class VisualizacionFrame extends javax.swing.JFrame {
     
-    private Plot3DPanel plot;
+    private OrientationPlot plot;
+    private SpectrumPanel spectrumPanel;
+    private StripChartPanel stripChart;
+    private RecordingPanel recordingPanel;
+    private javax.swing.JTabbedPane viewTabs;
+    private javax.swing.JTextField filtersText;
     public static final double MAX_AXIS = 1.5; //Maximum +/- value for all three axis. 
     public static final double INIT_ALPHA = 0.5; //Initial alpha value for EMA filter
+    public static final int DEFAULT_FRAME_RATE = 30; //Plot updates per second
+    public static final double STRIP_CHART_AXIS = 3; //Maximum +/- value of the strip chart
     
     private final ImageIcon iconConnOFF;
     private final ImageIcon iconConnON;
@@ -46,16 +56,16 @@ public class VisualizacionFrame extends javax.swing.JFrame {
     private final ImageIcon iconFrame32;
     private final ImageIcon iconFrame48;
     private final ArrayList<Image> icons;
-    private final AccDataParser accDataParser;
-    private final EMAFilter digitalFilterX;
-    private final EMAFilter digitalFilterY;
-    private final EMAFilter digitalFilterZ;
+    private final javax.swing.Timer renderTimer;
+    
+    //Latest state of each device, only used in the EDT
+    private final Map<String, DevicePipeline.DEVICE_STATUS> deviceStatus;
+    private final double[] xyz;
+    private long lastDrawnCount;
+    private long lastSpectrumCount;
+    private SignalSummaryInterface shownHistory;
     
     
-    private LinePlot xLine;
-    private LinePlot yLine;
-    private LinePlot zLine;
-    private LinePlot xyzLine;
 
     /**
      * Creates new form VisualizacionFrame
@@ -79,11 +89,30 @@ public class VisualizacionFrame extends javax.swing.JFrame {
         initComponents();
         init3DPlot();
         
-        accDataParser = new AccDataParser();
-
-        digitalFilterX = new EMAFilter(INIT_ALPHA);
-        digitalFilterY = new EMAFilter(INIT_ALPHA);
-        digitalFilterZ = new EMAFilter(INIT_ALPHA);
+        deviceStatus = new HashMap<>();
+        xyz = new double[AccDataParser.AXES];
+        
+        //Each port in the list shows the state of its device
+        puertosComboBox.setRenderer(new DeviceStatusRenderer());
+        puertosComboBox.addActionListener(e -> showSelectedDevice());
+        
+        //Networked sensors come and go, the list is scanned again every time it is opened
+        puertosComboBox.addPopupMenuListener(new javax.swing.event.PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(javax.swing.event.PopupMenuEvent e) {
+                setComLinks(VisualizacionAcelerometro.getDeviceManager().getComLinks());
+            }
+            @Override
+            public void popupMenuWillBecomeInvisible(javax.swing.event.PopupMenuEvent e) {
+            }
+            @Override
+            public void popupMenuCanceled(javax.swing.event.PopupMenuEvent e) {
+            }
+        });
+        
+        //Repaints at a fixed rate, independent of the rate at which samples arrive
+        renderTimer = new javax.swing.Timer(1000 / DEFAULT_FRAME_RATE, e -> renderDevices());
+        renderTimer.setCoalesce(true);
     }
     
     /** Returns an ImageIcon, or null if the path was invalid. */
@@ -98,38 +127,51 @@ public class VisualizacionFrame extends javax.swing.JFrame {
     }
     
     /**
-     * Initializes the 3D plot. Creates the three line plots, colors them and sets the bounds.
+     * Initializes the 3D plot, the strip chart, the spectrum and the recording browser, each one in its own tab,
+     * and the filter stages text box below them.
      */
     private void init3DPlot() {
-        double[][] X = new double[2][3];
+        plot = new OrientationPlot(MAX_AXIS);
+        stripChart = new StripChartPanel(STRIP_CHART_AXIS);
+        spectrumPanel = new SpectrumPanel();
+        recordingPanel = new RecordingPanel(STRIP_CHART_AXIS);
+        if(VisualizacionAcelerometro.getDeviceManager() != null)
+            recordingPanel.setDirectory(VisualizacionAcelerometro.getDeviceManager().getRecordingDirectory());
+        viewTabs = new javax.swing.JTabbedPane();
+        viewTabs.addTab("Orientación", plot);
+        viewTabs.addTab("Señal", stripChart);
+        viewTabs.addTab("Espectro", spectrumPanel);
+        viewTabs.addTab("Grabación", recordingPanel);
+        viewTabs.addChangeListener(e -> lastSpectrumCount = -1);
         
-        plot = new Plot3DPanel();
-
-        plot.setAxisLabel(0, "X [g]");
-        plot.setAxisLabel(1, "Y [g]");
-        plot.setAxisLabel(2, "Z [g]");
+        filtersText = new javax.swing.JTextField();
+        filtersText.setToolTipText("Etapas de filtro, por ejemplo highpass:0.5,median:5,lowpass:20");
+        if(VisualizacionAcelerometro.getDeviceManager() != null)
+            filtersText.setText(VisualizacionAcelerometro.getDeviceManager().getFilterSpec());
+        filtersText.addActionListener(e -> filtersTextActionPerformed());
+        javax.swing.JPanel filtersPanel = new javax.swing.JPanel(new java.awt.BorderLayout(5, 0));
+        filtersPanel.add(new javax.swing.JLabel("Filtros"), java.awt.BorderLayout.WEST);
+        filtersPanel.add(filtersText, java.awt.BorderLayout.CENTER);
         
-        X[0][0] = 0;
-        X[0][1] = 0;
-        X[0][2] = 0;
-
-        X[1][0] = 0;
-        X[1][1] = 0;
-        X[1][2] = 0;
-        
-        xLine = new LinePlot("X", Color.blue, X);
-        yLine = new LinePlot("Y", Color.blue, X);
-        zLine = new LinePlot("Z", Color.blue, X);
-        xyzLine = new LinePlot("XYZ", Color.red, X);
-        plot.addPlot(xLine);
-        plot.addPlot(yLine);
-        plot.addPlot(zLine);
-        plot.addPlot(xyzLine);
-        plot.setFixedBounds(0, -1*MAX_AXIS, MAX_AXIS);
-        plot.setFixedBounds(1, -1*MAX_AXIS, MAX_AXIS);
-        plot.setFixedBounds(2, -1*MAX_AXIS, MAX_AXIS);
+        javax.swing.JPanel content = new javax.swing.JPanel(new java.awt.BorderLayout());
+        content.add(viewTabs, java.awt.BorderLayout.CENTER);
+        content.add(filtersPanel, java.awt.BorderLayout.SOUTH);
+        visualizacionInternalFrame.setContentPane(content);
+    }
+    
+    /**
+     * Filter stages text box has been edited. Running devices keep their filter state when only
+     * the parameters change, an invalid description restores the current one.
+     */
+    private void filtersTextActionPerformed(){
+        DeviceManager deviceManager = VisualizacionAcelerometro.getDeviceManager();
         
-        visualizacionInternalFrame.setContentPane(plot);
+        try{
+            deviceManager.setFilters(filtersText.getText(), deviceManager.getFilterSampleRate());
+        }catch(IllegalArgumentException e){
+            System.out.println("Error in filter settings: "+e.getLocalizedMessage());
+            filtersText.setText(deviceManager.getFilterSpec());
+        }
     }
     
     /**
@@ -140,81 +182,121 @@ public class VisualizacionFrame extends javax.swing.JFrame {
      * @param z z-axis acceleration value.
      */
     public void drawXYZData(double x, double y, double z){
-        double[][] X = new double[2][3];
-        double[][] Y = new double[2][3];
-        double[][] Z = new double[2][3];
-        double[][] XYZ = new double[2][3];
-        
-        X[0][0] = 0;
-        X[0][1] = 0;
-        X[0][2] = 0;
-
-        X[1][0] = x;
-        X[1][1] = 0;
-        X[1][2] = 0;
-        
-        Y[0][0] = 0;
-        Y[0][1] = 0;
-        Y[0][2] = 0;
-
-        Y[1][0] = 0;
-        Y[1][1] = y;
-        Y[1][2] = 0;
-        
-        Z[0][0] = 0;
-        Z[0][1] = 0;
-        Z[0][2] = 0;
-
-        Z[1][0] = 0;
-        Z[1][1] = 0;
-        Z[1][2] = z;
-        
-        XYZ[0][0] = 0;
-        XYZ[0][1] = 0;
-        XYZ[0][2] = 0;
-
-        XYZ[1][0] = x;
-        XYZ[1][1] = y;
-        XYZ[1][2] = z;
-        
-        plot.getPlot(0).setData(X);
-        plot.getPlot(1).setData(Y);
-        plot.getPlot(2).setData(Z);
-        plot.getPlot(3).setData(XYZ);
-        plot.repaint();
+        plot.drawXYZData(x, y, z);
     }
     
     /**
-     * Sets the available serial ports to be shown in the GUI.
+     * Sets the available serial ports to be shown in the GUI. The selected port is kept if still available.
      * @param comLinks Array containing the name of available serial ports in the PC.
      */
     public void setComLinks(ArrayList<String> comLinks){
         
         Enumeration e = Collections.enumeration(comLinks);
+        Object selected = puertosComboBox.getSelectedItem();
         
         if(e.hasMoreElements()){
             puertosComboBox.removeAllItems();
             while(e.hasMoreElements())
                 puertosComboBox.addItem(e.nextElement());
+            if(selected != null && comLinks.contains(selected))
+                puertosComboBox.setSelectedItem(selected);
         }
     }
     
     /**
-     * Call this method to update the main view with the accelerator data.
-     * @param data String containing the data. It is assumed that all three axis readings are concatenated.
+     * Sets how many times per second the queued samples are drained and the plot repainted.
+     * @param fps Frames per second.
      */
-    public void receiveNewData(String data){
-        //The class AccDataParser parses the three axis from the data.
-        ArrayList<Double> xyz = accDataParser.parse(data);
+    public void setFrameRate(int fps){
+        int delay = 1000 / Math.max(1, fps);
+        renderTimer.setDelay(delay);
+        renderTimer.setInitialDelay(delay);
+    }
+    
+    /**
+     * Called by the render timer in the EDT. Updates the state of every device and
+     * draws the latest filtered sample of the selected one.
+     */
+    private void renderDevices(){
+        boolean changed = false;
+        
+        for(DevicePipeline device : VisualizacionAcelerometro.getDeviceManager().getDevices()){
+            DevicePipeline.DEVICE_STATUS status = device.pollStatus();
+            if(deviceStatus.put(device.getName(), status) != status)
+                changed = true;
+        }
+        if(changed)
+            puertosComboBox.repaint();
+        
+        DevicePipeline selected = getSelectedDevice();
+        coneccionLabel.setIcon(getStatusIcon((String) puertosComboBox.getSelectedItem()));
+        
+        //Draws only if new samples were filtered since the previous frame
+        if(selected != null && selected.getSampleCount() != lastDrawnCount){
+            lastDrawnCount = selected.getSampleCount();
+            long sampleTime = selected.readLatest(xyz);
+            drawXYZData(xyz[0], xyz[1], xyz[2]);
+            selected.framePainted(sampleTime);
+        }
+        
+        //The strip chart scrolls on every frame while its tab is shown, from the store if there is one
+        if(viewTabs.getSelectedComponent() == stripChart){
+            SignalSummaryInterface history = selected == null ? null
+                    : selected.getStore() != null ? selected.getStore() : selected.getHistory();
+            if(history != shownHistory){
+                shownHistory = history;
+                stripChart.setHistory(history);
+            }else if(history != null)
+                stripChart.repaint();
+        }
         
-        if(xyz != null){
-            double x = digitalFilterX.filter(xyz.get(0));
-            double y = digitalFilterY.filter(xyz.get(1));
-            double z = digitalFilterZ.filter(xyz.get(2));
-            drawXYZData(x,y,z);
-            coneccionLabel.setIcon(iconConnON); //If the data is ok, show green icon.
-        }else{
-            coneccionLabel.setIcon(iconConnERR); //If the data can´t be parsed, show red icon.
+        //The spectrum is only copied while its tab is shown
+        if(viewTabs.getSelectedComponent() == spectrumPanel){
+            SpectrumAnalyzer analyzer = selected == null ? null : selected.getSpectrumAnalyzer();
+            long count = analyzer == null ? -2 : analyzer.getSpectrumCount();
+            if(count != lastSpectrumCount){
+                lastSpectrumCount = count;
+                spectrumPanel.update(analyzer);
+            }
+        }
+    }
+    
+    /**
+     * The selected port changed, the plot and indicator now follow that device.
+     */
+    private void showSelectedDevice(){
+        lastDrawnCount = -1;
+        lastSpectrumCount = -1;
+        coneccionLabel.setIcon(getStatusIcon((String) puertosComboBox.getSelectedItem()));
+    }
+    
+    private DevicePipeline getSelectedDevice(){
+        String comLink = (String) puertosComboBox.getSelectedItem();
+        return comLink == null ? null : VisualizacionAcelerometro.getDeviceManager().getDevice(comLink);
+    }
+    
+    /**
+     * Returns the connection indicator icon of a device.
+     * @param comLink Name of the device.
+     */
+    private ImageIcon getStatusIcon(String comLink){
+        DevicePipeline.DEVICE_STATUS status = comLink == null ? null : deviceStatus.get(comLink);
+        if(status == DevicePipeline.DEVICE_STATUS.DEVICE_OK)
+            return iconConnON;
+        if(status == DevicePipeline.DEVICE_STATUS.DEVICE_ERROR)
+            return iconConnERR;
+        return iconConnOFF;
+    }
+    
+    /**
+     * Shows the connection indicator next to each port name.
+     */
+    private class DeviceStatusRenderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+            setIcon(getStatusIcon((String) value));
+            return this;
         }
     }
 
@@ -431,23 +513,25 @@ public class VisualizacionFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void empezarButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_empezarButtonActionPerformed
-        //connects to the serial port
-        DataCollectionInterface.CONNECTION_RESULT resultado = VisualizacionAcelerometro.getDataSource().connect((String) puertosComboBox.getSelectedItem());
+        //connects to the serial port, other connected devices keep running
+        String comLink = (String) puertosComboBox.getSelectedItem();
+        DataCollectionInterface.CONNECTION_RESULT resultado = VisualizacionAcelerometro.getDeviceManager().connect(comLink);
         
         //show visual feedback
         switch(resultado){
             case CONNECTION_OK:
-                coneccionLabel.setIcon(iconConnON);
+                deviceStatus.put(comLink, DevicePipeline.DEVICE_STATUS.DEVICE_OK);
+                lastDrawnCount = -1;
+                renderTimer.start();
                 break;
             case CONNECTION_ERROR:
-                coneccionLabel.setIcon(iconConnERR);
-                break;
-            case CONNECTION_BUSY:
-                coneccionLabel.setIcon(iconConnOFF);
+                deviceStatus.put(comLink, DevicePipeline.DEVICE_STATUS.DEVICE_ERROR);
                 break;
             default:
-                coneccionLabel.setIcon(iconConnOFF);
+                deviceStatus.remove(comLink);
         }
+        coneccionLabel.setIcon(getStatusIcon(comLink));
+        puertosComboBox.repaint();
     }//GEN-LAST:event_empezarButtonActionPerformed
 
     /**
@@ -455,9 +539,14 @@ public class VisualizacionFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void pararButtonActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_pararButtonActionPerformed
-        //Disconnect from serial port
-        VisualizacionAcelerometro.getDataSource().disconnect();
+        //Disconnect the selected device from its serial port
+        String comLink = (String) puertosComboBox.getSelectedItem();
+        VisualizacionAcelerometro.getDeviceManager().disconnect(comLink);
+        deviceStatus.remove(comLink);
+        if(!VisualizacionAcelerometro.getDeviceManager().isAnyConnected())
+            renderTimer.stop();
         coneccionLabel.setIcon(iconConnOFF);
+        puertosComboBox.repaint();
     }//GEN-LAST:event_pararButtonActionPerformed
 
     /**
@@ -465,8 +554,10 @@ public class VisualizacionFrame extends javax.swing.JFrame {
      * @param evt 
      */
     private void formWindowClosing(java.awt.event.WindowEvent evt) {//GEN-FIRST:event_formWindowClosing
-        //Disconnect from serial port
-        VisualizacionAcelerometro.getDataSource().disconnect();
+        //Disconnect from all serial ports
+        renderTimer.stop();
+        recordingPanel.closeRecording();
+        VisualizacionAcelerometro.getDeviceManager().disconnectAll();
     }//GEN-LAST:event_formWindowClosing
 
     /**
@@ -476,9 +567,7 @@ public class VisualizacionFrame extends javax.swing.JFrame {
     private void alphaSliderStateChanged(javax.swing.event.ChangeEvent evt) {//GEN-FIRST:event_alphaSliderStateChanged
 
         Double alpha = ((double) alphaSlider.getValue()) / 100;
-        digitalFilterX.setAlpha(alpha);
-        digitalFilterY.setAlpha(alpha);
-        digitalFilterZ.setAlpha(alpha);
+        VisualizacionAcelerometro.getDeviceManager().setAlpha(alpha);
         alphaText.setText(alpha.toString());
     }//GEN-LAST:event_alphaSliderStateChanged
 
@@ -491,9 +580,7 @@ public class VisualizacionFrame extends javax.swing.JFrame {
         
         try{
             Double alpha = Double.parseDouble(alphaStr);
-            digitalFilterX.setAlpha(alpha);
-            digitalFilterY.setAlpha(alpha);
-            digitalFilterZ.setAlpha(alpha);
+            VisualizacionAcelerometro.getDeviceManager().setAlpha(alpha);
             alpha = alpha * 100;
             alphaSlider.setValue(alpha.intValue());
         }catch(Exception e){
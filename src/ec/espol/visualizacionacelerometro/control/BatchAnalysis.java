@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.control;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import ec.espol.visualizacionacelerometro.data.FilterChain;
+import ec.espol.visualizacionacelerometro.data.ReplayDataCollection;
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import ec.espol.visualizacionacelerometro.data.SampleStatistics;
+import ec.espol.visualizacionacelerometro.data.TriaxialEMAFilter;
+import ec.espol.visualizacionacelerometro.storage.RecordingReader;
+import ec.espol.visualizacionacelerometro.storage.RecordingSession;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line analysis of recorded sessions, for the end of a test campaign.
+ * The raw readings of every session found in the given directories or files go through the same
+ * filters as a live device (EMA filter with -Dalpha, then -Dfilters at -Dfilters.rate) and the
+ * statistics of the filtered values (see {@link SampleStatistics}) are written as one CSV line per
+ * session, plus a line with all the sessions, to -Dreport=file or the standard output (messages go to
+ * the standard error).
+ * Sessions are split in stretches of about -Dbatch.records records (whole blocks) analyzed in parallel
+ * on a ForkJoinPool of -Dbatch.threads threads (all cores by default), and their statistics merged in order.
+ * Filters keep state, so each stretch first runs them over the -Dbatch.warmup records before it without
+ * counting them: the result only differs from a single pass with filters that remember longer than that.
+ * Usage: java -cp VisualizacionAcelerometro.jar ec.espol.visualizacionacelerometro.control.BatchAnalysis path...
+ *    or: java -jar VisualizacionAcelerometro.jar --analyze path...
+ * @author Federico Domínguez
+ */
+public class BatchAnalysis {
+
+    //Command line option that selects the batch analysis
+    public static final String ANALYZE_OPTION = "--analyze";
+
+    //Records analyzed by each task, -Dbatch.records=N
+    public static final int DEFAULT_TASK_RECORDS = 65536;
+
+    //Records filtered before each stretch to settle the filters, -Dbatch.warmup=N
+    public static final int DEFAULT_WARMUP_RECORDS = 4096;
+
+    /**
+     * Statistics of the blocks from first to last-1 of a session, split in halves (by records) while longer than a task.
+     */
+    private final class AnalysisTask extends RecursiveTask<SampleStatistics> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SessionAnalysis analysis;
+        private final RecordingSession session;
+        private final int first;
+        private final int last;
+
+        private AnalysisTask(SessionAnalysis analysis, int first, int last){
+            this.analysis = analysis;
+            this.session = analysis.session;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected SampleStatistics compute() {
+            long records = session.getBlockStart(last) - session.getBlockStart(first);
+            if(last - first <= 1 || records <= taskRecords)
+                return analyze();
+
+            //Splits at the block holding the middle record, compressed blocks don't have a fixed size
+            long middleRecord = session.getBlockStart(first) + records/2;
+            int low = first + 1;
+            int high = last - 1;
+            while(low < high){
+                int mid = (low + high) >>> 1;
+                if(session.getBlockStart(mid) < middleRecord)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            int middle = low;
+            AnalysisTask left = new AnalysisTask(analysis, first, middle);
+            left.fork();
+            SampleStatistics right = new AnalysisTask(analysis, middle, last).compute();
+            SampleStatistics statistics = left.join();
+            statistics.merge(right);
+            return statistics;
+        }
+
+        private SampleStatistics analyze(){
+            SampleStatistics statistics = new SampleStatistics();
+            SampleBatch batch = new SampleBatch(session.getMaxBlockRecords(), null);
+            AccDataParser converter = new AccDataParser();
+            TriaxialEMAFilter filter = new TriaxialEMAFilter(alpha);
+            FilterChain[] chains = new FilterChain[AccDataParser.AXES];
+            for(int axis = 0; axis < AccDataParser.AXES; axis++)
+                chains[axis] = new FilterChain(FilterChain.createStages(filterSpec, sampleRate));
+
+            //Blocks before the stretch that settle the filters
+            int start = first;
+            for(int records = 0; start > 0 && records < warmupRecords; )
+                records += session.getBlockRecords(--start);
+
+            for(int block = start; block < last; block++){
+                int n;
+                try{
+                    n = session.readBlock(block, batch);
+                }catch(IOException e){
+                    System.err.println("Error reading " + session.getFile().getName() + " block " + block + ": " + e.getLocalizedMessage());
+                    if(block >= first)
+                        analysis.errors.incrementAndGet();
+                    continue;
+                }
+
+                //Same steps as the device pipeline
+                converter.toG(batch);
+                filter.filter(batch.x, batch.y, batch.z, 0, n);
+                chains[0].filter(batch.x, batch.x, 0, n);
+                chains[1].filter(batch.y, batch.y, 0, n);
+                chains[2].filter(batch.z, batch.z, 0, n);
+
+                if(block >= first)
+                    statistics.add(batch, 0, n);
+            }
+            return statistics;
+        }
+    }
+
+    /**
+     * Analysis of a session: the task over all its blocks and the blocks that couldn't be read.
+     */
+    private final class SessionAnalysis {
+
+        private final RecordingSession session;
+        private final AtomicLong errors;
+        private final AnalysisTask task;
+
+        private SessionAnalysis(RecordingSession session){
+            this.session = session;
+            errors = new AtomicLong();
+            task = new AnalysisTask(this, 0, session.getBlockCount());
+        }
+    }
+
+    private final String filterSpec;
+    private final double sampleRate;
+    private final double alpha;
+    private final int taskRecords;
+    private final int warmupRecords;
+    private final ForkJoinPool pool;
+
+    /**
+     * @param filterSpec Filters after the EMA filter, see {@link FilterChain#createStages}.
+     * @param sampleRate Samples per second of the recordings, used to design the filters.
+     * @param alpha EMA filter coefficient.
+     * @param taskRecords Records analyzed by each task, rounded to whole blocks.
+     * @param warmupRecords Records filtered before each stretch to settle the filters.
+     * @param threads Parallelism of the pool.
+     * @throws IllegalArgumentException The filter description is not valid.
+     */
+    public BatchAnalysis(String filterSpec, double sampleRate, double alpha, int taskRecords, int warmupRecords, int threads){
+        //Fails now rather than in every task
+        FilterChain.createStages(filterSpec, sampleRate);
+        this.filterSpec = filterSpec;
+        this.sampleRate = sampleRate;
+        this.alpha = alpha;
+        this.taskRecords = Math.max(1, taskRecords);
+        this.warmupRecords = warmupRecords;
+        pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Finds the sessions of directories or segment files, each session listed once from its first segment.
+     * @param paths Directories holding recordings, or segment files.
+     * @return Segments of each session, in order.
+     */
+    public static ArrayList<ArrayList<File>> findSessions(String... paths){
+        //Lowest segment of each session, by directory and name prefix
+        Map<String, File> firsts = new LinkedHashMap<>();
+        for(String path : paths){
+            File file = new File(path);
+            ArrayList<File> files = new ArrayList<>();
+            if(file.isDirectory()){
+                for(String name : ReplayDataCollection.scanRecordings(file))
+                    files.add(new File(file, name));
+            }else
+                files.add(file);
+
+            for(File f : files){
+                String name = f.getName();
+                int dash = name.lastIndexOf('-');
+                String key = new File(f.getAbsoluteFile().getParentFile(), dash < 0 ? name : name.substring(0, dash)).getPath();
+                File first = firsts.get(key);
+                if(first == null || RecordingReader.segmentNumber(name) < RecordingReader.segmentNumber(first.getName()))
+                    firsts.put(key, f);
+            }
+        }
+
+        ArrayList<ArrayList<File>> sessions = new ArrayList<>();
+        for(File first : firsts.values())
+            sessions.add(RecordingReader.sessionSegments(first));
+        return sessions;
+    }
+
+    /**
+     * Analyzes sessions in parallel and writes the report.
+     * @param sessions Segments of each session, as returned by findSessions().
+     * @param report Receives the CSV report.
+     * @return Statistics of all the sessions.
+     */
+    public SampleStatistics analyze(ArrayList<ArrayList<File>> sessions, PrintStream report){
+        ArrayList<SessionAnalysis> analyses = new ArrayList<>();
+        for(ArrayList<File> files : sessions){
+            try{
+                SessionAnalysis analysis = new SessionAnalysis(new RecordingSession(files));
+                analyses.add(analysis);
+                pool.execute(analysis.task);
+            }catch(IOException e){
+                System.err.println("Error opening recording " + files.get(0).getName() + ": " + e.getLocalizedMessage());
+            }
+        }
+
+        report.println(header());
+        SampleStatistics total = new SampleStatistics();
+        long errors = 0;
+        for(SessionAnalysis analysis : analyses){
+            RecordingSession session = analysis.session;
+            SampleStatistics statistics = analysis.task.join();
+            report.println(line(session.getFile().getName(), session.getSegmentCount(), analysis.errors.get(), statistics, true));
+            total.merge(statistics);
+            errors += analysis.errors.get();
+            try{
+                session.close();
+            }catch(IOException e){
+                System.err.println("Error closing recording: " + e.getLocalizedMessage());
+            }
+        }
+        //Times of different sessions can't be compared
+        report.println(line("total", analyses.size(), errors, total, false));
+        return total;
+    }
+
+    public void shutdown(){
+        pool.shutdown();
+    }
+
+    public int getParallelism(){
+        return pool.getParallelism();
+    }
+
+    private static String header(){
+        StringBuilder header = new StringBuilder("session,segments,records,seconds,rate,max_gap_ms,errors");
+        for(String axis : new String[]{"x", "y", "z"})
+            for(String column : new String[]{"mean", "std", "min", "max", "rms"})
+                header.append(',').append(axis).append('_').append(column);
+        return header.toString();
+    }
+
+    private static String line(String name, int segments, long errors, SampleStatistics s, boolean times){
+        StringBuilder line = new StringBuilder(name);
+        line.append(',').append(segments).append(',').append(s.getCount());
+        if(times)
+            line.append(String.format(Locale.ROOT, ",%.3f,%.2f,%.3f",
+                    (s.getLastTime() - s.getFirstTime()) / 1e9, s.getRate(), s.getMaxGap() / 1e6));
+        else
+            line.append(",,,");
+        line.append(',').append(errors);
+        for(int axis = 0; axis < AccDataParser.AXES; axis++)
+            line.append(String.format(Locale.ROOT, ",%.6f,%.6f,%.6f,%.6f,%.6f", s.getMean(axis),
+                    s.getStandardDeviation(axis), s.getMin(axis), s.getMax(axis), s.getRms(axis)));
+        return line.toString();
+    }
+
+    /**
+     * @param args Command line arguments.
+     * @return true if the batch analysis was requested with --analyze.
+     */
+    public static boolean isRequested(String[] args){
+        return args.length > 0 && ANALYZE_OPTION.equals(args[0]);
+    }
+
+    /**
+     * @param args Directories or segment files to analyze, optionally preceded by --analyze.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        ArrayList<String> paths = new ArrayList<>(Arrays.asList(args));
+        paths.remove(ANALYZE_OPTION);
+        if(paths.isEmpty()){
+            System.err.println("Error: no recordings to analyze");
+            return;
+        }
+
+        BatchAnalysis analysis;
+        try{
+            analysis = new BatchAnalysis(System.getProperty("filters", ""),
+                    Double.parseDouble(System.getProperty("filters.rate", String.valueOf(DeviceManager.DEFAULT_FILTER_SAMPLE_RATE))),
+                    Double.parseDouble(System.getProperty("alpha", String.valueOf(HeadlessAcquisition.DEFAULT_ALPHA))),
+                    Integer.getInteger("batch.records", DEFAULT_TASK_RECORDS),
+                    Integer.getInteger("batch.warmup", DEFAULT_WARMUP_RECORDS),
+                    Integer.getInteger("batch.threads", Runtime.getRuntime().availableProcessors()));
+        }catch(IllegalArgumentException e){
+            System.err.println("Error in filter settings: "+e.getLocalizedMessage());
+            return;
+        }
+
+        ArrayList<ArrayList<File>> sessions = findSessions(paths.toArray(new String[paths.size()]));
+        String reportFile = System.getProperty("report");
+        long start = System.nanoTime();
+        try{
+            PrintStream report = reportFile == null ? System.out : new PrintStream(reportFile);
+            SampleStatistics total = analysis.analyze(sessions, report);
+            if(report != System.out)
+                report.close();
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.println(String.format("%d sessions, %d records in %.1f s (%.0f records/s, %d threads)",
+                    sessions.size(), total.getCount(), seconds, total.getCount() / seconds, analysis.getParallelism()));
+        }catch(FileNotFoundException e){
+            System.err.println("Error opening report: "+e.getLocalizedMessage());
+        }
+        analysis.shutdown();
+    }
+
+}
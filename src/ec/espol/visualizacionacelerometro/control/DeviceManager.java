@@ -0,0 +1,505 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.control;
+
+import ec.espol.visualizacionacelerometro.data.*;
+import ec.espol.visualizacionacelerometro.metrics.PipelineMetrics;
+import ec.espol.visualizacionacelerometro.network.SampleForwarder;
+import ec.espol.visualizacionacelerometro.storage.RecordingReader;
+import ec.espol.visualizacionacelerometro.storage.SessionRecorder;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one processing pipeline per connected device. Any number of ports can be open at once,
+ * each one with its own data source, ring buffer, filters and worker thread.
+ * Links are serial ports, networked sensors, recording files that are played back, or synthetic signal generators.
+ * @author Federico Domínguez
+ */
+public class DeviceManager {
+
+    //Connected devices by communication link name
+    private final Map<String, DevicePipeline> devices;
+
+    //JMX metrics of each connected device
+    private final Map<String, PipelineMetrics> metrics;
+
+    //Settings applied to new serial connections
+    private int baudRate;
+    private WireProtocolDetector.WIRE_PROTOCOL protocol;
+
+    //Directory where new devices are recorded, null to disable recording
+    private File recordingDirectory;
+    private boolean recordingCompressed;
+
+    //Directory of the recordings offered for playback, and playback speed
+    private File replayDirectory;
+    private double replaySpeed;
+
+    //Receives networked sensors, null when not started
+    private NetworkIngestServer networkServer;
+
+    //Synthetic generator settings, generators are only listed when enabled
+    private boolean syntheticEnabled;
+    private SyntheticDataCollection.ENCODING syntheticEncoding;
+    private int syntheticRate;
+    private double syntheticJitter;
+
+    //EMA filter coefficient applied to every device
+    private volatile double alpha;
+
+    //Filter chain applied to each axis of every device, see FilterChain.createStages()
+    private String filterSpec;
+    private double filterSampleRate;
+
+    //Spectrum analysis of every device, size 0 to disable
+    private int spectrumSize;
+    private int spectrumHop;
+
+    //Samples kept for the strip chart of every device, 0 to disable
+    private int historySize;
+
+    //Off-heap memory shared by the session stores of all the devices, null to disable
+    private SessionStore.Budget storeBudget;
+
+    //Collector receiving the filtered samples of every device, null to disable forwarding
+    private String forwardTarget;
+    private boolean forwardDelta;
+    private int forwardDelay;
+
+    //Sample rate assumed when designing filters
+    public static final double DEFAULT_FILTER_SAMPLE_RATE = 100;
+
+    public DeviceManager(double alpha){
+        devices = new ConcurrentHashMap<>();
+        metrics = new ConcurrentHashMap<>();
+        baudRate = SerialDataCollection.DEFAULT_BAUD_RATE;
+        protocol = WireProtocolDetector.WIRE_PROTOCOL.AUTO;
+        replaySpeed = ReplayDataCollection.SPEED_REAL_TIME;
+        syntheticEncoding = SyntheticDataCollection.ENCODING.ASCII;
+        syntheticRate = SyntheticDataCollection.DEFAULT_RATE;
+        this.alpha = alpha;
+        filterSpec = "";
+        filterSampleRate = DEFAULT_FILTER_SAMPLE_RATE;
+        spectrumSize = SpectrumAnalyzer.DEFAULT_SIZE;
+        spectrumHop = SpectrumAnalyzer.DEFAULT_HOP;
+        historySize = SampleHistory.DEFAULT_CAPACITY;
+    }
+
+    /**
+     * Scans communication links that can be connected.
+     * @return ArrayList containing names of all found links. Returns empty list if none available.
+     */
+    public ArrayList<String> getComLinks(){
+        ArrayList<String> links = getSensorLinks();
+        links.addAll(ReplayDataCollection.scanRecordings(replayDirectory));
+        if(syntheticEnabled)
+            links.addAll(SyntheticDataCollection.scanGenerators());
+        return links;
+    }
+
+    /**
+     * Scans the links of real sensors: serial ports and networked sensors, no recordings nor generators.
+     * @return ArrayList containing names of all found links. Returns empty list if none available.
+     */
+    public ArrayList<String> getSensorLinks(){
+        ArrayList<String> links = SerialDataCollection.scanPorts();
+        if(networkServer != null)
+            links.addAll(networkServer.getLinks());
+        return links;
+    }
+
+    /**
+     * Opens a device and starts its pipeline. Connecting an already connected device does nothing.
+     * @param comLink Name of the communication link.
+     * @return CONNECTION_RESULT enumeration.
+     */
+    public synchronized DataCollectionInterface.CONNECTION_RESULT connect(String comLink){
+        DevicePipeline pipeline = devices.get(comLink);
+        if(pipeline != null && pipeline.isRunning() && pipeline.getSource().isConnected())
+            return DataCollectionInterface.CONNECTION_RESULT.CONNECTION_OK;
+
+        //The source ended by itself (for example a finished playback), starts it again
+        if(pipeline != null)
+            disconnect(comLink);
+
+        pipeline = createPipeline(comLink);
+        DataCollectionInterface.CONNECTION_RESULT result = pipeline.start();
+        if(result == DataCollectionInterface.CONNECTION_RESULT.CONNECTION_OK){
+            devices.put(comLink, pipeline);
+            PipelineMetrics pipelineMetrics = new PipelineMetrics(pipeline);
+            pipelineMetrics.register();
+            metrics.put(comLink, pipelineMetrics);
+        }
+
+        return result;
+    }
+
+    /**
+     * Closes a device and stops its pipeline.
+     * @param comLink Name of the communication link.
+     */
+    public synchronized void disconnect(String comLink){
+        DevicePipeline pipeline = devices.remove(comLink);
+        if(pipeline != null)
+            pipeline.stop();
+        PipelineMetrics pipelineMetrics = metrics.remove(comLink);
+        if(pipelineMetrics != null)
+            pipelineMetrics.unregister();
+    }
+
+    /**
+     * Closes every device.
+     */
+    public synchronized void disconnectAll(){
+        for(DevicePipeline pipeline : devices.values())
+            pipeline.stop();
+        devices.clear();
+        for(PipelineMetrics pipelineMetrics : metrics.values())
+            pipelineMetrics.unregister();
+        metrics.clear();
+    }
+
+    /**
+     * @param comLink Name of the communication link.
+     * @return Pipeline of the device, null if not connected.
+     */
+    public DevicePipeline getDevice(String comLink){
+        return devices.get(comLink);
+    }
+
+    /**
+     * @return Pipelines of all connected devices.
+     */
+    public ArrayList<DevicePipeline> getDevices(){
+        return new ArrayList<>(devices.values());
+    }
+
+    public boolean isAnyConnected(){
+        return !devices.isEmpty();
+    }
+
+    /**
+     * Sets the EMA filter coefficient of every connected and future device.
+     * @param alpha New coefficient.
+     */
+    public void setAlpha(double alpha){
+        this.alpha = alpha;
+        for(DevicePipeline pipeline : devices.values())
+            pipeline.setAlpha(alpha);
+    }
+
+    /**
+     * Sets the filters applied to each axis after the EMA filter, on every connected and future device.
+     * Running devices switch to the new filters without stopping. If only the parameters of the stages
+     * change (for example a cutoff frequency), the new coefficients are swapped into the running stages,
+     * which keep their state, otherwise new stages replace them.
+     * @param spec Filter stages, see FilterChain.createStages(). An empty string removes them.
+     * @param sampleRate Samples per second of the devices, used to design the filters.
+     * @throws IllegalArgumentException The description is not valid, the current filters are kept.
+     */
+    public synchronized void setFilters(String spec, double sampleRate){
+        //Validates the description before changing anything
+        DataFilterInterface[] source = FilterChain.createStages(spec, sampleRate);
+        this.filterSpec = spec;
+        this.filterSampleRate = sampleRate;
+        for(DevicePipeline pipeline : devices.values())
+            for(int axis = 0; axis < AccDataParser.AXES; axis++)
+                if(!pipeline.getFilterChain(axis).updateStages(source))
+                    pipeline.getFilterChain(axis).setStages(FilterChain.createStages(filterSpec, filterSampleRate));
+    }
+
+    public String getFilterSpec(){
+        return filterSpec;
+    }
+
+    public double getFilterSampleRate(){
+        return filterSampleRate;
+    }
+
+    /**
+     * Creates new stages for each axis, stages keep state and can't be shared.
+     */
+    private void applyFilters(DevicePipeline pipeline){
+        for(int axis = 0; axis < AccDataParser.AXES; axis++)
+            pipeline.getFilterChain(axis).setStages(FilterChain.createStages(filterSpec, filterSampleRate));
+    }
+
+    /**
+     * Sets the spectrum analysis of the devices connected from now on.
+     * @param size Samples in each transform, a power of two, 0 to disable the analysis.
+     * @param hop Samples between transforms, from 1 to size.
+     * @throws IllegalArgumentException Invalid size or hop, the current settings are kept.
+     */
+    public void setSpectrumSettings(int size, int hop){
+        if(size < 0 || size > 0 && (size < 2 || Integer.bitCount(size) != 1 || hop < 1 || hop > size))
+            throw new IllegalArgumentException("Invalid spectrum size or hop: " + size + ", " + hop);
+        this.spectrumSize = size;
+        this.spectrumHop = hop;
+    }
+
+    /**
+     * Sets the number of filtered samples kept for the strip chart of the devices connected from now on.
+     * @param samples Samples kept per device, 0 to keep none.
+     * @throws IllegalArgumentException Negative size, the current setting is kept.
+     */
+    public void setHistorySize(int samples){
+        if(samples < 0)
+            throw new IllegalArgumentException("Invalid history size: " + samples);
+        this.historySize = samples;
+    }
+
+    /**
+     * Keeps the filtered samples of the devices connected from now on off the heap, the oldest
+     * samples of any device are dropped once the memory is used up.
+     * @param bytes Memory shared by all the devices, 0 to keep none.
+     * @throws IllegalArgumentException Less than one chunk, the current setting is kept.
+     */
+    public void setStoreMemory(long bytes){
+        storeBudget = bytes == 0 ? null : new SessionStore.Budget(bytes);
+    }
+
+    /**
+     * Forwards the filtered samples of the devices connected from now on to a collector.
+     * @param target "udp://host:port" or "tcp://host:port", null to disable forwarding.
+     * @param delta true to send delta encoded samples.
+     * @param delayMillis Longest time a sample waits to be sent.
+     * @throws IllegalArgumentException Invalid target or delay, the current settings are kept.
+     */
+    public void setForwarding(String target, boolean delta, int delayMillis){
+        if(target != null){
+            SampleForwarder.parseTransport(target);
+            SampleForwarder.parseAddress(target);
+        }
+        if(delayMillis < 0)
+            throw new IllegalArgumentException("Invalid forwarding delay: " + delayMillis);
+        this.forwardTarget = target;
+        this.forwardDelta = delta;
+        this.forwardDelay = delayMillis;
+    }
+
+    public void setBaudRate(int baudRate){
+        this.baudRate = baudRate;
+    }
+
+    public void setProtocol(WireProtocolDetector.WIRE_PROTOCOL protocol){
+        this.protocol = protocol;
+    }
+
+    /**
+     * Records every sample of the devices connected from now on.
+     * @param directory Directory for the recording files, null to disable recording.
+     */
+    public void setRecordingDirectory(File directory){
+        this.recordingDirectory = directory;
+    }
+
+    public File getRecordingDirectory(){
+        return recordingDirectory;
+    }
+
+    /**
+     * @param compressed true to record in compressed segments (.accz) instead of fixed size records.
+     */
+    public void setRecordingCompressed(boolean compressed){
+        this.recordingCompressed = compressed;
+    }
+
+    /**
+     * Offers the recordings of a directory as links that can be connected.
+     * @param directory Directory holding the recording files, null for none.
+     */
+    public void setReplayDirectory(File directory){
+        this.replayDirectory = directory;
+    }
+
+    /**
+     * @param speed Playback speed factor, see ReplayDataCollection.setSpeed().
+     */
+    public void setReplaySpeed(double speed){
+        this.replaySpeed = speed;
+    }
+
+    /**
+     * Lists the synthetic signal generators with the other links.
+     * Links starting with "sim:" can be connected even if not listed.
+     * @param enabled true to list the generators.
+     */
+    public void setSyntheticEnabled(boolean enabled){
+        this.syntheticEnabled = enabled;
+    }
+
+    /**
+     * Sets the generator settings used by the next synthetic connections.
+     * @param encoding How samples are delivered.
+     * @param rate Samples per second of links that don't specify one.
+     * @param jitter Maximum timing offset of each axis, in seconds.
+     */
+    public void setSyntheticSettings(SyntheticDataCollection.ENCODING encoding, int rate, double jitter){
+        this.syntheticEncoding = encoding;
+        this.syntheticRate = rate;
+        this.syntheticJitter = jitter;
+    }
+
+    /**
+     * Starts receiving networked sensors, each TCP connection and UDP sender is listed as a link.
+     * @param address Local address and port for both TCP and UDP, port 0 for any free port.
+     * @throws IOException The ports could not be opened.
+     */
+    public synchronized void startNetworkServer(InetSocketAddress address) throws IOException {
+        if(networkServer != null)
+            return;
+        NetworkIngestServer server = new NetworkIngestServer(address);
+        server.start();
+        networkServer = server;
+    }
+
+    /**
+     * @return Server of the networked sensors, null if not started.
+     */
+    public NetworkIngestServer getNetworkServer(){
+        return networkServer;
+    }
+
+    /**
+     * Creates the device manager with the settings given as system properties.
+     * Shared by the GUI and the headless mode (see VisualizacionAcelerometro and HeadlessAcquisition).
+     * @param alpha Initial EMA filter coefficient.
+     * @return New device manager, with no device connected.
+     */
+    public static DeviceManager fromSystemProperties(double alpha){
+        DeviceManager deviceManager = new DeviceManager(alpha);
+        //Serial speed can be changed with -Dbaud=N, protocol with -Dprotocol=AUTO|ASCII|BINARY
+        deviceManager.setBaudRate(Integer.getInteger("baud", SerialDataCollection.DEFAULT_BAUD_RATE));
+        deviceManager.setProtocol(WireProtocolDetector.WIRE_PROTOCOL.valueOf(System.getProperty("protocol", "AUTO")));
+        //Every sample is recorded to disk with -Drecord=directory
+        if(System.getProperty("record") != null)
+            deviceManager.setRecordingDirectory(new java.io.File(System.getProperty("record")));
+        //-Drecord.compress=true records compressed segments
+        deviceManager.setRecordingCompressed(Boolean.getBoolean("record.compress"));
+        //Recordings of -Dreplay=directory (default the recording directory) are listed with the ports,
+        //played at -Dreplay.speed=N times the original speed, 0 for as fast as possible
+        String replay = System.getProperty("replay", System.getProperty("record"));
+        if(replay != null)
+            deviceManager.setReplayDirectory(new java.io.File(replay));
+        deviceManager.setReplaySpeed(Double.parseDouble(System.getProperty("replay.speed", "1")));
+        //Synthetic generators for stress tests are listed with -Dsim=true, settings -Dsim.encoding=ASCII|BINARY|PARSED,
+        //-Dsim.rate=samples per second, -Dsim.jitter=seconds
+        deviceManager.setSyntheticEnabled(Boolean.getBoolean("sim"));
+        deviceManager.setSyntheticSettings(
+                SyntheticDataCollection.ENCODING.valueOf(System.getProperty("sim.encoding", "ASCII")),
+                Integer.getInteger("sim.rate", SyntheticDataCollection.DEFAULT_RATE),
+                Double.parseDouble(System.getProperty("sim.jitter", "0")));
+        //Filters after the EMA filter with -Dfilters=stages, for example "highpass:0.5,median:5,lowpass:20",
+        //designed for a sample rate of -Dfilters.rate=N samples per second
+        try{
+            deviceManager.setFilters(System.getProperty("filters", ""),
+                    Double.parseDouble(System.getProperty("filters.rate", String.valueOf(DeviceManager.DEFAULT_FILTER_SAMPLE_RATE))));
+        }catch(IllegalArgumentException e){
+            System.out.println("Error in filter settings: "+e.getLocalizedMessage());
+        }
+        //Networked sensors connect to TCP and UDP port -Dnet.port=N, on the address -Dnet.bind (all by default)
+        if(System.getProperty("net.port") != null){
+            try{
+                String bind = System.getProperty("net.bind");
+                int port = Integer.getInteger("net.port", 0);
+                deviceManager.startNetworkServer(bind == null ? new InetSocketAddress(port) : new InetSocketAddress(bind, port));
+            }catch(IOException e){
+                System.out.println("Error opening network port: "+e.getLocalizedMessage());
+            }
+        }
+        //The strip chart keeps -Dhistory.size=N samples of each device, 0 for none
+        try{
+            deviceManager.setHistorySize(Integer.getInteger("history.size", SampleHistory.DEFAULT_CAPACITY));
+        }catch(IllegalArgumentException e){
+            System.out.println("Error in history settings: "+e.getLocalizedMessage());
+        }
+        //The last -Dstore.memory=MB megabytes of samples of all the devices are kept off the heap
+        try{
+            deviceManager.setStoreMemory(Long.getLong("store.memory", 0) << 20);
+        }catch(IllegalArgumentException e){
+            System.out.println("Error in store settings: "+e.getLocalizedMessage());
+        }
+        //Filtered samples are sent to -Dforward=udp://host:port or tcp://host:port, delta encoded with
+        //-Dforward.delta=true, waiting at most -Dforward.delay=milliseconds to fill a frame
+        if(System.getProperty("forward") != null){
+            try{
+                deviceManager.setForwarding(System.getProperty("forward"), Boolean.getBoolean("forward.delta"),
+                        Integer.getInteger("forward.delay", SampleForwarder.DEFAULT_DELAY_MILLIS));
+            }catch(IllegalArgumentException e){
+                System.out.println("Error in forwarding settings: "+e.getLocalizedMessage());
+            }
+        }
+        //Spectrum analysis with -Dspectrum.size=N samples (power of two, 0 disables) every -Dspectrum.hop=N samples
+        try{
+            deviceManager.setSpectrumSettings(Integer.getInteger("spectrum.size", SpectrumAnalyzer.DEFAULT_SIZE),
+                    Integer.getInteger("spectrum.hop", SpectrumAnalyzer.DEFAULT_HOP));
+        }catch(IllegalArgumentException e){
+            System.out.println("Error in spectrum settings: "+e.getLocalizedMessage());
+        }
+        return deviceManager;
+    }
+    
+    private DevicePipeline createPipeline(String comLink){
+        SampleRingBuffer samples = new SampleRingBuffer(DevicePipeline.BUFFER_SIZE);
+
+        DataCollectionInterface source;
+        if(RecordingReader.isRecordingFile(comLink) && replayDirectory != null){
+            ReplayDataCollection replay = new ReplayDataCollection(replayDirectory, samples);
+            replay.setSpeed(replaySpeed);
+            source = replay;
+        }else if(NetworkIngestServer.isNetworkLink(comLink) && networkServer != null){
+            source = new NetworkDataCollection(networkServer, samples);
+        }else if(comLink.startsWith(SyntheticDataCollection.LINK_PREFIX)){
+            SyntheticDataCollection synthetic = new SyntheticDataCollection(samples);
+            synthetic.setEncoding(syntheticEncoding);
+            synthetic.setDefaultRate(syntheticRate);
+            synthetic.setJitter(syntheticJitter);
+            source = synthetic;
+        }else{
+            SerialDataCollection serial = new SerialDataCollection(samples);
+            serial.setBaudRate(baudRate);
+            serial.setProtocol(protocol);
+            source = serial;
+        }
+
+        DevicePipeline pipeline = new DevicePipeline(comLink, source, samples, alpha);
+        applyFilters(pipeline);
+        if(spectrumSize > 0)
+            pipeline.setSpectrumAnalyzer(new SpectrumAnalyzer(comLink, spectrumSize, spectrumHop));
+        if(historySize > 0)
+            pipeline.setHistory(new SampleHistory(comLink, historySize));
+        if(storeBudget != null)
+            pipeline.setStore(new SessionStore(comLink, storeBudget));
+        if(forwardTarget != null)
+            pipeline.setForwarder(new SampleForwarder(comLink, SampleForwarder.parseTransport(forwardTarget),
+                    SampleForwarder.parseAddress(forwardTarget), forwardDelta, forwardDelay));
+        //Playback already comes from a recording
+        if(recordingDirectory != null && !(source instanceof ReplayDataCollection)){
+            SessionRecorder recorder = new SessionRecorder(recordingDirectory, comLink);
+            recorder.setCompressed(recordingCompressed);
+            pipeline.setRecorder(recorder);
+        }
+
+        return pipeline;
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.control;
+
+import ec.espol.visualizacionacelerometro.data.DataCollectionInterface;
+import ec.espol.visualizacionacelerometro.data.DevicePipeline;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line acquisition without GUI, for lab servers.
+ * Opens the given links (all serial ports if none) and runs the device pipelines (parse, filter, record)
+ * with the same system properties as the GUI, printing a status line per device at a fixed interval.
+ * When no link is given and the network server is enabled (-Dnet.port), networked sensors are also
+ * connected as they appear, and the acquisition goes on while waiting for them.
+ * Stops on Ctrl-C or after -Dduration=seconds, closing the recordings properly.
+ * No AWT or Swing class is used, the spectrum analysis is off unless -Dspectrum.size is given and
+ * no history is kept for the strip chart.
+ * Usage: java -cp VisualizacionAcelerometro.jar ec.espol.visualizacionacelerometro.control.HeadlessAcquisition [link...]
+ *    or: java -jar VisualizacionAcelerometro.jar --headless [link...] (the GUI main class is loaded, not the GUI)
+ * @author Federico Domínguez
+ */
+public class HeadlessAcquisition {
+
+    //Command line option that selects the headless mode
+    public static final String HEADLESS_OPTION = "--headless";
+
+    //EMA filter coefficient when -Dalpha is not given
+    public static final double DEFAULT_ALPHA = 0.5;
+
+    //Seconds between status lines, -Dstatus.interval=N, 0 for none
+    public static final int DEFAULT_STATUS_INTERVAL = 5;
+
+    /**
+     * @param args Command line arguments.
+     * @return true if the headless mode was requested with -Dheadless=true or --headless.
+     */
+    public static boolean isRequested(String[] args){
+        return Boolean.getBoolean("headless") || args.length > 0 && HEADLESS_OPTION.equals(args[0]);
+    }
+
+    /**
+     * @param args Links to connect, optionally preceded by --headless.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        ArrayList<String> links = new ArrayList<>(Arrays.asList(args));
+        links.remove(HEADLESS_OPTION);
+
+        DeviceManager deviceManager = DeviceManager.fromSystemProperties(
+                Double.parseDouble(System.getProperty("alpha", String.valueOf(DEFAULT_ALPHA))));
+        //Nobody looks at the spectrum nor the strip chart history
+        if(System.getProperty("spectrum.size") == null)
+            deviceManager.setSpectrumSettings(0, 0);
+        deviceManager.setHistorySize(0);
+
+        //Without links every sensor is connected, networked sensors also later. Recordings and
+        //generators must be given, replaying the recording directory would record it again
+        boolean follow = links.isEmpty() && deviceManager.getNetworkServer() != null;
+        if(links.isEmpty())
+            links = deviceManager.getSensorLinks();
+        if(links.isEmpty() && !follow){
+            System.out.println("Error: no links to connect");
+            return;
+        }
+
+        for(String link : links)
+            connect(deviceManager, link);
+        if(!deviceManager.isAnyConnected() && !follow)
+            return;
+
+        //Ctrl-C stops the devices, the recorders close their segments
+        Thread shutdown = new Thread(deviceManager::disconnectAll, "Shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdown);
+
+        long interval = Integer.getInteger("status.interval", DEFAULT_STATUS_INTERVAL) * 1000L;
+        long duration = Long.getLong("duration", 0) * 1000;
+        long start = System.currentTimeMillis();
+        long nextStatus = start + interval;
+        Map<String, Long> lastCounts = new HashMap<>();
+        for(DevicePipeline device : deviceManager.getDevices())
+            lastCounts.put(device.getName(), 0L);
+
+        try{
+            while(follow || deviceManager.isAnyConnected()){
+                //New sensors are looked for every second
+                long wait = interval > 0 && !follow ? interval : 1000;
+                if(interval > 0)
+                    wait = Math.min(wait, nextStatus - System.currentTimeMillis());
+                if(duration > 0)
+                    wait = Math.min(wait, start + duration - System.currentTimeMillis());
+                if(wait > 0)
+                    Thread.sleep(wait);
+
+                if(interval > 0 && System.currentTimeMillis() >= nextStatus){
+                    printStatus(deviceManager, lastCounts, interval);
+                    nextStatus += interval;
+                }
+                if(duration > 0 && System.currentTimeMillis() - start >= duration)
+                    break;
+
+                //Sources that ended by themselves, for example a finished playback or a closed connection
+                for(DevicePipeline device : deviceManager.getDevices())
+                    if(!device.getSource().isConnected())
+                        deviceManager.disconnect(device.getName());
+
+                if(follow)
+                    for(String link : deviceManager.getNetworkServer().getLinks())
+                        if(deviceManager.getDevice(link) == null)
+                            connect(deviceManager, link);
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+
+        deviceManager.disconnectAll();
+        try{
+            Runtime.getRuntime().removeShutdownHook(shutdown);
+        }catch(IllegalStateException e){
+            //Already shutting down
+        }
+    }
+
+    private static void connect(DeviceManager deviceManager, String link){
+        DataCollectionInterface.CONNECTION_RESULT result = deviceManager.connect(link);
+        System.out.println(link + ": " + result);
+    }
+
+    /**
+     * Prints one line per device: sample rate, totals and losses.
+     */
+    private static void printStatus(DeviceManager deviceManager, Map<String, Long> lastCounts, long interval){
+        for(DevicePipeline device : deviceManager.getDevices()){
+            long count = device.getSampleCount();
+            Long last = lastCounts.put(device.getName(), count);
+            double rate = (count - (last == null ? 0 : last)) * 1000.0 / interval;
+
+            StringBuilder line = new StringBuilder();
+            line.append(device.getName())
+                .append(String.format(": %.0f samples/s, %d samples, %d errors, %d dropped",
+                        rate, count, device.getSource().getParseErrorCount(), device.getSampleBuffer().getDropped()));
+            if(device.getRecorder() != null)
+                line.append(String.format(", %d recorded (%d dropped)",
+                        device.getRecorder().getRecordsWritten(), device.getRecorder().getDropped()));
+            System.out.println(line);
+        }
+    }
+
+}
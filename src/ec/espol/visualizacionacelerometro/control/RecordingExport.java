@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.control;
+
+import ec.espol.visualizacionacelerometro.storage.RecordingExporter;
+import ec.espol.visualizacionacelerometro.storage.RecordingReader;
+import ec.espol.visualizacionacelerometro.storage.RecordingSession;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Command line export of recorded sessions to CSV or MAT files (see {@link RecordingExporter}).
+ * Every session found in the given directories or segment files is exported to prefix.csv or prefix.mat,
+ * prefix being the name of its segments without the segment number, in -Dexport.dir (by default next to
+ * the recording). -Dexport.format=csv|mat selects the format (csv by default), -Dexport.decimals=N the
+ * decimals of the filtered values in CSV files and -Dbatch.threads the threads (all cores by default).
+ * Progress and errors go to the standard error, like the batch analysis.
+ * Usage: java -cp VisualizacionAcelerometro.jar ec.espol.visualizacionacelerometro.control.RecordingExport path...
+ *    or: java -jar VisualizacionAcelerometro.jar --export path...
+ * @author Federico Domínguez
+ */
+public class RecordingExport {
+
+    //Command line option that selects the export
+    public static final String EXPORT_OPTION = "--export";
+
+    /**
+     * @param args Command line arguments.
+     * @return true if the export was requested with --export.
+     */
+    public static boolean isRequested(String[] args){
+        return args.length > 0 && EXPORT_OPTION.equals(args[0]);
+    }
+
+    /**
+     * @param args Directories or segment files to export, optionally preceded by --export.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        ArrayList<String> paths = new ArrayList<>(Arrays.asList(args));
+        paths.remove(EXPORT_OPTION);
+        if(paths.isEmpty()){
+            System.err.println("Error: no recordings to export");
+            return;
+        }
+
+        RecordingExporter.FORMAT format;
+        RecordingExporter exporter;
+        try{
+            format = RecordingExporter.FORMAT.valueOf(System.getProperty("export.format", "csv").toUpperCase(Locale.ROOT));
+            exporter = new RecordingExporter(Integer.getInteger("batch.threads", Runtime.getRuntime().availableProcessors()),
+                    Integer.getInteger("export.decimals", RecordingExporter.DEFAULT_DECIMALS));
+        }catch(IllegalArgumentException e){
+            System.err.println("Error in export settings: "+e.getLocalizedMessage());
+            return;
+        }
+        String directory = System.getProperty("export.dir");
+        if(directory != null)
+            new File(directory).mkdirs();
+
+        long start = System.nanoTime();
+        long records = 0, bytes = 0;
+        for(ArrayList<File> files : BatchAnalysis.findSessions(paths.toArray(new String[paths.size()]))){
+            String name = files.get(0).getName();
+            if(!RecordingReader.isRecordingFile(name)){
+                System.err.println("Error exporting " + files.get(0) + ": not a recording nor a directory");
+                continue;
+            }
+            int dash = name.lastIndexOf('-');
+            String prefix = dash < 0 ? name.substring(0, name.lastIndexOf('.')) : name.substring(0, dash);
+            File output = new File(directory != null ? new File(directory) : files.get(0).getAbsoluteFile().getParentFile(),
+                    prefix + "." + format.name().toLowerCase(Locale.ROOT));
+
+            try(RecordingSession session = new RecordingSession(files)){
+                records += exporter.export(session, output, format);
+                bytes += output.length();
+                System.err.println(name + ": " + session.getRecordCount() + " records to " + output);
+            }catch(IOException e){
+                System.err.println("Error exporting " + name + ": " + e.getLocalizedMessage());
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format("%d records, %.1f MB in %.1f s (%.0f MB/s, %d threads)",
+                records, bytes / 1e6, seconds, bytes / 1e6 / seconds, exporter.getParallelism()));
+        exporter.shutdown();
+    }
+
+}
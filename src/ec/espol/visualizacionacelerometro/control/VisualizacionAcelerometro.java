@@ -17,7 +17,6 @@
 package ec.espol.visualizacionacelerometro.control;
 
 import ec.espol.visualizacionacelerometro.GUI.VisualizacionFrame;
-import ec.espol.visualizacionacelerometro.data.*;
 
 /**
  * Main controller class.
@@ -26,12 +25,28 @@ import ec.espol.visualizacionacelerometro.data.*;
 public class VisualizacionAcelerometro {
     
     static private VisualizacionFrame frame;
-    static private DataCollectionInterface dataSource;
+    static private DeviceManager deviceManager;
 
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        //Runs without GUI with -Dheadless=true or --headless, see HeadlessAcquisition
+        if(HeadlessAcquisition.isRequested(args)){
+            HeadlessAcquisition.main(args);
+            return;
+        }
+        //Analyzes recordings with --analyze path..., see BatchAnalysis
+        if(BatchAnalysis.isRequested(args)){
+            BatchAnalysis.main(args);
+            return;
+        }
+        //Exports recordings with --export path..., see RecordingExport
+        if(RecordingExport.isRequested(args)){
+            RecordingExport.main(args);
+            return;
+        }
+        
         /* Set the Nimbus look and feel */
         //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
         /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -55,24 +70,27 @@ public class VisualizacionAcelerometro {
         }
         //</editor-fold>
         
+        deviceManager = DeviceManager.fromSystemProperties(VisualizacionFrame.INIT_ALPHA);
+        
         frame = new VisualizacionFrame();
+        //Frame rate can be changed with -Dfps=N
+        frame.setFrameRate(Integer.getInteger("fps", VisualizacionFrame.DEFAULT_FRAME_RATE));
 
         /* Create and display the form */
         java.awt.EventQueue.invokeLater(() -> {
             frame.setVisible(true);
         });
         
-        dataSource = new SerialDataCollection();
         //sends the available serial ports to the GUI
-        frame.setComLinks(dataSource.getComLinks());
+        frame.setComLinks(deviceManager.getComLinks());
     }
     
     static public VisualizacionFrame getGUIFrame(){
         return frame;
     }
     
-    static  public DataCollectionInterface getDataSource(){
-        return dataSource;
+    static public DeviceManager getDeviceManager(){
+        return deviceManager;
     }
     
 }
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Decodes the compact binary accelerometer protocol.
+ * Each sample travels in a 7 byte frame:
+ * <pre>
+ *   0xA5 | seq | b0 b1 b2 b3 | crc
+ * </pre>
+ * seq is a sequence counter that wraps at 256. b0..b3 hold a big endian 32-bit word with the
+ * three 10-bit ADC readings packed as x&lt;&lt;20 | y&lt;&lt;10 | z (the two top bits are zero).
+ * crc is a CRC-8 (polynomial 0x07, initial value 0) of the seq and payload bytes.
+ * Frames are decoded in place from the caller's buffer, only a frame split between two
+ * buffers is copied. Corrupted frames are skipped by searching the next sync byte.
+ * @author Federico Domínguez
+ */
+public class AccBinaryDecoder {
+
+    //Frame start marker
+    public static final int SYNC = 0xA5;
+
+    //Bytes per frame
+    public static final int FRAME_LENGTH = 7;
+
+    //Mask of a 10-bit channel
+    private static final int CHANNEL_MASK = 0x3FF;
+
+    //CRC-8 lookup table, polynomial 0x07
+    private static final byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for(int i = 0; i < 256; i++){
+            int crc = i;
+            for(int bit = 0; bit < 8; bit++)
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+    private final SampleListenerInterface listener;
+
+    //Holds a frame split between two buffers
+    private final byte[] pending;
+    private int pendingLength;
+
+    //Sequence number of the last good frame, -1 before the first one
+    private int lastSequence;
+
+    //Counters
+    private long framesOk;
+    private long crcErrors;
+    private long framesLost;
+    private long bytesSkipped;
+
+    public AccBinaryDecoder(SampleListenerInterface listener){
+        this.listener = listener;
+        pending = new byte[FRAME_LENGTH];
+        pendingLength = 0;
+        lastSequence = -1;
+    }
+
+    /**
+     * Decodes a block of bytes. Every good frame is sent to the listener,
+     * a trailing partial frame is kept for the next call.
+     * @param data Buffer with the incoming bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     */
+    public void feed(byte[] data, int offset, int length){
+        int i = offset;
+        int end = offset + length;
+
+        //Completes the frame left over from the previous block
+        while(pendingLength > 0 && i < end){
+            int n = Math.min(FRAME_LENGTH - pendingLength, end - i);
+            System.arraycopy(data, i, pending, pendingLength, n);
+            pendingLength += n;
+            i += n;
+
+            if(pendingLength < FRAME_LENGTH)
+                return;
+
+            if(decodeFrame(pending, 0)){
+                pendingLength = 0;
+            }else{
+                crcErrors++;
+                resyncPending();
+            }
+        }
+
+        //Frames fully inside the block are decoded in place
+        while(i + FRAME_LENGTH <= end){
+            if((data[i] & 0xFF) != SYNC){
+                bytesSkipped++;
+                i++;
+            }else if(decodeFrame(data, i)){
+                i += FRAME_LENGTH;
+            }else{
+                crcErrors++;
+                bytesSkipped++;
+                i++;
+            }
+        }
+
+        //Keeps the start of the next frame
+        while(i < end && (data[i] & 0xFF) != SYNC){
+            bytesSkipped++;
+            i++;
+        }
+        if(i < end){
+            pendingLength = end - i;
+            System.arraycopy(data, i, pending, 0, pendingLength);
+        }
+    }
+
+    /**
+     * Drops any partial frame and forgets the sequence number, for example when the port is closed.
+     */
+    public void reset(){
+        pendingLength = 0;
+        lastSequence = -1;
+    }
+
+    /**
+     * Shifts the pending bytes to the next sync byte after a corrupted frame.
+     */
+    private void resyncPending(){
+        int k = 1;
+        while(k < pendingLength && (pending[k] & 0xFF) != SYNC)
+            k++;
+        bytesSkipped += k;
+        System.arraycopy(pending, k, pending, 0, pendingLength - k);
+        pendingLength -= k;
+    }
+
+    /**
+     * Checks and decodes the frame starting at the given position.
+     * @return false if the CRC doesn't match.
+     */
+    private boolean decodeFrame(byte[] data, int offset){
+        if(crc8(data, offset + 1, FRAME_LENGTH - 2) != data[offset + FRAME_LENGTH - 1])
+            return false;
+
+        int sequence = data[offset + 1] & 0xFF;
+        if(lastSequence >= 0)
+            framesLost += (sequence - lastSequence - 1) & 0xFF;
+        lastSequence = sequence;
+
+        int word = (data[offset + 2] & 0xFF) << 24
+                 | (data[offset + 3] & 0xFF) << 16
+                 | (data[offset + 4] & 0xFF) << 8
+                 | (data[offset + 5] & 0xFF);
+
+        framesOk++;
+        listener.receiveSample((word >>> 20) & CHANNEL_MASK, (word >>> 10) & CHANNEL_MASK, word & CHANNEL_MASK);
+        return true;
+    }
+
+    /**
+     * Encodes a sample as a binary frame. Reference implementation of the device side.
+     * @param sequence Sequence counter, only the low 8 bits are used.
+     * @param x x-axis ADC reading (10 bits).
+     * @param y y-axis ADC reading (10 bits).
+     * @param z z-axis ADC reading (10 bits).
+     * @param out Buffer receiving the frame.
+     * @param offset Index where the frame starts, FRAME_LENGTH bytes are written.
+     */
+    public static void encode(int sequence, int x, int y, int z, byte[] out, int offset){
+        int word = (x & CHANNEL_MASK) << 20 | (y & CHANNEL_MASK) << 10 | (z & CHANNEL_MASK);
+        out[offset] = (byte) SYNC;
+        out[offset + 1] = (byte) sequence;
+        out[offset + 2] = (byte) (word >>> 24);
+        out[offset + 3] = (byte) (word >>> 16);
+        out[offset + 4] = (byte) (word >>> 8);
+        out[offset + 5] = (byte) word;
+        out[offset + 6] = crc8(out, offset + 1, FRAME_LENGTH - 2);
+    }
+
+    /**
+     * CRC-8 with polynomial 0x07 and initial value 0.
+     */
+    public static byte crc8(byte[] data, int offset, int length){
+        int crc = 0;
+        for(int i = offset; i < offset + length; i++)
+            crc = CRC_TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+        return (byte) crc;
+    }
+
+    /**
+     * Tells if a block contains at least the given number of consecutive valid frames.
+     * Used to detect the protocol spoken by a device.
+     * @param data Buffer with the incoming bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     * @param frames Number of consecutive valid frames required.
+     * @return true if the frames were found.
+     */
+    public static boolean containsFrames(byte[] data, int offset, int length, int frames){
+        int end = offset + length;
+
+        for(int i = offset; i + FRAME_LENGTH*frames <= end; i++){
+            int found = 0;
+            int j = i;
+            while(found < frames && (data[j] & 0xFF) == SYNC
+                    && crc8(data, j + 1, FRAME_LENGTH - 2) == data[j + FRAME_LENGTH - 1]){
+                found++;
+                j += FRAME_LENGTH;
+            }
+            if(found == frames)
+                return true;
+        }
+        return false;
+    }
+
+    public long getFramesOk(){
+        return framesOk;
+    }
+
+    public long getCrcErrors(){
+        return crcErrors;
+    }
+
+    public long getFramesLost(){
+        return framesLost;
+    }
+
+    public long getBytesSkipped(){
+        return bytesSkipped;
+    }
+
+}
@@ -16,6 +16,7 @@
  */
 package ec.espol.visualizacionacelerometro.data;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /**
@@ -26,9 +27,21 @@ import java.util.ArrayList;
  */
 public class AccDataParser {
     
+    /**
+     * Enumeration of possible results of the fast parsing methods.
+     */
+    static public enum PARSE_RESULT {
+        PARSE_OK, PARSE_EMPTY, PARSE_MISSING_FIELD, PARSE_BAD_CHARACTER};
+    
+    //Number of axis values expected in each line
+    public static final int AXES = 3;
+    
     //Tab by default
     private String separator;
     
+    //Characters of the separator, used by the fast parsing methods
+    private byte[] separatorBytes;
+    
     //Maximum G reading supported by the acceleromenter
     public final double MAX_G = 3;
     
@@ -41,46 +54,196 @@ public class AccDataParser {
     //Arduino ADC bit resolution (10-bits)
     public final int ADC_BITS = 1024;
     
+    //Scratch values for the fast parsing path
+    private final double[] adc;
+    
     public AccDataParser(){
-        separator = "\t";
+        adc = new double[AXES];
+        setSaparator("\t");
     }
     
     public void setSaparator(String separator){
         this.separator = separator;
+        
+        //Both the escaped and the literal form of the separator are accepted by the fast path
+        String literal = separator.replace("\\t", "\t");
+        separatorBytes = literal.getBytes(StandardCharsets.US_ASCII);
     }
     
     public String getSeparator(){
         return separator;
     }
     
+    /**
+     * Converts a direct ADC reading to acceleration in g units.
+     * @param adcValue ADC reading.
+     * @return Acceleration in g units.
+     */
+    public double toG(double adcValue){
+        return V_ARDUINO_REF*(adcValue/ADC_BITS)*(2*MAX_G/V_ACC_REF) - MAX_G;
+    }
+    
+    /**
+     * Converts a block of direct ADC readings to acceleration in g units.
+     * @param adcValues ADC readings.
+     * @param g Receives the accelerations at the same positions, it may be the same array as adcValues.
+     * @param offset Position of the first reading.
+     * @param length Number of readings.
+     */
+    public void toG(double[] adcValues, double[] g, int offset, int length){
+        //Same equation as toG(double), folded into a single multiply-add
+        double scale = V_ARDUINO_REF/ADC_BITS*(2*MAX_G/V_ACC_REF);
+        for(int i = offset; i < offset + length; i++)
+            g[i] = adcValues[i]*scale - MAX_G;
+    }
+    
+    /**
+     * Converts the ADC readings of a batch to acceleration in g units, into its x,y,z columns.
+     * @param batch Batch with its time and raw columns filled.
+     */
+    public void toG(SampleBatch batch){
+        double scale = V_ARDUINO_REF/ADC_BITS*(2*MAX_G/V_ACC_REF);
+        short[] raw = batch.raw;
+        double[] x = batch.x, y = batch.y, z = batch.z;
+        for(int i = 0, n = batch.getLength(); i < n; i++){
+            x[i] = raw[3*i]*scale - MAX_G;
+            y[i] = raw[3*i + 1]*scale - MAX_G;
+            z[i] = raw[3*i + 2]*scale - MAX_G;
+        }
+    }
+    
+    /**
+     * Converts acceleration in g units to the ADC reading that would produce it.
+     * @param g Acceleration in g units.
+     * @return ADC reading, not rounded nor clipped.
+     */
+    public double toADC(double g){
+        return (g + MAX_G)*(V_ACC_REF/(2*MAX_G))*ADC_BITS/V_ARDUINO_REF;
+    }
+    
     /**
      * Parses the x,y,z axis values using the separator value to split them.
+     * Compatibility wrapper around {@link #parse(byte[], int, int, double[])}.
      * @param data String with x,y,z values, concatenated with a separator.
      * @return Array list with x,y,z values in g units. Returns null if data is corrupted and can't be parsed.
      */
     public ArrayList<Double> parse(String data){
-        ArrayList<Double> xyz = new ArrayList();
+        byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        double[] g = new double[AXES];
         
-        String[] splitData = data.split(separator);
-
-        try{           
-            double x = Double.parseDouble(splitData[0].trim());
-            double y = Double.parseDouble(splitData[1].trim());
-            double z = Double.parseDouble(splitData[2].trim());
-
-            double xG = V_ARDUINO_REF*(x/ADC_BITS)*(2*MAX_G/V_ACC_REF) - MAX_G;
-            double yG = V_ARDUINO_REF*(y/ADC_BITS)*(2*MAX_G/V_ACC_REF) - MAX_G;
-            double zG = V_ARDUINO_REF*(z/ADC_BITS)*(2*MAX_G/V_ACC_REF) - MAX_G;
-            
-            xyz.add(0, xG);
-            xyz.add(1, yG);
-            xyz.add(2, zG);
-        }catch(Exception e){
-            System.out.println("Error parsing: "+e.getClass().getName());
+        PARSE_RESULT result = parse(bytes, 0, bytes.length, g);
+        if(result != PARSE_RESULT.PARSE_OK){
+            System.out.println("Error parsing: "+result);
             return null;
         }
         
+        ArrayList<Double> xyz = new ArrayList();
+        xyz.add(0, g[0]);
+        xyz.add(1, g[1]);
+        xyz.add(2, g[2]);
+        
         return xyz;
     }
     
+    /**
+     * Parses the x,y,z axis values straight from a byte range and converts them to g units.
+     * Does not allocate nor throw exceptions on malformed data.
+     * @param data Buffer holding the line, without terminator.
+     * @param offset Index of the first byte of the line.
+     * @param length Line length.
+     * @param xyz Receives the x,y,z values in g units. Only written when the result is PARSE_OK.
+     * @return PARSE_RESULT enumeration.
+     */
+    public PARSE_RESULT parse(byte[] data, int offset, int length, double[] xyz){
+        PARSE_RESULT result = parseRaw(data, offset, length, adc);
+        
+        if(result == PARSE_RESULT.PARSE_OK){
+            xyz[0] = toG(adc[0]);
+            xyz[1] = toG(adc[1]);
+            xyz[2] = toG(adc[2]);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Parses the x,y,z direct ADC readings from a byte range.
+     * Values are decimal numbers separated by the separator or white space, extra fields are ignored.
+     * @param data Buffer holding the line, without terminator.
+     * @param offset Index of the first byte of the line.
+     * @param length Line length.
+     * @param values Receives the x,y,z ADC readings. Only written when the result is PARSE_OK.
+     * @return PARSE_RESULT enumeration.
+     */
+    public PARSE_RESULT parseRaw(byte[] data, int offset, int length, double[] values){
+        int end = offset + length;
+        int i = offset;
+        int field = 0;
+        double x = 0, y = 0;
+        
+        while(field < AXES){
+            //Skips separators between fields
+            while(i < end && isSeparator(data[i]))
+                i++;
+            
+            if(i == end)
+                return field == 0 ? PARSE_RESULT.PARSE_EMPTY : PARSE_RESULT.PARSE_MISSING_FIELD;
+            
+            boolean negative = false;
+            if(data[i] == '-' || data[i] == '+'){
+                negative = data[i] == '-';
+                i++;
+            }
+            
+            //Integer part
+            int digits = 0;
+            double value = 0;
+            while(i < end && data[i] >= '0' && data[i] <= '9'){
+                value = value*10 + (data[i] - '0');
+                digits++;
+                i++;
+            }
+            
+            //Optional fractional part
+            if(i < end && data[i] == '.'){
+                i++;
+                double scale = 0.1;
+                while(i < end && data[i] >= '0' && data[i] <= '9'){
+                    value += (data[i] - '0')*scale;
+                    scale *= 0.1;
+                    digits++;
+                    i++;
+                }
+            }
+            
+            if(digits == 0 || (i < end && !isSeparator(data[i])))
+                return PARSE_RESULT.PARSE_BAD_CHARACTER;
+            
+            if(negative)
+                value = -value;
+            
+            if(field == 0)
+                x = value;
+            else if(field == 1)
+                y = value;
+            else{
+                values[0] = x;
+                values[1] = y;
+                values[2] = value;
+            }
+            field++;
+        }
+        
+        return PARSE_RESULT.PARSE_OK;
+    }
+    
+    private boolean isSeparator(byte b){
+        if(b == ' ' || b == '\t' || b == '\r')
+            return true;
+        for(int i = 0; i < separatorBytes.length; i++)
+            if(separatorBytes[i] == b)
+                return true;
+        return false;
+    }
+    
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Second order IIR section (biquad), in transposed direct form II.
+ * y(n) = b0*x(n) + b1*x(n-1) + b2*x(n-2) - a1*y(n-1) - a2*y(n-2)
+ * The coefficients are held in an immutable object that can be replaced from any thread (for example
+ * the GUI) while another thread is filtering, without locks: the filtering thread picks the new
+ * coefficients at its next sample or block and keeps its state.
+ * See http://www.musicdsp.org/files/Audio-EQ-Cookbook.txt for the design equations.
+ * @author Federico Domínguez
+ */
+public class BiquadFilter implements DataFilterInterface {
+
+    /**
+     * Enumeration of filter responses.
+     */
+    static public enum RESPONSE {
+        LOW_PASS, HIGH_PASS};
+
+    //Quality factor of a second order Butterworth filter
+    public static final double BUTTERWORTH_Q = 1/Math.sqrt(2);
+
+    /**
+     * Normalized biquad coefficients (a0 = 1).
+     */
+    public static final class Coefficients {
+        public final double b0;
+        public final double b1;
+        public final double b2;
+        public final double a1;
+        public final double a2;
+
+        public Coefficients(double b0, double b1, double b2, double a1, double a2){
+            this.b0 = b0;
+            this.b1 = b1;
+            this.b2 = b2;
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        /**
+         * Designs a second order Butterworth filter.
+         * @param response LOW_PASS or HIGH_PASS.
+         * @param sampleRate Samples per second.
+         * @param cutoff Cutoff frequency in Hz, below half the sample rate.
+         * @return Coefficients of the filter.
+         */
+        public static Coefficients butterworth(RESPONSE response, double sampleRate, double cutoff){
+            if(cutoff <= 0 || cutoff >= sampleRate/2)
+                throw new IllegalArgumentException("Cutoff frequency out of range: " + cutoff);
+
+            double w0 = 2*Math.PI*cutoff/sampleRate;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0)/(2*BUTTERWORTH_Q);
+            double a0 = 1 + alpha;
+
+            double b1 = response == RESPONSE.LOW_PASS ? 1 - cos : -(1 + cos);
+            double b0 = Math.abs(b1)/2;
+            return new Coefficients(b0/a0, b1/a0, b0/a0, -2*cos/a0, (1 - alpha)/a0);
+        }
+    }
+
+    private volatile Coefficients coefficients;
+
+    //Filter state, only touched by the filtering thread
+    private double z1;
+    private double z2;
+
+    public BiquadFilter(Coefficients coefficients){
+        this.coefficients = coefficients;
+    }
+
+    /**
+     * Creates a second order Butterworth filter.
+     * @param response LOW_PASS or HIGH_PASS.
+     * @param sampleRate Samples per second.
+     * @param cutoff Cutoff frequency in Hz.
+     */
+    public BiquadFilter(RESPONSE response, double sampleRate, double cutoff){
+        this(Coefficients.butterworth(response, sampleRate, cutoff));
+    }
+
+    @Override
+    public double filter(double datum) {
+        Coefficients c = coefficients;
+        double y = c.b0*datum + z1;
+        z1 = c.b1*datum - c.a1*y + z2;
+        z2 = c.b2*datum - c.a2*y;
+        return y;
+    }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        Coefficients c = coefficients;
+        double b0 = c.b0, b1 = c.b1, b2 = c.b2, a1 = c.a1, a2 = c.a2;
+        double s1 = z1;
+        double s2 = z2;
+        for(int i = off; i < off + len; i++){
+            double x = in[i];
+            double y = b0*x + s1;
+            s1 = b1*x - a1*y + s2;
+            s2 = b2*x - a2*y;
+            out[i] = y;
+        }
+        z1 = s1;
+        z2 = s2;
+    }
+
+    /**
+     * Replaces the coefficients, can be called from any thread.
+     * @param coefficients New coefficients.
+     */
+    public void setCoefficients(Coefficients coefficients){
+        this.coefficients = coefficients;
+    }
+
+    public Coefficients getCoefficients(){
+        return coefficients;
+    }
+
+    /**
+     * Clears the filter state. Must be called from the filtering thread.
+     */
+    public void reset(){
+        z1 = 0;
+        z2 = 0;
+    }
+
+}
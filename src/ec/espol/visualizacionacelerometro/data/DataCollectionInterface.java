@@ -54,4 +54,48 @@ public interface DataCollectionInterface {
      */
     public boolean isConnected();
     
+    /**
+     * Number of received readings that could not be parsed.
+     * @return Parse error count since the data source was created.
+     */
+    public long getParseErrorCount();
+    
+    /**
+     * Number of bytes received from the device.
+     * @return Byte count since the data source was created.
+     */
+    public long getBytesRead();
+    
+    /**
+     * Number of lines or binary frames received from the device, including those that could not be parsed.
+     * @return Frame count since the data source was created.
+     */
+    public long getFramesDecoded();
+    
+    /**
+     * Bus where the data source publishes its parsed samples (direct ADC readings).
+     * @return The bus of this data source.
+     */
+    public SampleBus getSampleBus();
+    
+    /**
+     * Receives batches of the parsed samples, in a thread of the subscription.
+     * A slow subscriber loses batches, it never delays the acquisition nor the other subscribers.
+     * @param subscriber Consumer of the batches.
+     * @param name Name of the subscriber.
+     * @param queueBatches Maximum number of batches waiting for the subscriber.
+     * @return The subscription, needed to unsubscribe.
+     */
+    default SampleBus.Subscription subscribe(SampleSubscriberInterface subscriber, String name, int queueBatches){
+        return getSampleBus().subscribe(subscriber, name, queueBatches);
+    }
+    
+    /**
+     * Stops receiving batches.
+     * @param subscription Subscription returned by subscribe().
+     */
+    default void unsubscribe(SampleBus.Subscription subscription){
+        getSampleBus().unsubscribe(subscription);
+    }
+    
 }
@@ -29,4 +29,18 @@ public interface DataFilterInterface {
      */
     double filter(double datum);
     
+    /**
+     * Filters a block of consecutive samples, in order.
+     * The default implementation calls {@link #filter(double)} for each sample, implementations
+     * may override it to keep their state in local variables during the whole block.
+     * @param in Un-filtered samples.
+     * @param out Receives the filtered samples at the same positions, it may be the same array as in.
+     * @param off Position of the first sample.
+     * @param len Number of samples.
+     */
+    default void filter(double[] in, double[] out, int off, int len){
+        for(int i = off; i < off + len; i++)
+            out[i] = filter(in[i]);
+    }
+    
 }
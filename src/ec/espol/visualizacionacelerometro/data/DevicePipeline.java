@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import ec.espol.visualizacionacelerometro.metrics.LatencyHistogram;
+import ec.espol.visualizacionacelerometro.network.SampleForwarder;
+import ec.espol.visualizacionacelerometro.storage.SessionRecorder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Processing pipeline of a single device.
+ * The data source decodes samples in its own thread (framer, parser) and queues the direct ADC
+ * readings in a ring buffer. A dedicated worker thread drains the ring buffer into pooled {@link SampleBatch}es,
+ * converts the readings to g units, applies the EMA filter and the filter chain of each axis in place,
+ * hands the batch to the recorder (if any), publishes the latest filtered sample and the filtered batch,
+ * so each device is processed independently of the others. Consumers of the unfiltered samples subscribe
+ * to the data source's {@link SampleBus}, consumers of the filtered ones to {@link #getFilteredBus()}.
+ * @author Federico Domínguez
+ */
+public class DevicePipeline implements Runnable {
+
+    /**
+     * Enumeration of device states, as shown by the connection indicator.
+     */
+    static public enum DEVICE_STATUS {
+        DEVICE_OFF, DEVICE_OK, DEVICE_ERROR};
+
+    //Samples queued between the data source and the worker
+    public static final int BUFFER_SIZE = 8192;
+
+    //Samples drained from the buffer in each step, one batch of the filtered bus
+    public static final int DRAIN_BATCH = SampleBus.BATCH_SIZE;
+
+    //Longest worker sleep when there is no data, the data source wakes it up sooner
+    private static final long IDLE_NANOS = 10000000;
+
+    private final String name;
+    private final DataCollectionInterface source;
+    private final SampleRingBuffer samples;
+
+    //Worker state, only touched by the worker thread
+    private final AccDataParser converter;
+    private final TriaxialEMAFilter filter;
+
+    //Filtered batches are published here, they come from its pool
+    private final SampleBus filteredBus;
+
+    //Additional filters of each axis, applied after the EMA filter
+    private final FilterChain[] chains;
+
+    //Optional recording of every sample
+    private SessionRecorder recorder;
+
+    //Optional spectral analysis of the unfiltered samples
+    private SpectrumAnalyzer spectrum;
+
+    //Optional forwarding of the filtered samples to a collector
+    private SampleForwarder forwarder;
+
+    //Optional history of the filtered samples, for the strip chart
+    private SampleHistory history;
+
+    //Optional off-heap store of every filtered sample
+    private SessionStore store;
+    
+    //Filter coefficient requested by the GUI, applied by the worker
+    private volatile double alpha;
+
+    private volatile boolean running;
+    private Thread worker;
+
+    //Latest filtered sample, guarded by latestLock
+    private final Object latestLock;
+    private double latestX;
+    private double latestY;
+    private double latestZ;
+    private long latestTime;
+    private volatile long sampleCount;
+
+    //Time from reception to filtering (worker thread) and to display (GUI thread)
+    private final LatencyHistogram filterLatency;
+    private final LatencyHistogram paintLatency;
+    private volatile long framesRendered;
+
+    //Last values seen by pollStatus()
+    private long statusSamples;
+    private long statusErrors;
+    private DEVICE_STATUS status;
+
+    /**
+     * @param name Name of the device, the communication link passed to the data source.
+     * @param source Data source, it must queue its samples in the given ring buffer.
+     * @param samples Ring buffer filled by the data source with direct ADC readings.
+     * @param alpha Initial EMA filter coefficient.
+     */
+    public DevicePipeline(String name, DataCollectionInterface source, SampleRingBuffer samples, double alpha){
+        this.name = name;
+        this.source = source;
+        this.samples = samples;
+        this.alpha = alpha;
+
+        converter = new AccDataParser();
+        filter = new TriaxialEMAFilter(alpha);
+        filteredBus = new SampleBus();
+        chains = new FilterChain[AccDataParser.AXES];
+        for(int i = 0; i < AccDataParser.AXES; i++)
+            chains[i] = new FilterChain();
+
+        latestLock = new Object();
+        filterLatency = new LatencyHistogram();
+        paintLatency = new LatencyHistogram();
+        status = DEVICE_STATUS.DEVICE_OFF;
+    }
+
+    /**
+     * Connects the data source and starts the worker thread.
+     * @return CONNECTION_RESULT enumeration.
+     */
+    public DataCollectionInterface.CONNECTION_RESULT start(){
+        DataCollectionInterface.CONNECTION_RESULT result = source.connect(name);
+
+        if(result == DataCollectionInterface.CONNECTION_RESULT.CONNECTION_OK && worker == null){
+            if(recorder != null)
+                recorder.start();
+            if(spectrum != null)
+                spectrum.start(source);
+            if(forwarder != null)
+                forwarder.start(filteredBus);
+            if(history != null)
+                history.start(filteredBus);
+            if(store != null)
+                store.start(filteredBus);
+            running = true;
+            worker = new Thread(this, "Pipeline " + name);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        return result;
+    }
+
+    /**
+     * Disconnects the data source and stops the worker thread.
+     */
+    public void stop(){
+        source.disconnect();
+
+        running = false;
+        if(worker != null){
+            LockSupport.unpark(worker);
+            try{
+                worker.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            worker = null;
+        }
+        samples.clear();
+        
+        if(recorder != null)
+            recorder.stop();
+        if(spectrum != null)
+            spectrum.stop();
+        if(forwarder != null)
+            forwarder.stop();
+        if(history != null)
+            history.stop();
+        if(store != null)
+            store.stop();
+    }
+
+    @Override
+    public void run() {
+        double currentAlpha = alpha;
+
+        SampleBatchPool pool = filteredBus.getPool();
+        SampleBatch batch = pool.acquire();
+
+        while(running){
+            int n = samples.drainTo(batch);
+            if(n == 0){
+                samples.awaitSamples(IDLE_NANOS);
+                continue;
+            }
+
+            if(alpha != currentAlpha){
+                currentAlpha = alpha;
+                filter.setAlpha(currentAlpha);
+            }
+
+            //Whole batch at once and in place, the raw readings are kept for the recorder
+            converter.toG(batch);
+            filter.filter(batch.x, batch.y, batch.z, 0, n);
+            chains[0].filter(batch.x, batch.x, 0, n);
+            chains[1].filter(batch.y, batch.y, 0, n);
+            chains[2].filter(batch.z, batch.z, 0, n);
+
+            if(recorder != null)
+                recorder.append(batch);
+
+            synchronized(latestLock){
+                latestX = batch.x[n - 1];
+                latestY = batch.y[n - 1];
+                latestZ = batch.z[n - 1];
+                latestTime = batch.nanoTime[n - 1];
+            }
+            sampleCount += n;
+
+            long now = System.nanoTime();
+            for(int i = 0; i < n; i++)
+                filterLatency.record(now - batch.nanoTime[i]);
+
+            //Subscribers keep their own reference, the batch is reused when it is not published
+            if(filteredBus.hasSubscribers()){
+                filteredBus.publish(batch);
+                batch.release();
+                batch = pool.acquire();
+            }else
+                batch.setLength(0);
+        }
+        batch.release();
+    }
+
+    /**
+     * Copies the latest filtered sample.
+     * @param xyz Receives the x,y,z values in g units.
+     * @return Reception time of the sample as given by System.nanoTime().
+     */
+    public long readLatest(double[] xyz){
+        synchronized(latestLock){
+            xyz[0] = latestX;
+            xyz[1] = latestY;
+            xyz[2] = latestZ;
+            return latestTime;
+        }
+    }
+
+    /**
+     * Counts a displayed sample and its latency. Must always be called from the same thread (the GUI).
+     * @param sampleTime Reception time of the displayed sample, as returned by readLatest().
+     */
+    public void framePainted(long sampleTime){
+        paintLatency.record(System.nanoTime() - sampleTime);
+        framesRendered++;
+    }
+
+    /**
+     * Updates the device state. Errors are reported if lines failed to parse since the previous call.
+     * Must always be called from the same thread (for example the GUI).
+     * @return DEVICE_STATUS enumeration.
+     */
+    public DEVICE_STATUS pollStatus(){
+        long errors = source.getParseErrorCount();
+        long count = sampleCount;
+
+        if(!source.isConnected())
+            status = DEVICE_STATUS.DEVICE_OFF;
+        else if(errors != statusErrors)
+            status = DEVICE_STATUS.DEVICE_ERROR;
+        else if(count != statusSamples)
+            status = DEVICE_STATUS.DEVICE_OK;
+
+        statusErrors = errors;
+        statusSamples = count;
+        return status;
+    }
+
+    /**
+     * Sets the EMA filter coefficient of all three axes.
+     * @param alpha New coefficient, applied by the worker before its next batch.
+     */
+    public void setAlpha(double alpha){
+        this.alpha = alpha;
+    }
+
+    /**
+     * Filters applied to one axis after the EMA filter, empty by default.
+     * Its stages can be replaced while the pipeline is running.
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Filter chain of the axis.
+     */
+    public FilterChain getFilterChain(int axis){
+        return chains[axis];
+    }
+
+    /**
+     * Records every sample of this device. Must be set before the pipeline is started.
+     * @param recorder Recorder, null to disable recording.
+     */
+    public void setRecorder(SessionRecorder recorder){
+        this.recorder = recorder;
+    }
+    
+    public SessionRecorder getRecorder(){
+        return recorder;
+    }
+
+    /**
+     * Analyzes the spectrum of this device, the analyzer subscribes to the data source when the
+     * pipeline is started. Must be set before the pipeline is started.
+     * @param spectrum Analyzer, null to disable the analysis.
+     */
+    public void setSpectrumAnalyzer(SpectrumAnalyzer spectrum){
+        this.spectrum = spectrum;
+    }
+
+    public SpectrumAnalyzer getSpectrumAnalyzer(){
+        return spectrum;
+    }
+
+    /**
+     * Sends the filtered samples of this device to a collector, the forwarder subscribes to the
+     * filtered bus when the pipeline is started. Must be set before the pipeline is started.
+     * @param forwarder Forwarder, null to disable forwarding.
+     */
+    public void setForwarder(SampleForwarder forwarder){
+        this.forwarder = forwarder;
+    }
+
+    public SampleForwarder getForwarder(){
+        return forwarder;
+    }
+
+    /**
+     * Keeps the last filtered samples of this device, the history subscribes to the filtered bus
+     * when the pipeline is started. Must be set before the pipeline is started.
+     * @param history History, null to keep none.
+     */
+    public void setHistory(SampleHistory history){
+        this.history = history;
+    }
+
+    public SampleHistory getHistory(){
+        return history;
+    }
+
+    /**
+     * Keeps the filtered samples of this device off the heap, as many as the store budget allows.
+     * The store subscribes to the filtered bus when the pipeline is started and gives its memory back
+     * when it is stopped. Must be set before the pipeline is started.
+     * @param store Store, null to keep none.
+     */
+    public void setStore(SessionStore store){
+        this.store = store;
+    }
+
+    public SessionStore getStore(){
+        return store;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public DataCollectionInterface getSource(){
+        return source;
+    }
+
+    /**
+     * Publishes the filtered samples of this device, in g units, together with their ADC readings.
+     * @return Bus of the filtered batches.
+     */
+    public SampleBus getFilteredBus(){
+        return filteredBus;
+    }
+
+    public SampleRingBuffer getSampleBuffer(){
+        return samples;
+    }
+
+    /**
+     * @return Number of samples filtered since the pipeline was created.
+     */
+    public long getSampleCount(){
+        return sampleCount;
+    }
+
+    /**
+     * @return Latencies from reception to filtering of every sample.
+     */
+    public LatencyHistogram getFilterLatency(){
+        return filterLatency;
+    }
+
+    /**
+     * @return Latencies from reception to display of the displayed samples.
+     */
+    public LatencyHistogram getPaintLatency(){
+        return paintLatency;
+    }
+
+    public long getFramesRendered(){
+        return framesRendered;
+    }
+
+    public boolean isRunning(){
+        return running;
+    }
+
+}
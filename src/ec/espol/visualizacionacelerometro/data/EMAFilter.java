@@ -45,6 +45,24 @@ public class EMAFilter implements DataFilterInterface {
         
         return s;
     }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        if(len <= 0)
+            return;
+        if(isFirst){
+            previousDatum = in[off];
+            isFirst = false;
+        }
+        
+        double a = alpha;
+        double s = previousDatum;
+        for(int i = off; i < off + len; i++){
+            s = a*in[i] + (1-a)*s;
+            out[i] = s;
+        }
+        previousDatum = s;
+    }
     
     public void setAlpha(double alpha){
         this.alpha = alpha;
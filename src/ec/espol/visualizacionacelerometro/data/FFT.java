@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * In-place radix-2 complex FFT of a fixed size.
+ * Twiddle factors and the bit reversal permutation are computed once at construction,
+ * transforms don't allocate. An instance can be shared by threads, it holds no transform state.
+ * @author Federico Domínguez
+ */
+public class FFT {
+
+    private final int size;
+    private final int[] reversed;
+    private final double[] cos;
+    private final double[] sin;
+
+    /**
+     * @param size Transform length, a power of two.
+     */
+    public FFT(int size){
+        if(size < 2 || Integer.bitCount(size) != 1)
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        this.size = size;
+
+        int bits = Integer.numberOfTrailingZeros(size);
+        reversed = new int[size];
+        for(int i = 0; i < size; i++)
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+
+        cos = new double[size/2];
+        sin = new double[size/2];
+        for(int i = 0; i < size/2; i++){
+            cos[i] = Math.cos(2*Math.PI*i/size);
+            sin[i] = -Math.sin(2*Math.PI*i/size);
+        }
+    }
+
+    /**
+     * Forward transform, X(k) = sum x(n) e^(-j 2 pi k n / N).
+     * @param re Real parts, replaced by the real parts of the transform.
+     * @param im Imaginary parts, replaced by the imaginary parts of the transform.
+     */
+    public void transform(double[] re, double[] im){
+        //Bit reversal permutation
+        for(int i = 0; i < size; i++){
+            int j = reversed[i];
+            if(j > i){
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+
+        //Butterflies
+        for(int half = 1; half < size; half <<= 1){
+            int step = size/(2*half);
+            for(int start = 0; start < size; start += 2*half){
+                for(int k = 0, w = 0; k < half; k++, w += step){
+                    int a = start + k;
+                    int b = a + half;
+                    double tr = cos[w]*re[b] - sin[w]*im[b];
+                    double ti = cos[w]*im[b] + sin[w]*re[b];
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+
+    /**
+     * Inverse transform, scaled by 1/N so that inverse(transform(x)) = x.
+     * @param re Real parts, replaced by the real parts of the inverse transform.
+     * @param im Imaginary parts, replaced by the imaginary parts of the inverse transform.
+     */
+    public void inverse(double[] re, double[] im){
+        //Conjugate, forward transform, conjugate
+        for(int i = 0; i < size; i++)
+            im[i] = -im[i];
+        transform(re, im);
+        double scale = 1.0/size;
+        for(int i = 0; i < size; i++){
+            re[i] *= scale;
+            im[i] *= -scale;
+        }
+    }
+
+    public int getSize(){
+        return size;
+    }
+
+    /**
+     * @return Smallest power of two greater than or equal to n.
+     */
+    public static int nextPowerOfTwo(int n){
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.Arrays;
+
+/**
+ * FIR (finite impulse response) filter. y(n) = sum h(j)*x(n-j), j = 0..taps-1
+ * Short kernels are applied in direct form. Long kernels are applied to blocks of samples by FFT
+ * overlap-save convolution: the previous taps-1 samples and up to one block of new samples are
+ * transformed, multiplied by the transform of the kernel and transformed back. Since outputs only
+ * depend on past samples, a partially filled block gives exact outputs, so blocks of any length are
+ * filtered without added latency. Blocks too short to pay for the transforms use the direct form.
+ * All work arrays are allocated at construction.
+ * The filter delays the signal by its group delay (half the kernel length for linear phase kernels).
+ * @author Federico Domínguez
+ */
+public class FIRFilter implements DataFilterInterface {
+
+    //Longer kernels use the FFT for long enough blocks
+    public static final int DIRECT_MAX_TAPS = 32;
+
+    //Samples filtered between shifts of the history, in direct form
+    private static final int DIRECT_BLOCK = 256;
+
+    private final double[] taps;
+    private final int overlap;
+
+    //Previous samples followed by the current block, history is at [0, overlap)
+    private final double[] samples;
+
+    //Overlap-save state, null for direct form kernels
+    private final FFT fft;
+    private final double[] kernelRe;
+    private final double[] kernelIm;
+    private final double[] workRe;
+    private final double[] workIm;
+    private final int blockLength;
+    private final int fftCost;
+
+    /**
+     * @param taps Filter kernel h(j), copied.
+     */
+    public FIRFilter(double[] taps){
+        if(taps.length == 0)
+            throw new IllegalArgumentException("Empty FIR kernel");
+        this.taps = taps.clone();
+        overlap = taps.length - 1;
+
+        if(taps.length > DIRECT_MAX_TAPS){
+            //About three new samples per kernel tap on each transform
+            int size = FFT.nextPowerOfTwo(4*taps.length);
+            fft = new FFT(size);
+            blockLength = size - overlap;
+            kernelRe = new double[size];
+            kernelIm = new double[size];
+            System.arraycopy(taps, 0, kernelRe, 0, taps.length);
+            fft.transform(kernelRe, kernelIm);
+            workRe = new double[size];
+            workIm = new double[size];
+            //Rough multiply-add count of the two transforms and the product
+            fftCost = 3*size*Integer.numberOfTrailingZeros(size) + 4*size;
+        }else{
+            fft = null;
+            blockLength = DIRECT_BLOCK;
+            kernelRe = kernelIm = workRe = workIm = null;
+            fftCost = Integer.MAX_VALUE;
+        }
+        samples = new double[overlap + blockLength];
+    }
+
+    @Override
+    public double filter(double datum) {
+        samples[overlap] = datum;
+        double y = direct(0);
+        System.arraycopy(samples, 1, samples, 0, overlap);
+        return y;
+    }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        for(int p = off; p < off + len; p += blockLength){
+            int n = Math.min(blockLength, off + len - p);
+            System.arraycopy(in, p, samples, overlap, n);
+
+            if((long) n*taps.length > fftCost){
+                overlapSave(n);
+                for(int i = 0; i < n; i++)
+                    out[p + i] = workRe[overlap + i];
+            }else{
+                for(int i = 0; i < n; i++)
+                    out[p + i] = direct(i);
+            }
+
+            //The last samples become the history of the next block
+            System.arraycopy(samples, n, samples, 0, overlap);
+        }
+    }
+
+    /**
+     * @param i Position of the output sample in the current block.
+     */
+    private double direct(int i){
+        int last = overlap + i;
+        double y = 0;
+        for(int j = 0; j < taps.length; j++)
+            y += taps[j]*samples[last - j];
+        return y;
+    }
+
+    /**
+     * Convolves the history and n new samples, results are left in workRe starting at overlap.
+     */
+    private void overlapSave(int n){
+        int used = overlap + n;
+        System.arraycopy(samples, 0, workRe, 0, used);
+        Arrays.fill(workRe, used, workRe.length, 0);
+        Arrays.fill(workIm, 0);
+
+        fft.transform(workRe, workIm);
+        for(int k = 0; k < workRe.length; k++){
+            double re = workRe[k]*kernelRe[k] - workIm[k]*kernelIm[k];
+            workIm[k] = workRe[k]*kernelIm[k] + workIm[k]*kernelRe[k];
+            workRe[k] = re;
+        }
+        fft.inverse(workRe, workIm);
+    }
+
+    /**
+     * Clears the previous samples.
+     */
+    public void reset(){
+        Arrays.fill(samples, 0);
+    }
+
+    /**
+     * Delay of the low frequency components of the signal, in samples:
+     * sum(j*h(j))/sum(h(j)), (taps-1)/2 for linear phase kernels.
+     * Kernels that block low frequencies (high-pass) report (taps-1)/2.
+     * @return Group delay in samples, divide by the sample rate for seconds.
+     */
+    public double getGroupDelay(){
+        double sum = 0, moment = 0;
+        for(int j = 0; j < taps.length; j++){
+            sum += taps[j];
+            moment += j*taps[j];
+        }
+        return Math.abs(sum) < 1e-9 ? overlap/2.0 : moment/sum;
+    }
+
+    /**
+     * @return true if long blocks are filtered with the FFT.
+     */
+    public boolean usesFFT(){
+        return fft != null;
+    }
+
+    public int getTapCount(){
+        return taps.length;
+    }
+
+    /**
+     * Designs a linear phase low-pass kernel, windowed sinc with a Hamming window.
+     * @param tapCount Kernel length, made odd if needed.
+     * @param sampleRate Samples per second.
+     * @param cutoff Cutoff frequency in Hz, below half the sample rate.
+     * @return Kernel with unity gain at DC.
+     */
+    public static double[] lowPass(int tapCount, double sampleRate, double cutoff){
+        if(cutoff <= 0 || cutoff >= sampleRate/2)
+            throw new IllegalArgumentException("Cutoff frequency out of range: " + cutoff);
+        int m = tapCount | 1;
+        double fc = cutoff/sampleRate;
+        double[] h = new double[m];
+        double sum = 0;
+        for(int j = 0; j < m; j++){
+            int k = j - m/2;
+            double sinc = k == 0 ? 2*fc : Math.sin(2*Math.PI*fc*k)/(Math.PI*k);
+            h[j] = sinc*(0.54 - 0.46*Math.cos(2*Math.PI*j/(m - 1)));
+            sum += h[j];
+        }
+        for(int j = 0; j < m; j++)
+            h[j] /= sum;
+        return h;
+    }
+
+    /**
+     * Designs a linear phase high-pass kernel, by spectral inversion of {@link #lowPass(int, double, double)}.
+     * @param tapCount Kernel length, made odd if needed.
+     * @param sampleRate Samples per second.
+     * @param cutoff Cutoff frequency in Hz, below half the sample rate.
+     * @return Kernel with unity gain at half the sample rate.
+     */
+    public static double[] highPass(int tapCount, double sampleRate, double cutoff){
+        double[] h = lowPass(tapCount, sampleRate, cutoff);
+        for(int j = 0; j < h.length; j++)
+            h[j] = -h[j];
+        h[h.length/2] += 1;
+        return h;
+    }
+
+}
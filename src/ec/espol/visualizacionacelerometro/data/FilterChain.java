@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.ArrayList;
+
+/**
+ * Filter made of a sequence of filters (stages), each one fed with the output of the previous one.
+ * Blocks go through each stage in turn with the block API, in place after the first stage.
+ * The stages are held in an array that is never modified: another thread (for example the GUI)
+ * replaces the whole array without locks, and the filtering thread picks it at its next sample or block.
+ * Stages keep their own state, to change only their coefficients use updateStages() or the stage setters instead.
+ * @author Federico Domínguez
+ */
+public class FilterChain implements DataFilterInterface {
+
+    private volatile DataFilterInterface[] stages;
+
+    /**
+     * @param stages Filters in the order they are applied, none to pass samples unchanged.
+     */
+    public FilterChain(DataFilterInterface... stages){
+        this.stages = stages.clone();
+    }
+
+    @Override
+    public double filter(double datum) {
+        for(DataFilterInterface stage : stages)
+            datum = stage.filter(datum);
+        return datum;
+    }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        DataFilterInterface[] current = stages;
+        if(current.length == 0){
+            if(in != out)
+                System.arraycopy(in, off, out, off, len);
+            return;
+        }
+
+        current[0].filter(in, out, off, len);
+        for(int i = 1; i < current.length; i++)
+            current[i].filter(out, out, off, len);
+    }
+
+    /**
+     * Replaces all stages, can be called from any thread.
+     * @param stages Filters in the order they are applied, none to pass samples unchanged.
+     */
+    public void setStages(DataFilterInterface... stages){
+        this.stages = stages.clone();
+    }
+
+    /**
+     * Gives the current stages the coefficients of other stages of the same types, in the same order,
+     * keeping their state: the filtering thread picks them at its next sample or block, nothing is
+     * replaced or allocated. Only biquad, Kalman, median and EMA stages can be updated, and a median window
+     * can't grow past its capacity. Otherwise nothing is changed and the caller should replace the stages.
+     * Can be called from any thread.
+     * @param source Stages with the new coefficients, for example from createStages(). They are not used for filtering.
+     * @return True if the coefficients were copied, false if the stages don't match.
+     */
+    public boolean updateStages(DataFilterInterface... source){
+        DataFilterInterface[] current = stages;
+        if(current.length != source.length)
+            return false;
+
+        //Checks every stage before changing any of them
+        for(int i = 0; i < current.length; i++){
+            if(current[i].getClass() != source[i].getClass())
+                return false;
+            if(current[i] instanceof MedianFilter){
+                if(((MedianFilter) source[i]).getLength() > ((MedianFilter) current[i]).getCapacity())
+                    return false;
+            }else if(!(current[i] instanceof BiquadFilter || current[i] instanceof KalmanFilter
+                    || current[i] instanceof EMAFilter))
+                return false;
+        }
+
+        for(int i = 0; i < current.length; i++){
+            if(current[i] instanceof BiquadFilter)
+                ((BiquadFilter) current[i]).setCoefficients(((BiquadFilter) source[i]).getCoefficients());
+            else if(current[i] instanceof KalmanFilter)
+                ((KalmanFilter) current[i]).setNoise(((KalmanFilter) source[i]).getProcessNoise(),
+                        ((KalmanFilter) source[i]).getMeasurementNoise());
+            else if(current[i] instanceof MedianFilter)
+                ((MedianFilter) current[i]).setLength(((MedianFilter) source[i]).getLength());
+            else if(current[i] instanceof EMAFilter)
+                ((EMAFilter) current[i]).setAlpha(((EMAFilter) source[i]).getAlpha());
+        }
+        return true;
+    }
+
+    /**
+     * @return Copy of the stages array.
+     */
+    public DataFilterInterface[] getStages(){
+        return stages.clone();
+    }
+
+    /**
+     * @return Sum of the group delays of the FIR stages, in samples. Other stages are not included.
+     */
+    public double getGroupDelay(){
+        double delay = 0;
+        for(DataFilterInterface stage : stages)
+            if(stage instanceof FIRFilter)
+                delay += ((FIRFilter) stage).getGroupDelay();
+        return delay;
+    }
+
+    public boolean isEmpty(){
+        return stages.length == 0;
+    }
+
+    /**
+     * Creates new filters from a text description, a comma separated list of stages:
+     * lowpass:cutoff, highpass:cutoff (second order Butterworth, Hz), median:length,
+     * kalman:Q:R (noise variances), ema:alpha, and firlowpass:cutoff:taps, firhighpass:cutoff:taps
+     * (linear phase FIR). For example "highpass:0.5,median:5,lowpass:20" or "firlowpass:20:255".
+     * @param spec Stages description, an empty string for none.
+     * @param sampleRate Samples per second, used to design the Butterworth and FIR filters.
+     * @return New stages, in order.
+     * @throws IllegalArgumentException The description is not valid.
+     */
+    public static DataFilterInterface[] createStages(String spec, double sampleRate){
+        ArrayList<DataFilterInterface> stages = new ArrayList<>();
+
+        for(String item : spec.split(",")){
+            item = item.trim();
+            if(item.isEmpty())
+                continue;
+            String[] fields = item.split(":");
+
+            try{
+                switch(fields[0].toLowerCase()){
+                    case "lowpass":
+                        stages.add(new BiquadFilter(BiquadFilter.RESPONSE.LOW_PASS, sampleRate, Double.parseDouble(fields[1])));
+                        break;
+                    case "highpass":
+                        stages.add(new BiquadFilter(BiquadFilter.RESPONSE.HIGH_PASS, sampleRate, Double.parseDouble(fields[1])));
+                        break;
+                    case "median":
+                        stages.add(new MedianFilter(Integer.parseInt(fields[1])));
+                        break;
+                    case "kalman":
+                        stages.add(new KalmanFilter(Double.parseDouble(fields[1]), Double.parseDouble(fields[2])));
+                        break;
+                    case "firlowpass":
+                        stages.add(new FIRFilter(FIRFilter.lowPass(Integer.parseInt(fields[2]), sampleRate, Double.parseDouble(fields[1]))));
+                        break;
+                    case "firhighpass":
+                        stages.add(new FIRFilter(FIRFilter.highPass(Integer.parseInt(fields[2]), sampleRate, Double.parseDouble(fields[1]))));
+                        break;
+                    case "ema":
+                        stages.add(new EMAFilter(Double.parseDouble(fields[1])));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown filter: " + item);
+                }
+            }catch(ArrayIndexOutOfBoundsException e){
+                throw new IllegalArgumentException("Missing filter parameter: " + item);
+            }
+        }
+
+        return stages.toArray(new DataFilterInterface[stages.size()]);
+    }
+
+}
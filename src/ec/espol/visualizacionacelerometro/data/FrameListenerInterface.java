@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Receives complete frames (lines) split from a byte stream.
+ * @author Federico Domínguez
+ */
+public interface FrameListenerInterface {
+
+    /**
+     * A complete frame is available. The bytes are only valid during the call,
+     * the buffer is reused as soon as this method returns.
+     * @param buffer Buffer holding the frame.
+     * @param offset Index of the first byte of the frame.
+     * @param length Number of bytes in the frame, without the line terminator.
+     */
+    void receiveFrame(byte[] buffer, int offset, int length);
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * One dimensional Kalman filter for a slowly changing value observed with noise (random walk model).
+ * Predict: P = P + Q. Update: K = P/(P + R), S = S + K*(Y - S), P = (1 - K)*P
+ * A small process noise Q relative to the measurement noise R gives a smoother but slower output.
+ * The noise variances can be changed from any thread, the filtering thread applies them on its next sample.
+ * See http://en.wikipedia.org/wiki/Kalman_filter
+ * @author Federico Domínguez
+ */
+public class KalmanFilter implements DataFilterInterface {
+
+    //Process and measurement noise variances
+    private volatile double processNoise;
+    private volatile double measurementNoise;
+
+    //Filter state, only touched by the filtering thread
+    private boolean isFirst;
+    private double estimate;
+    private double errorCovariance;
+
+    /**
+     * @param processNoise Process noise variance Q.
+     * @param measurementNoise Measurement noise variance R.
+     */
+    public KalmanFilter(double processNoise, double measurementNoise){
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+        isFirst = true;
+    }
+
+    @Override
+    public double filter(double datum) {
+        //Starts from the first viewed sample, with the uncertainty of a measurement
+        if(isFirst){
+            estimate = datum;
+            errorCovariance = measurementNoise;
+            isFirst = false;
+            return datum;
+        }
+
+        double p = errorCovariance + processNoise;
+        double k = p/(p + measurementNoise);
+        estimate += k*(datum - estimate);
+        errorCovariance = (1 - k)*p;
+        return estimate;
+    }
+
+    @Override
+    public void filter(double[] in, double[] out, int off, int len) {
+        if(len <= 0)
+            return;
+        int start = off;
+        if(isFirst)
+            out[start] = filter(in[start++]);
+
+        double q = processNoise;
+        double r = measurementNoise;
+        double s = estimate;
+        double p = errorCovariance;
+        for(int i = start; i < off + len; i++){
+            p += q;
+            double k = p/(p + r);
+            s += k*(in[i] - s);
+            p = (1 - k)*p;
+            out[i] = s;
+        }
+        estimate = s;
+        errorCovariance = p;
+    }
+
+    /**
+     * Sets the noise variances, can be called from any thread.
+     * @param processNoise Process noise variance Q.
+     * @param measurementNoise Measurement noise variance R.
+     */
+    public void setNoise(double processNoise, double measurementNoise){
+        this.processNoise = processNoise;
+        this.measurementNoise = measurementNoise;
+    }
+
+    public double getProcessNoise(){
+        return processNoise;
+    }
+
+    public double getMeasurementNoise(){
+        return measurementNoise;
+    }
+
+}
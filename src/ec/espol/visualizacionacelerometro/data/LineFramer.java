@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a byte stream into '\n' terminated lines.
+ * The data source reads the bytes in bulk and feeds them in chunks. Lines fully contained in a chunk are
+ * handed to the listener straight from the chunk, partial lines are carried over to the
+ * next chunk in a fixed size line buffer. Nothing is allocated after construction.
+ * Lines longer than the line buffer are discarded up to the next terminator and counted as overflowed.
+ * @author Federico Domínguez
+ */
+public class LineFramer {
+
+    //Default size of the bulk read buffer of the data sources
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    //Default maximum line length
+    public static final int DEFAULT_MAX_LINE = 256;
+
+    //Carries a partial line between chunks
+    private final byte[] line;
+
+    //Bytes pending in line
+    private int lineLength;
+
+    //True while discarding the rest of an overflowed line
+    private boolean discarding;
+
+    private final FrameListenerInterface listener;
+
+    //Counters
+    private long bytesRead;
+    private long framesOk;
+    private long framesOverflowed;
+    private long framesTruncated;
+
+    public LineFramer(FrameListenerInterface listener){
+        this(listener, DEFAULT_MAX_LINE);
+    }
+
+    public LineFramer(FrameListenerInterface listener, int maxLine){
+        this.listener = listener;
+        line = new byte[maxLine];
+        lineLength = 0;
+        discarding = false;
+    }
+
+    /**
+     * Frames a block of bytes. Complete lines are sent to the listener, a trailing partial line is kept.
+     * @param data Buffer with the incoming bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     */
+    public void feed(byte[] data, int offset, int length){
+        bytesRead += length;
+
+        int start = offset;
+        int end = offset + length;
+
+        for(int i = offset; i < end; i++){
+            if(data[i] != '\n')
+                continue;
+
+            if(discarding){
+                //End of an overflowed line, drop it
+                discarding = false;
+                lineLength = 0;
+            }else if(lineLength == 0){
+                //Whole line inside this chunk, no copy needed
+                emit(data, start, i - start);
+            }else if(append(data, start, i - start)){
+                emit(line, 0, lineLength);
+                lineLength = 0;
+            }else{
+                //The line overflowed but it ends here
+                discarding = false;
+            }
+            start = i + 1;
+        }
+
+        //Keeps the partial line for the next chunk
+        if(start < end && !discarding)
+            append(data, start, end - start);
+    }
+
+    /**
+     * Frames the bytes between the position and the limit of a buffer, typically a direct buffer
+     * filled by a socket channel. The terminators are searched in place, each line is copied once
+     * to the line buffer and handed to the listener from there. The position is moved to the limit.
+     * @param data Buffer with the incoming bytes.
+     */
+    public void feed(ByteBuffer data){
+        int start = data.position();
+        int end = data.limit();
+        bytesRead += end - start;
+
+        for(int i = start; i < end; i++){
+            if(data.get(i) != '\n')
+                continue;
+
+            if(discarding){
+                discarding = false;
+                lineLength = 0;
+            }else if(append(data, start, i - start)){
+                emit(line, 0, lineLength);
+                lineLength = 0;
+            }else{
+                discarding = false;
+            }
+            start = i + 1;
+        }
+
+        if(start < end && !discarding)
+            append(data, start, end - start);
+        data.position(end);
+    }
+
+    /**
+     * Drops any partial line, for example when the port is closed.
+     * A pending partial line is counted as a truncated frame.
+     */
+    public void reset(){
+        if(lineLength > 0 || discarding)
+            framesTruncated++;
+        lineLength = 0;
+        discarding = false;
+    }
+
+    /**
+     * Appends bytes to the partial line.
+     * @return false if the line overflowed and is being discarded.
+     */
+    private boolean append(byte[] data, int offset, int length){
+        if(lineLength + length > line.length){
+            framesOverflowed++;
+            discarding = true;
+            lineLength = 0;
+            return false;
+        }
+        System.arraycopy(data, offset, line, lineLength, length);
+        lineLength += length;
+        return true;
+    }
+
+    private boolean append(ByteBuffer data, int offset, int length){
+        if(lineLength + length > line.length){
+            framesOverflowed++;
+            discarding = true;
+            lineLength = 0;
+            return false;
+        }
+        data.position(offset);
+        data.get(line, lineLength, length);
+        lineLength += length;
+        return true;
+    }
+
+    private void emit(byte[] data, int offset, int length){
+        //Removes the carriage return of "\r\n" terminated lines
+        if(length > 0 && data[offset + length - 1] == '\r')
+            length--;
+
+        if(length > line.length){
+            framesOverflowed++;
+            return;
+        }
+
+        framesOk++;
+        listener.receiveFrame(data, offset, length);
+    }
+
+    public long getBytesRead(){
+        return bytesRead;
+    }
+
+    public long getFramesOk(){
+        return framesOk;
+    }
+
+    public long getFramesOverflowed(){
+        return framesOverflowed;
+    }
+
+    public long getFramesTruncated(){
+        return framesTruncated;
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Moving median of the last samples, removes isolated spikes without smoothing steps.
+ * The window and a sorted copy of it are kept in arrays allocated once: each new sample replaces
+ * the oldest one in the sorted copy by shifting the values in between.
+ * The window length can be changed from any thread up to the capacity given at construction,
+ * the filtering thread applies it on its next sample (and starts filling the window again).
+ * @author Federico Domínguez
+ */
+public class MedianFilter implements DataFilterInterface {
+
+    //Window and its sorted copy
+    private final double[] window;
+    private final double[] sorted;
+
+    //Window length requested, and in use by the filtering thread
+    private volatile int requestedLength;
+    private int length;
+
+    //Samples in the window and position of the oldest one
+    private int count;
+    private int oldest;
+
+    /**
+     * @param length Number of samples in the window, also the maximum length that can be set later.
+     */
+    public MedianFilter(int length){
+        this(length, length);
+    }
+
+    /**
+     * @param length Number of samples in the window.
+     * @param capacity Maximum window length that can be set later.
+     */
+    public MedianFilter(int length, int capacity){
+        if(length < 1 || length > capacity)
+            throw new IllegalArgumentException("Invalid median window: " + length);
+        window = new double[capacity];
+        sorted = new double[capacity];
+        this.requestedLength = length;
+        this.length = length;
+    }
+
+    @Override
+    public double filter(double datum) {
+        if(requestedLength != length){
+            length = requestedLength;
+            count = 0;
+            oldest = 0;
+        }
+
+        int p;
+        if(count < length){
+            //Window not full yet, the new sample is added at the end
+            window[count] = datum;
+            p = count++;
+        }else{
+            //Removes the oldest sample from the sorted copy
+            p = find(window[oldest]);
+            window[oldest] = datum;
+            oldest = oldest + 1 == length ? 0 : oldest + 1;
+        }
+
+        //Moves the new sample to its place, shifting the larger or smaller values
+        while(p > 0 && sorted[p - 1] > datum){
+            sorted[p] = sorted[p - 1];
+            p--;
+        }
+        while(p < count - 1 && sorted[p + 1] < datum){
+            sorted[p] = sorted[p + 1];
+            p++;
+        }
+        sorted[p] = datum;
+
+        return (count & 1) == 1 ? sorted[count/2] : (sorted[count/2 - 1] + sorted[count/2])/2;
+    }
+
+    /**
+     * Binary search of a value of the sorted copy.
+     */
+    private int find(double value){
+        int low = 0;
+        int high = count - 1;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(sorted[mid] < value)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Sets the window length, can be called from any thread.
+     * @param length Number of samples, up to the capacity.
+     */
+    public void setLength(int length){
+        if(length < 1 || length > window.length)
+            throw new IllegalArgumentException("Invalid median window: " + length);
+        this.requestedLength = length;
+    }
+
+    public int getLength(){
+        return requestedLength;
+    }
+
+    public int getCapacity(){
+        return window.length;
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.ArrayList;
+
+/**
+ * Implements the data collection of a networked sensor, one TCP connection or UDP sender of a
+ * {@link NetworkIngestServer}. Links are named after the sensor address, for example "tcp://192.168.1.20:50312".
+ * The server thread frames the lines and calls this source, which parses and queues the samples
+ * exactly as the serial source does. All samples of a block received take its reception time.
+ * @author Federico Domínguez
+ */
+public class NetworkDataCollection implements DataCollectionInterface, FrameListenerInterface {
+
+    private final NetworkIngestServer server;
+    private final SampleRingBuffer samples;
+    private final SampleBus bus;
+    private final AccDataParser parser;
+    private final double[] xyz;
+
+    //Attached link, null when disconnected
+    private volatile String link;
+    private volatile boolean connected;
+
+    //Reception time of the block being parsed, only touched by the server thread
+    private long chunkTime;
+
+    private volatile long bytesRead;
+    private volatile long framesDecoded;
+    private volatile long parseErrors;
+
+    /**
+     * @param server Server receiving the sensor data.
+     * @param samples Ring buffer where the direct ADC readings are queued.
+     */
+    public NetworkDataCollection(NetworkIngestServer server, SampleRingBuffer samples){
+        this.server = server;
+        this.samples = samples;
+        bus = new SampleBus();
+        parser = new AccDataParser();
+        xyz = new double[AccDataParser.AXES];
+    }
+
+    @Override
+    public ArrayList<String> getComLinks() {
+        return server.getLinks();
+    }
+
+    /**
+     * Starts receiving the lines of a sensor.
+     * @param comLink Name of the link, as listed by getComLinks().
+     * @return CONNECTION_ERROR if the sensor is not connected to the server (anymore),
+     * CONNECTION_BUSY if another data source receives it.
+     */
+    @Override
+    public CONNECTION_RESULT connect(String comLink) {
+        if(connected)
+            return CONNECTION_RESULT.CONNECTION_OK;
+        if(!server.getLinks().contains(comLink)){
+            System.out.println("Error connecting to network sensor: "+comLink+" not found");
+            return CONNECTION_RESULT.CONNECTION_ERROR;
+        }
+
+        //Set before attaching, the server thread may call closed() at once
+        connected = true;
+        if(!server.attach(comLink, this)){
+            connected = false;
+            System.out.println("Error connecting to network sensor: "+comLink+" in use");
+            return CONNECTION_RESULT.CONNECTION_BUSY;
+        }
+        link = comLink;
+        return CONNECTION_RESULT.CONNECTION_OK;
+    }
+
+    /**
+     * Stops receiving, the sensor stays connected to the server and can be connected again.
+     */
+    @Override
+    public void disconnect() {
+        String attached = link;
+        if(attached != null)
+            server.detach(attached, this);
+        link = null;
+        connected = false;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public long getParseErrorCount() {
+        return parseErrors;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    @Override
+    public SampleBus getSampleBus() {
+        return bus;
+    }
+
+    /**
+     * @return Link of the sensor, holding its address, null if not connected.
+     */
+    public String getLink(){
+        return link;
+    }
+
+    /**
+     * A block of bytes was received, its lines follow. Called by the server thread.
+     * @param length Number of bytes.
+     * @param time Reception time as given by System.nanoTime().
+     */
+    void received(int length, long time){
+        bytesRead += length;
+        chunkTime = time;
+    }
+
+    @Override
+    public void receiveFrame(byte[] buffer, int offset, int length) {
+        framesDecoded++;
+        if(parser.parseRaw(buffer, offset, length, xyz) == AccDataParser.PARSE_RESULT.PARSE_OK){
+            int x = (int) xyz[0], y = (int) xyz[1], z = (int) xyz[2];
+            samples.offer(chunkTime, x, y, z);
+            bus.add(chunkTime, x, y, z);
+        }else
+            parseErrors++;
+    }
+
+    /**
+     * The lines of a block were delivered. Called by the server thread.
+     */
+    void flush(){
+        bus.flush();
+    }
+
+    /**
+     * The sensor closed the connection or stopped sending. Called by the server thread.
+     */
+    void closed(){
+        connected = false;
+    }
+
+}
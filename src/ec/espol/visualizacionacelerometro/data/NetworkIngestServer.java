@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Receives the tab separated lines of networked sensors (WiFi bridges) over TCP and UDP.
+ * A single thread serves every connection with one NIO selector: it accepts TCP connections,
+ * reads into one direct buffer and frames the lines straight from it, so hundreds of sensors cost
+ * a partial line buffer each. Each TCP connection and each UDP sender is a link, named after its
+ * address ("tcp://host:port", "udp://host:port"), that a {@link NetworkDataCollection} attaches to like
+ * a serial port. Lines of links nobody is attached to are discarded.
+ * UDP datagrams must hold whole lines, a partial line at the end of a datagram is dropped.
+ * UDP senders nobody is attached to are forgotten after PEER_TIMEOUT_MILLIS without datagrams.
+ * @author Federico Domínguez
+ */
+public class NetworkIngestServer implements Runnable {
+
+    //Prefixes of the links handled by this server
+    public static final String TCP_PREFIX = "tcp://";
+    public static final String UDP_PREFIX = "udp://";
+
+    //Largest read, also the largest datagram accepted
+    public static final int READ_BUFFER_SIZE = 65536;
+
+    //Unattached UDP senders are removed after this time without datagrams
+    public static final long PEER_TIMEOUT_MILLIS = 10000;
+
+    //Selector wake up to check if it must stop and to expire UDP senders
+    private static final long SELECT_MILLIS = 500;
+
+    //Datagrams received in a row before serving the other channels
+    private static final int MAX_DATAGRAMS = 64;
+
+    /**
+     * A TCP connection or a UDP sender.
+     */
+    static final class Peer implements FrameListenerInterface {
+        private final String link;
+        private final SocketChannel channel;
+        private final LineFramer framer;
+
+        //Data source attached to this link, guarded by the peer lock
+        private NetworkDataCollection source;
+        private volatile boolean open;
+        private long lastReceived;
+
+        private Peer(String link, SocketChannel channel){
+            this.link = link;
+            this.channel = channel;
+            //Lines are framed straight from the direct buffer
+            framer = new LineFramer(this, LineFramer.DEFAULT_MAX_LINE);
+            open = true;
+        }
+
+        /**
+         * Frames a block of received bytes. Called by the selector thread only.
+         */
+        private synchronized void receive(ByteBuffer data, long time){
+            lastReceived = time;
+            if(source != null)
+                source.received(data.remaining(), time);
+            framer.feed(data);
+            if(source != null)
+                source.flush();
+        }
+
+        @Override
+        public void receiveFrame(byte[] buffer, int offset, int length) {
+            if(source != null)
+                source.receiveFrame(buffer, offset, length);
+        }
+
+        private synchronized boolean attach(NetworkDataCollection source){
+            if(!open || this.source != null && this.source != source)
+                return false;
+            this.source = source;
+            return true;
+        }
+
+        private synchronized void detach(NetworkDataCollection source){
+            if(this.source == source)
+                this.source = null;
+        }
+
+        private synchronized boolean isAttached(){
+            return source != null;
+        }
+
+        private synchronized void close(){
+            open = false;
+            if(source != null)
+                source.closed();
+            source = null;
+        }
+    }
+
+    private final InetSocketAddress address;
+    private Selector selector;
+    private ServerSocketChannel tcpChannel;
+    private DatagramChannel udpChannel;
+    private final ByteBuffer buffer;
+
+    //Every link by name, read by any thread
+    private final Map<String, Peer> peers;
+
+    //UDP senders by address, only touched by the selector thread
+    private final Map<SocketAddress, Peer> udpPeers;
+
+    private volatile boolean running;
+    private Thread thread;
+    private volatile long connectionsAccepted;
+    private volatile long bytesReceived;
+
+    /**
+     * @param address Local address and port for both TCP and UDP, port 0 for any free port.
+     */
+    public NetworkIngestServer(InetSocketAddress address){
+        this.address = address;
+        buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        peers = new ConcurrentHashMap<>();
+        udpPeers = new HashMap<>();
+    }
+
+    /**
+     * Opens the TCP and UDP ports and starts the selector thread.
+     * @throws IOException The ports could not be opened.
+     */
+    public synchronized void start() throws IOException {
+        if(running)
+            return;
+
+        selector = Selector.open();
+        try{
+            tcpChannel = ServerSocketChannel.open();
+            tcpChannel.bind(address);
+            tcpChannel.configureBlocking(false);
+            tcpChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+            //UDP on the same port as TCP, also when it was chosen by the system
+            udpChannel = DatagramChannel.open();
+            udpChannel.bind(new InetSocketAddress(address.getAddress(), getTcpPort()));
+            udpChannel.configureBlocking(false);
+            udpChannel.register(selector, SelectionKey.OP_READ);
+        }catch(IOException e){
+            closeChannels();
+            throw e;
+        }
+
+        running = true;
+        thread = new Thread(this, "Network ingest " + getTcpPort());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Closes every connection and the ports. Attached data sources are disconnected.
+     */
+    public synchronized void stop(){
+        if(!running)
+            return;
+        running = false;
+        selector.wakeup();
+        try{
+            thread.join();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        long lastExpiry = System.currentTimeMillis();
+
+        try{
+            while(running){
+                selector.select(SELECT_MILLIS);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid())
+                        continue;
+
+                    if(key.isAcceptable())
+                        accept();
+                    else if(key.channel() == udpChannel)
+                        receiveDatagrams();
+                    else
+                        read(key);
+                }
+
+                if(System.currentTimeMillis() - lastExpiry >= SELECT_MILLIS){
+                    lastExpiry = System.currentTimeMillis();
+                    expireUdpPeers();
+                }
+            }
+        }catch(IOException e){
+            System.out.println("Error in network ingest: "+e.getLocalizedMessage());
+        }
+
+        closeChannels();
+    }
+
+    private void accept(){
+        SocketChannel channel = null;
+        try{
+            while((channel = tcpChannel.accept()) != null){
+                channel.configureBlocking(false);
+                Peer peer = new Peer(TCP_PREFIX + format(channel.getRemoteAddress()), channel);
+                channel.register(selector, SelectionKey.OP_READ, peer);
+                peers.put(peer.link, peer);
+                connectionsAccepted++;
+            }
+        }catch(IOException e){
+            //For example out of file descriptors, the other connections go on
+            System.out.println("Error accepting connection: "+e.getLocalizedMessage());
+            try{
+                if(channel != null)
+                    channel.close();
+            }catch(IOException closeError){
+                //The connection is dropped anyway
+            }
+        }
+    }
+
+    private void read(SelectionKey key){
+        Peer peer = (Peer) key.attachment();
+        int n;
+        try{
+            buffer.clear();
+            n = peer.channel.read(buffer);
+        }catch(IOException e){
+            n = -1;
+        }
+
+        if(n < 0){
+            //Closed by the sensor or connection lost
+            key.cancel();
+            closePeer(peer);
+            return;
+        }
+        if(n > 0){
+            bytesReceived += n;
+            buffer.flip();
+            peer.receive(buffer, System.nanoTime());
+        }
+    }
+
+    private void receiveDatagrams() throws IOException {
+        for(int i = 0; i < MAX_DATAGRAMS; i++){
+            buffer.clear();
+            SocketAddress sender = udpChannel.receive(buffer);
+            if(sender == null)
+                return;
+
+            Peer peer = udpPeers.get(sender);
+            if(peer == null){
+                peer = new Peer(UDP_PREFIX + format(sender), null);
+                udpPeers.put(sender, peer);
+                peers.put(peer.link, peer);
+            }
+
+            bytesReceived += buffer.position();
+            buffer.flip();
+            peer.receive(buffer, System.nanoTime());
+            //Each datagram holds whole lines
+            peer.framer.reset();
+        }
+    }
+
+    private void expireUdpPeers(){
+        long now = System.nanoTime();
+        Iterator<Peer> it = udpPeers.values().iterator();
+        while(it.hasNext()){
+            Peer peer = it.next();
+            //An attached sender stays, like a silent serial port
+            if(!peer.isAttached() && now - peer.lastReceived > PEER_TIMEOUT_MILLIS * 1000000){
+                it.remove();
+                closePeer(peer);
+            }
+        }
+    }
+
+    private void closePeer(Peer peer){
+        peers.remove(peer.link);
+        peer.close();
+        if(peer.channel != null){
+            try{
+                peer.channel.close();
+            }catch(IOException e){
+                System.out.println("Error closing connection: "+e.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void closeChannels(){
+        for(Peer peer : peers.values())
+            closePeer(peer);
+        udpPeers.clear();
+        try{
+            if(tcpChannel != null)
+                tcpChannel.close();
+            if(udpChannel != null)
+                udpChannel.close();
+            selector.close();
+        }catch(IOException e){
+            System.out.println("Error closing network ports: "+e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * "host:port" without the host name lookup of InetSocketAddress.toString().
+     */
+    private static String format(SocketAddress address){
+        InetSocketAddress inet = (InetSocketAddress) address;
+        return inet.getAddress().getHostAddress() + ":" + inet.getPort();
+    }
+
+    /**
+     * Attaches a data source to a link, it receives the lines of that link from now on.
+     * @param link Name of the link.
+     * @param source Data source.
+     * @return false if the link doesn't exist (anymore) or another source is attached.
+     */
+    boolean attach(String link, NetworkDataCollection source){
+        Peer peer = peers.get(link);
+        return peer != null && peer.attach(source);
+    }
+
+    /**
+     * Stops delivering lines to a data source. When it returns the source is not called anymore.
+     * @param link Name of the link.
+     * @param source Data source.
+     */
+    void detach(String link, NetworkDataCollection source){
+        Peer peer = peers.get(link);
+        if(peer != null)
+            peer.detach(source);
+    }
+
+    /**
+     * @param link Name of a link.
+     * @return true if the link is handled by a network server.
+     */
+    public static boolean isNetworkLink(String link){
+        return link.startsWith(TCP_PREFIX) || link.startsWith(UDP_PREFIX);
+    }
+
+    /**
+     * @return ArrayList containing the names of the open TCP connections and the active UDP senders.
+     */
+    public ArrayList<String> getLinks(){
+        ArrayList<String> links = new ArrayList<>(peers.keySet());
+        Collections.sort(links);
+        return links;
+    }
+
+    /**
+     * @return Local TCP port, -1 if not started.
+     */
+    public int getTcpPort(){
+        return tcpChannel == null ? -1 : tcpChannel.socket().getLocalPort();
+    }
+
+    /**
+     * @return Local UDP port, -1 if not started.
+     */
+    public int getUdpPort(){
+        return udpChannel == null ? -1 : udpChannel.socket().getLocalPort();
+    }
+
+    public long getConnectionsAccepted(){
+        return connectionsAccepted;
+    }
+
+    public long getBytesReceived(){
+        return bytesReceived;
+    }
+
+    public boolean isRunning(){
+        return running;
+    }
+
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import ec.espol.visualizacionacelerometro.storage.RecordingFormat;
+import ec.espol.visualizacionacelerometro.storage.RecordingReader;
+import ec.espol.visualizacionacelerometro.storage.RecordingSegmentInterface;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implements the data collection by replaying recorded sessions (see {@link ec.espol.visualizacionacelerometro.storage.SessionRecorder}).
+ * The communication links are the recording files of a directory. Connecting to a file plays it,
+ * followed by the next segments of the same session, queueing the direct ADC readings in the same
+ * ring buffer a serial port would use. Playback follows the recorded timing, scaled by a speed factor,
+ * or runs as fast as the pipeline can take the samples.
+ * @author Federico Domínguez
+ */
+public class ReplayDataCollection implements DataCollectionInterface, Runnable {
+
+    //Speed factor for playback at the original timing
+    public static final double SPEED_REAL_TIME = 1;
+
+    //Speed factor for playback as fast as possible
+    public static final double SPEED_MAX = 0;
+
+    //Samples are only paced when they are due at least this far in the future
+    private static final long PACING_NANOS = 500000;
+
+    //Sleep while the ring buffer is full
+    private static final long FULL_NANOS = 200000;
+
+    private final File directory;
+    private final SampleRingBuffer samples;
+    private final SampleBus bus;
+    private double speed;
+
+    private ArrayList<File> segments;
+    private volatile boolean running;
+    private Thread player;
+
+    //Samples queued since the connection
+    private volatile long samplesPlayed;
+
+    /**
+     * @param directory Directory holding the recording files.
+     * @param samples Ring buffer where the direct ADC readings are queued.
+     */
+    public ReplayDataCollection(File directory, SampleRingBuffer samples){
+        this.directory = directory;
+        this.samples = samples;
+        bus = new SampleBus();
+        speed = SPEED_REAL_TIME;
+    }
+
+    @Override
+    public ArrayList<String> getComLinks() {
+        return scanRecordings(directory);
+    }
+
+    /**
+     * Scans recording files in a directory.
+     * @param directory Directory holding the recording files.
+     * @return ArrayList containing the names of all recording files, sorted. Returns empty list if none available.
+     */
+    public static ArrayList<String> scanRecordings(File directory) {
+        ArrayList<String> recordings = new ArrayList();
+        String[] names = directory == null ? null : directory.list();
+        if(names != null){
+            Arrays.sort(names);
+            for(String name : names)
+                if(RecordingReader.isRecordingFile(name))
+                    recordings.add(name);
+        }
+        return recordings;
+    }
+
+    @Override
+    public CONNECTION_RESULT connect(String comLink) {
+        if(running)
+            return CONNECTION_RESULT.CONNECTION_OK;
+
+        File file = new File(directory, comLink);
+        if(!file.isFile())
+            return CONNECTION_RESULT.CONNECTION_ERROR;
+
+        //Checks the file before starting playback
+        try(RecordingSegmentInterface reader = RecordingSegmentInterface.open(file)){
+            segments = RecordingReader.sessionSegments(reader.getFile());
+        }catch(IOException e){
+            System.out.println("Error opening recording: "+e.getLocalizedMessage());
+            return CONNECTION_RESULT.CONNECTION_IO_ERROR;
+        }
+
+        samplesPlayed = 0;
+        running = true;
+        player = new Thread(this, "Replay " + comLink);
+        player.setDaemon(true);
+        player.start();
+
+        return CONNECTION_RESULT.CONNECTION_OK;
+    }
+
+    @Override
+    public void disconnect() {
+        running = false;
+        if(player != null){
+            LockSupport.unpark(player);
+            try{
+                player.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            player = null;
+        }
+    }
+
+    /**
+     * @return true while the recording is being played.
+     */
+    @Override
+    public boolean isConnected() {
+        return running;
+    }
+
+    /**
+     * Recorded samples are already parsed, playback never produces parse errors.
+     */
+    @Override
+    public long getParseErrorCount() {
+        return 0;
+    }
+
+    @Override
+    public SampleBus getSampleBus() {
+        return bus;
+    }
+
+    /**
+     * @return Bytes of the records played since the connection, in the fixed record format.
+     */
+    @Override
+    public long getBytesRead() {
+        return samplesPlayed*RecordingFormat.RECORD_SIZE;
+    }
+
+    /**
+     * @return Records played since the connection.
+     */
+    @Override
+    public long getFramesDecoded() {
+        return samplesPlayed;
+    }
+
+    @Override
+    public void run() {
+        long firstTime = 0;
+        long wallStart = 0;
+        boolean first = true;
+
+        try{
+            for(File segment : segments){
+                try(RecordingSegmentInterface reader = RecordingSegmentInterface.open(segment)){
+                    SampleBatch block = new SampleBatch(reader.getMaxBlockRecords(), null);
+
+                    for(int b = 0; b < reader.getBlockCount() && running; b++){
+                        reader.readBlock(b, block);
+
+                        for(int i = 0; i < block.getLength() && running; i++){
+                            long time = block.nanoTime[i];
+
+                            if(first){
+                                firstTime = time;
+                                wallStart = System.nanoTime();
+                                first = false;
+                            }
+
+                            //Waits until the sample is due
+                            if(speed > 0){
+                                long due = wallStart + (long) ((time - firstTime) / speed);
+                                long wait = due - System.nanoTime();
+                                if(wait > PACING_NANOS){
+                                    //Subscribers get the samples played so far before the pause
+                                    bus.flush();
+                                    LockSupport.parkNanos(wait);
+                                }
+                            }
+
+                            //Playback is not real acquisition, it waits for the pipeline instead of dropping samples
+                            while(samples.size() >= samples.getCapacity() && running)
+                                LockSupport.parkNanos(FULL_NANOS);
+
+                            long now = System.nanoTime();
+                            int x = block.getRaw(i, 0), y = block.getRaw(i, 1), z = block.getRaw(i, 2);
+                            samples.offer(now, x, y, z);
+                            bus.add(now, x, y, z);
+                            samplesPlayed++;
+                        }
+                    }
+                }
+                if(!running)
+                    break;
+            }
+        }catch(IOException e){
+            System.out.println("Error reading recording: "+e.getLocalizedMessage());
+        }
+
+        //End of the session
+        bus.flush();
+        running = false;
+    }
+
+    /**
+     * Sets the playback speed of the next connection.
+     * @param speed Factor applied to the recorded timing (2 plays twice as fast), SPEED_MAX for no pacing.
+     */
+    public void setSpeed(double speed){
+        this.speed = speed;
+    }
+
+    public double getSpeed(){
+        return speed;
+    }
+
+    /**
+     * @return Samples queued since the connection.
+     */
+    public long getSamplesPlayed(){
+        return samplesPlayed;
+    }
+
+}
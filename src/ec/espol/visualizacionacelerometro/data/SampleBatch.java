@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Batch of consecutive samples of a device, the unit of work of every stage after the parser.
+ * Samples are stored in primitive columns: the reception time, the direct ADC readings (x,y,z of
+ * each sample side by side) and the acceleration of each axis in g units. Depending on the stage,
+ * the accelerations are the converted readings or the filtered values.
+ * Batches come from a {@link SampleBatchPool}. A published batch is read-only and is shared by
+ * all its holders, each one owning a reference: the batch returns to its pool when the last one is released.
+ * @author Federico Domínguez
+ */
+public class SampleBatch {
+
+    //Reception time as given by System.nanoTime(), never decreasing within a device
+    public final long[] nanoTime;
+
+    //Direct ADC readings, x,y,z of sample i at 3*i, 3*i+1, 3*i+2
+    public final short[] raw;
+
+    //Acceleration in g units
+    public final double[] x;
+    public final double[] y;
+    public final double[] z;
+
+    private final SampleBatchPool pool;
+    private final AtomicInteger references;
+    private int length;
+
+    /**
+     * @param capacity Maximum number of samples.
+     * @param pool Pool that receives the batch when it is released, null for an unpooled batch.
+     */
+    public SampleBatch(int capacity, SampleBatchPool pool){
+        nanoTime = new long[capacity];
+        raw = new short[capacity*AccDataParser.AXES];
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        this.pool = pool;
+        references = new AtomicInteger(1);
+    }
+
+    /**
+     * Appends a sample. Only while the batch is being filled, before it is published.
+     * The acceleration columns are not written.
+     * @return false if the batch is full.
+     */
+    public boolean add(long time, int rawX, int rawY, int rawZ){
+        if(length == nanoTime.length)
+            return false;
+        nanoTime[length] = time;
+        raw[3*length] = (short) rawX;
+        raw[3*length + 1] = (short) rawY;
+        raw[3*length + 2] = (short) rawZ;
+        length++;
+        return true;
+    }
+
+    /**
+     * @param sample Sample index.
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Direct ADC reading.
+     */
+    public int getRaw(int sample, int axis){
+        return raw[3*sample + axis];
+    }
+
+    /**
+     * @return Number of samples, at positions 0 to length-1 of the columns.
+     */
+    public int getLength(){
+        return length;
+    }
+
+    /**
+     * Sets the number of samples, after filling the columns directly.
+     */
+    public void setLength(int length){
+        this.length = length;
+    }
+
+    public int getCapacity(){
+        return nanoTime.length;
+    }
+
+    public boolean isFull(){
+        return length == nanoTime.length;
+    }
+
+    /**
+     * Adds a reference, for a new holder of the batch.
+     */
+    public void retain(){
+        references.incrementAndGet();
+    }
+
+    /**
+     * Releases a reference. The batch must not be used by the caller after this.
+     */
+    public void release(){
+        if(references.decrementAndGet() == 0 && pool != null)
+            pool.recycle(this);
+    }
+
+    /**
+     * Prepares a recycled batch to be filled again, with one reference owned by the caller.
+     */
+    void reset(){
+        length = 0;
+        references.set(1);
+    }
+
+}
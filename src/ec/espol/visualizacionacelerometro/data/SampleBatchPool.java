@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Recycles sample batches of a fixed capacity. Any thread can acquire a batch and release it.
+ * A batch is allocated only when none is free, so the number of batches settles at the most
+ * ever in use at once, and nothing is allocated afterwards.
+ * @author Federico Domínguez
+ */
+public class SampleBatchPool {
+
+    private final int batchCapacity;
+    private final ArrayBlockingQueue<SampleBatch> free;
+
+    /**
+     * @param batchCapacity Samples per batch.
+     * @param maxFree Maximum number of free batches kept, extra released batches are left to the GC.
+     */
+    public SampleBatchPool(int batchCapacity, int maxFree){
+        this.batchCapacity = batchCapacity;
+        free = new ArrayBlockingQueue<>(maxFree);
+    }
+
+    /**
+     * @return An empty batch, with one reference owned by the caller.
+     */
+    public SampleBatch acquire(){
+        SampleBatch batch = free.poll();
+        if(batch == null)
+            return new SampleBatch(batchCapacity, this);
+        batch.reset();
+        return batch;
+    }
+
+    /**
+     * Called by SampleBatch when its last reference is released.
+     */
+    void recycle(SampleBatch batch){
+        free.offer(batch);
+    }
+
+    public int getBatchCapacity(){
+        return batchCapacity;
+    }
+
+}
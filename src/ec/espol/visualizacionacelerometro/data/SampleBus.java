@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the samples of a data source or pipeline to any number of subscribers (plot, analyzers, forwarders...).
+ * The publishing thread fills batches taken from a pool and publishes each batch once, the same batch
+ * is queued for every subscriber with a reference count instead of a copy. Batches published sample by
+ * sample carry the ADC readings and their conversion to g units.
+ * Each subscription has its own bounded queue and delivery thread: when a subscriber falls behind and
+ * its queue is full, the batch is dropped for that subscriber only and counted, acquisition and the
+ * other subscribers are never delayed. Batches are reused, the pool only grows while the queues fill up.
+ * With no subscribers, publishing costs one volatile read per sample.
+ * @author Federico Domínguez
+ */
+public class SampleBus {
+
+    //Samples per batch
+    public static final int BATCH_SIZE = 256;
+
+    //Default number of batches queued for each subscriber
+    public static final int DEFAULT_QUEUE_BATCHES = 64;
+
+    //Delivery thread wake up to check if it must stop, also the longest wait to unsubscribe
+    private static final long POLL_MILLIS = 100;
+
+    private volatile Subscription[] subscriptions;
+
+    //Batch being filled, only touched by the publishing thread
+    private SampleBatch current;
+
+    //Recycled batches
+    private final SampleBatchPool pool;
+
+    //Converts the readings of the batches filled by add()
+    private final AccDataParser converter;
+
+    /**
+     * Subscription of one consumer, with its queue and delivery thread.
+     */
+    public static final class Subscription implements Runnable {
+        private final SampleSubscriberInterface subscriber;
+        private final ArrayBlockingQueue<SampleBatch> queue;
+        private final Thread thread;
+        private volatile boolean running;
+        private volatile long droppedSamples;
+        private volatile long deliveredSamples;
+
+        private Subscription(SampleSubscriberInterface subscriber, String name, int queueBatches){
+            this.subscriber = subscriber;
+            queue = new ArrayBlockingQueue<>(queueBatches);
+            running = true;
+            thread = new Thread(this, "Subscriber " + name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try{
+                while(running){
+                    SampleBatch batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if(batch == null){
+                        subscriber.idle();
+                        continue;
+                    }
+                    try{
+                        subscriber.receiveBatch(batch);
+                        deliveredSamples += batch.getLength();
+                    }catch(RuntimeException e){
+                        System.out.println("Error in subscriber: "+e.getLocalizedMessage());
+                    }finally{
+                        batch.release();
+                    }
+                }
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+
+            //Returns the batches that were not delivered
+            SampleBatch batch;
+            while((batch = queue.poll()) != null)
+                batch.release();
+        }
+
+        /**
+         * Queues a batch, called by the publishing thread. Never waits.
+         */
+        private void offer(SampleBatch batch){
+            batch.retain();
+            if(!queue.offer(batch)){
+                droppedSamples += batch.getLength();
+                batch.release();
+            }
+        }
+
+        private void stop(){
+            //Not interrupted, the subscriber may be using interruptible channels
+            running = false;
+            try{
+                thread.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * @return Samples not delivered because this subscriber's queue was full.
+         */
+        public long getDropped(){
+            return droppedSamples;
+        }
+
+        /**
+         * @return Samples delivered to the subscriber.
+         */
+        public long getDelivered(){
+            return deliveredSamples;
+        }
+
+        /**
+         * @return Batches waiting in the queue.
+         */
+        public int getQueued(){
+            return queue.size();
+        }
+    }
+
+    public SampleBus(){
+        subscriptions = new Subscription[0];
+        pool = new SampleBatchPool(BATCH_SIZE, DEFAULT_QUEUE_BATCHES * 4);
+        converter = new AccDataParser();
+    }
+
+    /**
+     * Starts delivering batches to a subscriber, from the next published batch.
+     * @param subscriber Consumer of the batches.
+     * @param name Name of the subscription, used for the thread name.
+     * @param queueBatches Maximum number of batches waiting for the subscriber.
+     * @return The subscription, needed to unsubscribe.
+     */
+    public synchronized Subscription subscribe(SampleSubscriberInterface subscriber, String name, int queueBatches){
+        Subscription subscription = new Subscription(subscriber, name, queueBatches);
+        subscription.thread.start();
+        Subscription[] updated = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+        updated[subscriptions.length] = subscription;
+        subscriptions = updated;
+        return subscription;
+    }
+
+    /**
+     * Stops delivering batches to a subscriber, waits for its current batch to be processed.
+     * @param subscription Subscription returned by subscribe().
+     */
+    public synchronized void unsubscribe(Subscription subscription){
+        Subscription[] updated = new Subscription[subscriptions.length];
+        int n = 0;
+        for(Subscription s : subscriptions)
+            if(s != subscription)
+                updated[n++] = s;
+        if(n == subscriptions.length)
+            return;
+        subscriptions = Arrays.copyOf(updated, n);
+        subscription.stop();
+    }
+
+    public boolean hasSubscribers(){
+        return subscriptions.length > 0;
+    }
+
+    /**
+     * Adds a sample to the current batch, publishing it when full. Called by the publishing thread only.
+     * @param nanoTime Reception time as given by System.nanoTime().
+     * @param rawX x-axis ADC reading.
+     * @param rawY y-axis ADC reading.
+     * @param rawZ z-axis ADC reading.
+     */
+    public void add(long nanoTime, int rawX, int rawY, int rawZ){
+        if(current == null){
+            if(subscriptions.length == 0)
+                return;
+            current = pool.acquire();
+        }
+        current.add(nanoTime, rawX, rawY, rawZ);
+        if(current.isFull())
+            flush();
+    }
+
+    /**
+     * Publishes the current batch, even if it is not full. Called by the publishing thread only,
+     * at the end of each block of received data so subscribers don't wait for a full batch.
+     */
+    public void flush(){
+        SampleBatch batch = current;
+        if(batch == null)
+            return;
+        current = null;
+
+        converter.toG(batch);
+        publish(batch);
+        batch.release();
+    }
+
+    /**
+     * Publishes a batch filled by the caller, for publishers that work on whole batches.
+     * The caller keeps its reference and must not modify the batch afterwards.
+     * @param batch Batch taken from {@link #getPool()}, or any other batch.
+     */
+    public void publish(SampleBatch batch){
+        if(batch.getLength() > 0)
+            for(Subscription subscription : subscriptions)
+                subscription.offer(batch);
+    }
+
+    /**
+     * @return The pool of the batches published by this bus.
+     */
+    public SampleBatchPool getPool(){
+        return pool;
+    }
+
+}
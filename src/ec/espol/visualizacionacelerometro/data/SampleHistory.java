@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last minutes of the filtered samples of a device, for the strip chart.
+ * Samples are kept in a primitive ring (time and x,y,z columns) together with a min/max pyramid:
+ * level 1 holds the minimum and maximum of every 16 samples, level 2 of every 256 and level 3 of every 4096.
+ * The minimum and maximum of any range are found with at most about a hundred reads whatever its
+ * length, so decimating to one value pair per pixel column costs the same for a second or for minutes.
+ * Filled by its subscription to the pipeline's filtered bus (single writer), read by the GUI:
+ * readers only look at samples older than the count published by the writer, and stay clear of the
+ * oldest samples, which are being overwritten.
+ * @author Federico Domínguez
+ */
+public class SampleHistory implements SampleSubscriberInterface, SignalSummaryInterface {
+
+    //Default number of samples kept, about four minutes at 1 kHz
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+
+    //Pyramid levels, each one summarizes 2^LEVEL_BITS blocks of the level below
+    private static final int LEVELS = 3;
+    private static final int LEVEL_BITS = 4;
+
+    //Oldest samples not read, the writer may be overwriting them
+    private static final int GUARD = 1 << (LEVEL_BITS * LEVELS + 1);
+
+    //Batches queued for the history
+    private static final int QUEUE_BATCHES = 64;
+
+    private final String name;
+    private final int capacity;
+    private final int mask;
+    private final long[] time;
+    private final double[][] values;
+
+    //min[level][axis][block], max[level][axis][block], level 0 is unused (the samples themselves)
+    private final double[][][] min;
+    private final double[][][] max;
+
+    //Samples written, published after the sample and its blocks
+    private final AtomicLong count;
+
+    private SampleBus bus;
+    private SampleBus.Subscription subscription;
+
+    /**
+     * @param name Name of the device.
+     * @param requestedCapacity Minimum number of samples kept, rounded up to a power of two (at least 2*GUARD).
+     */
+    public SampleHistory(String name, int requestedCapacity){
+        this.name = name;
+        int c = Integer.highestOneBit(Math.max(2*GUARD, requestedCapacity) - 1) << 1;
+        capacity = c;
+        mask = c - 1;
+        time = new long[c];
+        values = new double[AccDataParser.AXES][c];
+        min = new double[LEVELS + 1][][];
+        max = new double[LEVELS + 1][][];
+        for(int level = 1; level <= LEVELS; level++){
+            min[level] = new double[AccDataParser.AXES][c >> (LEVEL_BITS * level)];
+            max[level] = new double[AccDataParser.AXES][c >> (LEVEL_BITS * level)];
+        }
+        count = new AtomicLong();
+    }
+
+    /**
+     * Subscribes to a bus of filtered samples.
+     * @param bus Filtered bus of the device pipeline.
+     */
+    public void start(SampleBus bus){
+        this.bus = bus;
+        subscription = bus.subscribe(this, "History " + name, QUEUE_BATCHES);
+    }
+
+    public void stop(){
+        if(subscription != null){
+            bus.unsubscribe(subscription);
+            subscription = null;
+        }
+    }
+
+    @Override
+    public void receiveBatch(SampleBatch batch) {
+        long n = count.get();
+        double[] bx = batch.x, by = batch.y, bz = batch.z;
+
+        for(int i = 0; i < batch.getLength(); i++, n++){
+            int p = (int) n & mask;
+            time[p] = batch.nanoTime[i];
+            add(0, p, n, bx[i]);
+            add(1, p, n, by[i]);
+            add(2, p, n, bz[i]);
+        }
+        count.lazySet(n);
+    }
+
+    /**
+     * Stores a value and updates the blocks holding it.
+     */
+    private void add(int axis, int p, long index, double v){
+        values[axis][p] = v;
+        for(int level = 1; level <= LEVELS; level++){
+            int shift = LEVEL_BITS * level;
+            int b = p >> shift;
+            if((index & ((1 << shift) - 1)) == 0){
+                //First sample of the block
+                min[level][axis][b] = v;
+                max[level][axis][b] = v;
+            }else{
+                if(v < min[level][axis][b])
+                    min[level][axis][b] = v;
+                if(v > max[level][axis][b])
+                    max[level][axis][b] = v;
+            }
+        }
+    }
+
+    /**
+     * Decimates the samples received between two times, see {@link SignalSummaryInterface#decimate}.
+     */
+    @Override
+    public long decimate(long from, long to, int columns, double[][] colMin, double[][] colMax){
+        long end = count.get();
+        long oldest = Math.max(0, end - capacity + GUARD);
+
+        long start = search(from, oldest, end);
+        long total = 0;
+        for(int c = 0; c < columns; c++){
+            long edge = from + (to - from) * (c + 1) / columns;
+            long stop = c == columns - 1 ? search(to + 1, start, end) : search(edge, start, end);
+            if(stop > start)
+                range(start, stop, colMin, colMax, c);
+            else
+                for(int axis = 0; axis < AccDataParser.AXES; axis++){
+                    colMin[axis][c] = Double.NaN;
+                    colMax[axis][c] = Double.NaN;
+                }
+            total += stop - start;
+            start = stop;
+        }
+        return total;
+    }
+
+    /**
+     * Minimum and maximum of each axis of the samples from a to b-1, taking the largest aligned block at each step.
+     */
+    private void range(long a, long b, double[][] colMin, double[][] colMax, int column){
+        double loX = Double.POSITIVE_INFINITY, loY = loX, loZ = loX;
+        double hiX = Double.NEGATIVE_INFINITY, hiY = hiX, hiZ = hiX;
+
+        while(a < b){
+            int level = LEVELS;
+            while(level > 0 && ((a & ((1L << (LEVEL_BITS * level)) - 1)) != 0 || a + (1L << (LEVEL_BITS * level)) > b))
+                level--;
+
+            double[] minX, minY, minZ, maxX, maxY, maxZ;
+            int i;
+            if(level == 0){
+                minX = maxX = values[0];
+                minY = maxY = values[1];
+                minZ = maxZ = values[2];
+                i = (int) a & mask;
+                a++;
+            }else{
+                minX = min[level][0];
+                minY = min[level][1];
+                minZ = min[level][2];
+                maxX = max[level][0];
+                maxY = max[level][1];
+                maxZ = max[level][2];
+                i = ((int) a & mask) >> (LEVEL_BITS * level);
+                a += 1L << (LEVEL_BITS * level);
+            }
+            loX = Math.min(loX, minX[i]);
+            loY = Math.min(loY, minY[i]);
+            loZ = Math.min(loZ, minZ[i]);
+            hiX = Math.max(hiX, maxX[i]);
+            hiY = Math.max(hiY, maxY[i]);
+            hiZ = Math.max(hiZ, maxZ[i]);
+        }
+        colMin[0][column] = loX;
+        colMin[1][column] = loY;
+        colMin[2][column] = loZ;
+        colMax[0][column] = hiX;
+        colMax[1][column] = hiY;
+        colMax[2][column] = hiZ;
+    }
+
+    /**
+     * @return Index of the first sample received at or after the given time, between lo and hi.
+     */
+    private long search(long t, long lo, long hi){
+        while(lo < hi){
+            long mid = (lo + hi) >>> 1;
+            if(time[(int) mid & mask] - t < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * @return Reception time of the newest sample, as given by System.nanoTime(), 0 if none.
+     */
+    @Override
+    public long getLatestTime(){
+        long n = count.get();
+        return n == 0 ? 0 : time[(int) (n - 1) & mask];
+    }
+
+    /**
+     * @return Reception time of the oldest sample that can be read.
+     */
+    @Override
+    public long getOldestTime(){
+        long n = count.get();
+        return n == 0 ? 0 : time[(int) Math.max(0, n - capacity + GUARD) & mask];
+    }
+
+    /**
+     * @return Samples received since the history was created.
+     */
+    @Override
+    public long getCount(){
+        return count.get();
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public long getDropped(){
+        SampleBus.Subscription s = subscription;
+        return s == null ? 0 : s.getDropped();
+    }
+
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Receives decoded accelerometer samples.
+ * @author Federico Domínguez
+ */
+public interface SampleListenerInterface {
+
+    /**
+     * A sample has been decoded.
+     * @param x x-axis direct ADC reading.
+     * @param y y-axis direct ADC reading.
+     * @param z z-axis direct ADC reading.
+     */
+    void receiveSample(int x, int y, int z);
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single producer / single consumer ring buffer of x,y,z ADC readings.
+ * Samples are stored in primitive columns (the time, and the three 16 bit readings side by side),
+ * nothing is allocated after construction.
+ * Exactly one thread may call {@link #offer} and exactly one thread may call {@link #drainTo}.
+ * When the buffer is full new samples are dropped and counted. An idle consumer can park in
+ * {@link #awaitSamples} and is woken by the next sample, so idle devices cost no CPU.
+ * @author Federico Domínguez
+ */
+public class SampleRingBuffer {
+
+    //Sample columns, raw holds x,y,z of each sample
+    private final long[] time;
+    private final short[] raw;
+
+    private final int capacity;
+    private final int mask;
+
+    //Next position to read, written by the consumer
+    private final AtomicLong head;
+
+    //Next position to write, written by the producer
+    private final AtomicLong tail;
+
+    //Producer's last seen head and consumer's last seen tail, avoids reading the other side's counter on every call
+    private long cachedHead;
+    private long cachedTail;
+
+    //Samples rejected because the buffer was full, written by the producer only
+    private volatile long dropped;
+
+    //Consumer parked in awaitSamples(), woken by the producer
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param requestedCapacity Minimum number of samples held, rounded up to a power of two.
+     */
+    public SampleRingBuffer(int requestedCapacity){
+        int c = Integer.highestOneBit(Math.max(1, requestedCapacity - 1)) << 1;
+        capacity = c;
+        mask = c - 1;
+        time = new long[c];
+        raw = new short[c*AccDataParser.AXES];
+        head = new AtomicLong();
+        tail = new AtomicLong();
+    }
+
+    /**
+     * Adds a sample. Called by the producer thread only.
+     * @param nanoTime Reception time as given by System.nanoTime().
+     * @param rawX x-axis ADC reading.
+     * @param rawY y-axis ADC reading.
+     * @param rawZ z-axis ADC reading.
+     * @return false if the buffer is full and the sample was dropped.
+     */
+    public boolean offer(long nanoTime, int rawX, int rawY, int rawZ){
+        long currentTail = tail.get();
+
+        if(currentTail - cachedHead >= capacity){
+            cachedHead = head.get();
+            if(currentTail - cachedHead >= capacity){
+                dropped++;
+                return false;
+            }
+        }
+
+        int i = (int) currentTail & mask;
+        time[i] = nanoTime;
+        raw[3*i] = (short) rawX;
+        raw[3*i + 1] = (short) rawY;
+        raw[3*i + 2] = (short) rawZ;
+
+        //Publishes the sample to the consumer
+        tail.lazySet(currentTail + 1);
+        if(waitingConsumer != null)
+            wakeConsumer();
+        return true;
+    }
+
+    private void wakeConsumer(){
+        Thread consumer = waitingConsumer;
+        if(consumer != null){
+            waitingConsumer = null;
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Parks the consumer until a sample is offered. Called by the consumer thread only.
+     * The producer publishes without a full fence, so in rare cases a wake up is missed
+     * and the consumer sleeps the whole timeout.
+     * @param maxNanos Longest wait.
+     */
+    public void awaitSamples(long maxNanos){
+        waitingConsumer = Thread.currentThread();
+        //Checked again after announcing the wait, a sample may have just been published
+        if(tail.get() == head.get())
+            LockSupport.parkNanos(this, maxNanos);
+        waitingConsumer = null;
+    }
+
+    /**
+     * Moves samples to the end of a batch, as many as fit. Called by the consumer thread only.
+     * Only the time and raw columns of the batch are written.
+     * @param batch Batch being filled.
+     * @return Number of samples moved.
+     */
+    public int drainTo(SampleBatch batch){
+        long currentHead = head.get();
+        int offset = batch.getLength();
+        int max = batch.getCapacity() - offset;
+
+        if(cachedTail - currentHead < max)
+            cachedTail = tail.get();
+
+        int n = (int) Math.min(cachedTail - currentHead, max);
+        if(n <= 0)
+            return 0;
+
+        int start = (int) currentHead & mask;
+        int first = Math.min(n, capacity - start);
+
+        //Copies up to the end of the ring, then wraps around
+        System.arraycopy(time, start, batch.nanoTime, offset, first);
+        System.arraycopy(raw, 3*start, batch.raw, 3*offset, 3*first);
+        if(first < n){
+            System.arraycopy(time, 0, batch.nanoTime, offset + first, n - first);
+            System.arraycopy(raw, 0, batch.raw, 3*(offset + first), 3*(n - first));
+        }
+        batch.setLength(offset + n);
+
+        //Frees the slots for the producer
+        head.lazySet(currentHead + n);
+        return n;
+    }
+
+    /**
+     * Discards every pending sample. Called by the consumer thread only.
+     */
+    public void clear(){
+        cachedTail = tail.get();
+        head.lazySet(cachedTail);
+    }
+
+    /**
+     * @return Approximate number of samples waiting to be drained.
+     */
+    public int size(){
+        return (int) (tail.get() - head.get());
+    }
+
+    public int getCapacity(){
+        return capacity;
+    }
+
+    public long getDropped(){
+        return dropped;
+    }
+
+}
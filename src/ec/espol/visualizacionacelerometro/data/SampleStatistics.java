@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.Arrays;
+
+/**
+ * Count, mean, standard deviation, minimum and maximum of the x,y,z values of consecutive samples,
+ * and the gaps between their times. Statistics of consecutive stretches of a signal, computed apart
+ * (for example in parallel), are merged into those of the whole signal with {@link #merge}.
+ * Means and variances are combined with the pairwise formulas of Chan et al., so long signals
+ * don't lose precision as a running sum of squares would.
+ * @author Federico Domínguez
+ */
+public class SampleStatistics {
+
+    private long count;
+    private final double[] mean;
+    private final double[] m2;
+    private final double[] min;
+    private final double[] max;
+
+    //Times of the first and last sample, and longest time between two consecutive samples
+    private long firstTime;
+    private long lastTime;
+    private long maxGap;
+
+    public SampleStatistics(){
+        mean = new double[AccDataParser.AXES];
+        m2 = new double[AccDataParser.AXES];
+        min = new double[AccDataParser.AXES];
+        max = new double[AccDataParser.AXES];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Adds samples that follow the ones already added.
+     * @param batch Batch with its time and x,y,z columns filled.
+     * @param off Position of the first sample.
+     * @param len Number of samples.
+     */
+    public void add(SampleBatch batch, int off, int len){
+        if(len <= 0)
+            return;
+
+        long[] time = batch.nanoTime;
+        long gap = count > 0 ? time[off] - lastTime : 0;
+        for(int i = off + 1; i < off + len; i++)
+            gap = Math.max(gap, time[i] - time[i - 1]);
+
+        //Mean and squared deviations of the block, then merged with the samples before
+        double[][] columns = {batch.x, batch.y, batch.z};
+        for(int axis = 0; axis < AccDataParser.AXES; axis++){
+            double[] v = columns[axis];
+            double sum = 0, lo = min[axis], hi = max[axis];
+            for(int i = off; i < off + len; i++){
+                sum += v[i];
+                lo = Math.min(lo, v[i]);
+                hi = Math.max(hi, v[i]);
+            }
+            double blockMean = sum / len;
+            double blockM2 = 0;
+            for(int i = off; i < off + len; i++){
+                double d = v[i] - blockMean;
+                blockM2 += d * d;
+            }
+            combine(axis, len, blockMean, blockM2);
+            min[axis] = lo;
+            max[axis] = hi;
+        }
+
+        if(count == 0)
+            firstTime = time[off];
+        lastTime = time[off + len - 1];
+        maxGap = Math.max(maxGap, gap);
+        count += len;
+    }
+
+    /**
+     * Adds the statistics of the samples that follow the ones already added.
+     * @param later Statistics of the next samples.
+     */
+    public void merge(SampleStatistics later){
+        if(later.count == 0)
+            return;
+
+        for(int axis = 0; axis < AccDataParser.AXES; axis++){
+            combine(axis, later.count, later.mean[axis], later.m2[axis]);
+            min[axis] = Math.min(min[axis], later.min[axis]);
+            max[axis] = Math.max(max[axis], later.max[axis]);
+        }
+        if(count == 0)
+            firstTime = later.firstTime;
+        else
+            maxGap = Math.max(maxGap, later.firstTime - lastTime);
+        maxGap = Math.max(maxGap, later.maxGap);
+        lastTime = later.lastTime;
+        count += later.count;
+    }
+
+    /**
+     * Combines the mean and squared deviations of an axis with those of n other samples.
+     * The count is updated by the caller.
+     */
+    private void combine(int axis, long n, double otherMean, double otherM2){
+        long total = count + n;
+        double delta = otherMean - mean[axis];
+        mean[axis] += delta * n / total;
+        m2[axis] += otherM2 + delta * delta * ((double) count * n / total);
+    }
+
+    public long getCount(){
+        return count;
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Mean, NaN without samples.
+     */
+    public double getMean(int axis){
+        return count == 0 ? Double.NaN : mean[axis];
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Population standard deviation, NaN without samples.
+     */
+    public double getStandardDeviation(int axis){
+        return count == 0 ? Double.NaN : Math.sqrt(m2[axis] / count);
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Root mean square, NaN without samples.
+     */
+    public double getRms(int axis){
+        return count == 0 ? Double.NaN : Math.sqrt(mean[axis] * mean[axis] + m2[axis] / count);
+    }
+
+    public double getMin(int axis){
+        return count == 0 ? Double.NaN : min[axis];
+    }
+
+    public double getMax(int axis){
+        return count == 0 ? Double.NaN : max[axis];
+    }
+
+    public long getFirstTime(){
+        return firstTime;
+    }
+
+    public long getLastTime(){
+        return lastTime;
+    }
+
+    /**
+     * @return Longest time between two consecutive samples, in nanoseconds.
+     */
+    public long getMaxGap(){
+        return maxGap;
+    }
+
+    /**
+     * @return Mean samples per second, 0 with less than two samples.
+     */
+    public double getRate(){
+        return count < 2 ? 0 : (count - 1) * 1e9 / (lastTime - firstTime);
+    }
+
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Consumer of the sample batches published by a data source, see {@link SampleBus}.
+ * @author Federico Domínguez
+ */
+public interface SampleSubscriberInterface {
+    
+    /**
+     * Receives a batch of samples, in the subscription's own thread.
+     * The batch is read-only and is only valid during the call: to keep it longer call
+     * batch.retain() and batch.release() when done.
+     * @param batch Consecutive samples of the device.
+     */
+    void receiveBatch(SampleBatch batch);
+    
+    /**
+     * Called in the subscription's thread when no batch arrived for a while (about 100 ms),
+     * for example to flush buffered output.
+     */
+    default void idle(){
+    }
+    
+}
@@ -16,7 +16,6 @@
  */
 package ec.espol.visualizacionacelerometro.data;
 
-import ec.espol.visualizacionacelerometro.control.VisualizacionAcelerometro;
 import gnu.io.CommPort;
 import gnu.io.CommPortIdentifier;
 import gnu.io.NoSuchPortException;
@@ -30,15 +29,53 @@ import java.util.ArrayList;
 
 /**
  * Implements the data collection using a serial port. Listens to incoming data events.
+ * Devices may send tab separated ASCII lines or binary frames (see {@link AccBinaryDecoder}),
+ * by default the protocol is detected from the first bytes received.
  * @author Federico Domínguez
  */
-public class SerialDataCollection implements DataCollectionInterface, SerialPortEventListener {
+public class SerialDataCollection implements DataCollectionInterface, SerialPortEventListener, FrameListenerInterface, SampleListenerInterface {
+    
+    //Default serial port speed
+    public static final int DEFAULT_BAUD_RATE = 115200;
     
     //Input stream
     private InputStream inStream;
     
-    //Temporary buffere
-    private final byte[] buffer;
+    //Bulk read buffer
+    private final byte[] chunk;
+    
+    //Splits the incoming bytes into lines (ASCII protocol)
+    private final LineFramer framer;
+    
+    //Decodes binary frames (binary protocol)
+    private final AccBinaryDecoder binaryDecoder;
+    
+    //Protocol detection
+    private final WireProtocolDetector detector;
+    private WireProtocolDetector.WIRE_PROTOCOL protocol;
+    private WireProtocolDetector.WIRE_PROTOCOL activeProtocol;
+    
+    //Serial port speed
+    private int baudRate;
+    
+    //Extracts the x,y,z ADC readings of each line
+    private final AccDataParser parser;
+    private final double[] xyz;
+    
+    //Direct ADC readings are queued here for the device pipeline
+    private final SampleRingBuffer samples;
+    
+    //Parsed samples are also published here for the subscribers
+    private final SampleBus bus;
+    
+    //Lines that could not be parsed
+    private volatile long parseErrors;
+    
+    //Bytes received from the port
+    private volatile long bytesRead;
+    
+    //Reception time of the block being decoded, shared by all its samples
+    private long chunkTime;
     
     //Connected serial port
     private SerialPort serialPort;
@@ -46,18 +83,46 @@ public class SerialDataCollection implements DataCollectionInterface, SerialPort
     //Maintains connected/disconnected state
     private boolean isConnected;
     
-    public SerialDataCollection(){
+    /**
+     * @param samples Ring buffer where the direct ADC readings are queued.
+     */
+    public SerialDataCollection(SampleRingBuffer samples){
         isConnected = false;
+        this.samples = samples;
+        bus = new SampleBus();
         
         //Inicializa buffer de datos
-        buffer = new byte[1024];
+        chunk = new byte[LineFramer.DEFAULT_CHUNK_SIZE];
+        framer = new LineFramer(this);
+        binaryDecoder = new AccBinaryDecoder(this);
+        detector = new WireProtocolDetector();
+        protocol = WireProtocolDetector.WIRE_PROTOCOL.AUTO;
+        activeProtocol = protocol;
+        baudRate = DEFAULT_BAUD_RATE;
+        parser = new AccDataParser();
+        xyz = new double[AccDataParser.AXES];
     }
 
     
     @Override
     public ArrayList<String> getComLinks() {
-        java.util.Enumeration<CommPortIdentifier> portEnum = CommPortIdentifier.getPortIdentifiers();
+        return scanPorts();
+    }
+    
+    /**
+     * Scans serial ports in the PC.
+     * @return ArrayList containing names of all found serial ports. Returns empty list if no ports available.
+     */
+    public static ArrayList<String> scanPorts() {
         ArrayList<String> ports = new ArrayList();
+        java.util.Enumeration<CommPortIdentifier> portEnum;
+        try{
+            portEnum = CommPortIdentifier.getPortIdentifiers();
+        }catch(LinkageError e){
+            //RXTX native library not installed, only recordings can be played
+            System.out.println("Error scanning serial ports: "+e.getLocalizedMessage());
+            return ports;
+        }
         while ( portEnum.hasMoreElements() ) 
         {
             CommPortIdentifier portIdentifier = portEnum.nextElement();
@@ -95,8 +160,11 @@ public class SerialDataCollection implements DataCollectionInterface, SerialPort
     public void disconnect() {
         try{
             if(isConnected){
+                serialPort.removeEventListener();
                 inStream.close();
                 serialPort.close();
+                framer.reset();
+                binaryDecoder.reset();
                 isConnected = false;
             }
         }catch(IOException e){
@@ -109,6 +177,27 @@ public class SerialDataCollection implements DataCollectionInterface, SerialPort
         return isConnected;
     }
     
+    @Override
+    public long getParseErrorCount() {
+        //Corrupted binary frames count as parse errors too
+        return parseErrors + binaryDecoder.getCrcErrors();
+    }
+
+    @Override
+    public SampleBus getSampleBus() {
+        return bus;
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    @Override
+    public long getFramesDecoded() {
+        return framer.getFramesOk() + framer.getFramesOverflowed() + binaryDecoder.getFramesOk() + binaryDecoder.getCrcErrors();
+    }
+    
     /**
      * Attempts to connect to an specific serial port.
      * @param portName String containing the serial port name. Example: "COM3"
@@ -130,7 +219,11 @@ public class SerialDataCollection implements DataCollectionInterface, SerialPort
                 serialPort = (SerialPort) commPort;
                 
                 //Default serial parameters for most devices (Arduino, XBee, etc.)
-                serialPort.setSerialPortParams(115200,SerialPort.DATABITS_8,SerialPort.STOPBITS_1,SerialPort.PARITY_NONE);
+                serialPort.setSerialPortParams(baudRate,SerialPort.DATABITS_8,SerialPort.STOPBITS_1,SerialPort.PARITY_NONE);
+                
+                //Detects the protocol again on every connection unless it is forced
+                detector.reset();
+                activeProtocol = protocol;
                 
                 inStream = serialPort.getInputStream();
                 
@@ -147,29 +240,134 @@ public class SerialDataCollection implements DataCollectionInterface, SerialPort
     
     /**
      * The serial port generates an event, for example incoming data.
+     * All available bytes are read at once, decoded samples are queued.
+     * The samples of each block read take its reception time, so times never decrease and
+     * the clock is read once per block instead of once per sample.
      * @param spe 
      */
     @Override
     public void serialEvent(SerialPortEvent spe) {
-        int data;
+        if(spe.getEventType() != SerialPortEvent.DATA_AVAILABLE)
+            return;
         
         try
         {
-            int len = 0;
-            while ( ( data = inStream.read()) > -1 )
-            {
-                if ( data == '\n' ) {
+            int available = inStream.available();
+            while(available > 0){
+                int n = inStream.read(chunk, 0, Math.min(available, chunk.length));
+                if(n <= 0)
                     break;
-                }
-                buffer[len++] = (byte) data;
+                chunkTime = System.nanoTime();
+                receiveBytes(chunk, 0, n);
+                available = inStream.available();
             }
-            
-            //sends data to main view window
-            VisualizacionAcelerometro.getGUIFrame().receiveNewData(new String(buffer,0,len));
+            //Subscribers get what was received without waiting for a full batch
+            bus.flush();
         }
         catch ( IOException e )
         {
             System.out.println("Error reading from serial port: "+e.getLocalizedMessage());
         }  
     }
+
+    /**
+     * Routes received bytes to the decoder of the active protocol, detecting it first if needed.
+     * @param data Buffer with the incoming bytes.
+     * @param offset Index of the first byte.
+     * @param length Number of bytes.
+     */
+    private void receiveBytes(byte[] data, int offset, int length){
+        bytesRead += length;
+        if(activeProtocol == WireProtocolDetector.WIRE_PROTOCOL.AUTO){
+            int n = detector.append(data, offset, length);
+            if(detector.getDetected() == WireProtocolDetector.WIRE_PROTOCOL.AUTO)
+                return;
+            
+            //Decodes the bytes used for detection, then the rest of the block
+            activeProtocol = detector.getDetected();
+            decode(detector.getBuffer(), 0, detector.getLength());
+            offset += n;
+            length -= n;
+        }
+        decode(data, offset, length);
+    }
+    
+    private void decode(byte[] data, int offset, int length){
+        if(activeProtocol == WireProtocolDetector.WIRE_PROTOCOL.BINARY)
+            binaryDecoder.feed(data, offset, length);
+        else
+            framer.feed(data, offset, length);
+    }
+    
+    /**
+     * A complete line has been received from the serial port.
+     * @param buffer Buffer holding the line.
+     * @param offset Index of the first byte.
+     * @param length Line length.
+     */
+    @Override
+    public void receiveFrame(byte[] buffer, int offset, int length) {
+        //queues the sample for the device pipeline, never waits for it
+        if(parser.parseRaw(buffer, offset, length, xyz) == AccDataParser.PARSE_RESULT.PARSE_OK){
+            int x = (int) xyz[0], y = (int) xyz[1], z = (int) xyz[2];
+            samples.offer(chunkTime, x, y, z);
+            bus.add(chunkTime, x, y, z);
+        }else
+            parseErrors++;
+    }
+    
+    /**
+     * A binary frame has been decoded.
+     * @param x x-axis ADC reading.
+     * @param y y-axis ADC reading.
+     * @param z z-axis ADC reading.
+     */
+    @Override
+    public void receiveSample(int x, int y, int z) {
+        samples.offer(chunkTime, x, y, z);
+        bus.add(chunkTime, x, y, z);
+    }
+    
+    /**
+     * Sets the serial port speed used by the next connection.
+     * @param baudRate Speed in bits per second.
+     */
+    public void setBaudRate(int baudRate){
+        this.baudRate = baudRate;
+    }
+    
+    public int getBaudRate(){
+        return baudRate;
+    }
+    
+    /**
+     * Sets the protocol used by the next connection. AUTO detects it from the first bytes received.
+     * @param protocol WIRE_PROTOCOL enumeration.
+     */
+    public void setProtocol(WireProtocolDetector.WIRE_PROTOCOL protocol){
+        this.protocol = protocol;
+    }
+    
+    /**
+     * @return Protocol of the current connection, AUTO while still detecting.
+     */
+    public WireProtocolDetector.WIRE_PROTOCOL getActiveProtocol(){
+        return activeProtocol;
+    }
+    
+    /**
+     * Gives access to the binary protocol counters (CRC errors, lost frames).
+     * @return The binary frame decoder of this port.
+     */
+    public AccBinaryDecoder getBinaryDecoder(){
+        return binaryDecoder;
+    }
+    
+    /**
+     * Gives access to the framing counters (bytes read, overflowed and truncated lines).
+     * @return The line framer of this port.
+     */
+    public LineFramer getFramer(){
+        return framer;
+    }
 }
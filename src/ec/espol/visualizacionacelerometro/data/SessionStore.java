@@ -0,0 +1,522 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Every filtered sample of a device since it was connected, kept off the heap for scrubbing back
+ * through hours of a live capture. Samples are stored by column in chunks of 65536 (time, x,y,z and
+ * the raw readings), each chunk a direct ByteBuffer that also holds the min/max pyramid of its samples
+ * (blocks of 16, 256, 4096 and the whole chunk), so decimating hours costs about as much as seconds.
+ * The chunks come from a {@link Budget} shared by all the devices: once it is used up, the oldest
+ * chunk of any device is taken for the newest samples. The heap only holds the chunk table.
+ * Filled by its subscription to the pipeline's filtered bus (single writer) without locks.
+ * Readers never block either: they read optimistically and read again if a chunk was taken meanwhile.
+ * @author Federico Domínguez
+ */
+public class SessionStore implements SampleSubscriberInterface, SignalSummaryInterface {
+
+    //Samples per chunk
+    public static final int CHUNK_BITS = 16;
+    public static final int CHUNK_RECORDS = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_RECORDS - 1;
+
+    //Pyramid levels, each one summarizes 2^LEVEL_BITS blocks of the level below, the last one the whole chunk
+    private static final int LEVELS = 4;
+    private static final int LEVEL_BITS = 4;
+
+    //Chunk layout: time column, x,y,z columns, raw x,y,z columns, then min and max of each axis per level
+    private static final int TIME_OFFSET = 0;
+    private static final int VALUES_OFFSET = TIME_OFFSET + 8 * CHUNK_RECORDS;
+    private static final int RAW_OFFSET = VALUES_OFFSET + 3 * 8 * CHUNK_RECORDS;
+    private static final int[] LEVEL_OFFSET = new int[LEVELS + 1];
+    public static final int CHUNK_BYTES;
+    static{
+        int offset = RAW_OFFSET + 3 * 2 * CHUNK_RECORDS;
+        for(int level = 1; level <= LEVELS; level++){
+            LEVEL_OFFSET[level] = offset;
+            offset += AccDataParser.AXES * 2 * 8 * (CHUNK_RECORDS >> (LEVEL_BITS * level));
+        }
+        CHUNK_BYTES = offset;
+    }
+
+    //Chunks are only taken from devices that have at least this many, so the chunk being filled is never taken
+    private static final int MIN_CHUNKS = 2;
+
+    //Batches queued for the store
+    private static final int QUEUE_BATCHES = 64;
+
+    /**
+     * Memory shared by the stores of all the devices. Chunks freed by a stopped store are kept for the others.
+     */
+    public static final class Budget {
+
+        private final long bytes;
+        private final AtomicLong allocated;
+        private final ConcurrentLinkedQueue<ByteBuffer> free;
+        private final CopyOnWriteArrayList<SessionStore> stores;
+
+        /**
+         * @param bytes Off-heap memory for all the stores, each device keeps the chunk being filled anyway.
+         */
+        public Budget(long bytes){
+            if(bytes < CHUNK_BYTES)
+                throw new IllegalArgumentException("Invalid store memory: " + bytes);
+            this.bytes = bytes;
+            allocated = new AtomicLong();
+            free = new ConcurrentLinkedQueue<>();
+            stores = new CopyOnWriteArrayList<>();
+        }
+
+        /**
+         * @return A free chunk, or a new one if the budget allows it, null otherwise.
+         */
+        private ByteBuffer allocate(){
+            ByteBuffer chunk = free.poll();
+            if(chunk != null)
+                return chunk;
+            long a;
+            do{
+                a = allocated.get();
+                if(a + CHUNK_BYTES > bytes)
+                    return null;
+            }while(!allocated.compareAndSet(a, a + CHUNK_BYTES));
+            return newChunk();
+        }
+
+        private ByteBuffer newChunk(){
+            return ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.nativeOrder());
+        }
+
+        /**
+         * Takes the oldest chunk of all the stores that keep more than the minimum.
+         * @return The chunk, null if no store can give one.
+         */
+        private ByteBuffer evictOldest(){
+            SessionStore oldest = null;
+            long oldestTime = 0;
+            for(SessionStore store : stores){
+                long t = store.getOldestChunkTime();
+                if(t != 0 && (oldest == null || t - oldestTime < 0)){
+                    oldest = store;
+                    oldestTime = t;
+                }
+            }
+            return oldest == null ? null : oldest.evictOldestChunk();
+        }
+
+        /**
+         * @return Number of chunks the budget can hold.
+         */
+        public int getChunks(){
+            return (int) Math.min(Integer.MAX_VALUE - MIN_CHUNKS, bytes / CHUNK_BYTES);
+        }
+
+        public long getBytes(){
+            return bytes;
+        }
+
+        /**
+         * @return Off-heap memory allocated so far, including the chunks over the budget.
+         */
+        public long getAllocated(){
+            return allocated.get();
+        }
+    }
+
+    private final String name;
+    private final Budget budget;
+
+    //table[chunk % table.length] holds chunk number chunk, for the chunks from firstChunk to nextChunk-1.
+    //Entries are never cleared, a chunk taken is detected by the readers with the lock stamp
+    private final ByteBuffer[] table;
+    private volatile long firstChunk;
+    private volatile long nextChunk;
+    private final StampedLock chunkLock;
+
+    //Samples written, published after the sample and its blocks
+    private final AtomicLong count;
+
+    private SampleBus bus;
+    private SampleBus.Subscription subscription;
+
+    /**
+     * @param name Name of the device.
+     * @param budget Memory shared with the stores of the other devices.
+     */
+    public SessionStore(String name, Budget budget){
+        this.name = name;
+        this.budget = budget;
+        table = new ByteBuffer[budget.getChunks() + MIN_CHUNKS];
+        chunkLock = new StampedLock();
+        count = new AtomicLong();
+    }
+
+    /**
+     * Subscribes to a bus of filtered samples.
+     * @param bus Filtered bus of the device pipeline.
+     */
+    public void start(SampleBus bus){
+        this.bus = bus;
+        budget.stores.add(this);
+        subscription = bus.subscribe(this, "Store " + name, QUEUE_BATCHES);
+    }
+
+    /**
+     * Unsubscribes from the bus and gives the chunks back to the budget.
+     * The store is empty afterwards and can't be started again.
+     */
+    public void stop(){
+        if(subscription != null){
+            bus.unsubscribe(subscription);
+            subscription = null;
+        }
+        budget.stores.remove(this);
+
+        long stamp = chunkLock.writeLock();
+        try{
+            for(long c = firstChunk; c < nextChunk; c++)
+                budget.free.offer(table[slot(c)]);
+            firstChunk = nextChunk;
+        }finally{
+            chunkLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void receiveBatch(SampleBatch batch) {
+        long n = count.get();
+        double[] bx = batch.x, by = batch.y, bz = batch.z;
+        short[] raw = batch.raw;
+        ByteBuffer chunk = n == 0 ? null : table[slot((n - 1) >> CHUNK_BITS)];
+
+        for(int i = 0; i < batch.getLength(); i++, n++){
+            int p = (int) n & CHUNK_MASK;
+            if(p == 0)
+                chunk = startChunk(n >> CHUNK_BITS);
+            chunk.putLong(TIME_OFFSET + 8*p, batch.nanoTime[i]);
+            chunk.putShort(RAW_OFFSET + 2*p, raw[3*i]);
+            chunk.putShort(RAW_OFFSET + 2*(CHUNK_RECORDS + p), raw[3*i + 1]);
+            chunk.putShort(RAW_OFFSET + 2*(2*CHUNK_RECORDS + p), raw[3*i + 2]);
+            add(chunk, 0, p, bx[i]);
+            add(chunk, 1, p, by[i]);
+            add(chunk, 2, p, bz[i]);
+        }
+        count.lazySet(n);
+    }
+
+    /**
+     * Gets a chunk for the next samples: a free one, the oldest of all the devices once the
+     * budget is used up, or a new one over the budget if this device has less than the minimum.
+     * A device that took chunks from the others until its table is full reuses its own oldest chunk,
+     * so the new chunk never replaces a live entry of the table.
+     */
+    private ByteBuffer startChunk(long chunkNumber){
+        ByteBuffer chunk = nextChunk - firstChunk == table.length ? evictOldestChunk() : null;
+        if(chunk == null)
+            chunk = budget.allocate();
+        if(chunk == null)
+            chunk = budget.evictOldest();
+        if(chunk == null){
+            budget.allocated.addAndGet(CHUNK_BYTES);
+            chunk = budget.newChunk();
+        }
+
+        long stamp = chunkLock.writeLock();
+        try{
+            table[slot(chunkNumber)] = chunk;
+            nextChunk = chunkNumber + 1;
+        }finally{
+            chunkLock.unlockWrite(stamp);
+        }
+        return chunk;
+    }
+
+    /**
+     * Gives away the oldest chunk, called by the budget from the writer of any store.
+     * @return The chunk, null if this store keeps only the minimum.
+     */
+    private ByteBuffer evictOldestChunk(){
+        long stamp = chunkLock.writeLock();
+        try{
+            if(nextChunk - firstChunk < MIN_CHUNKS)
+                return null;
+            return table[slot(firstChunk++)];
+        }finally{
+            chunkLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return Time of the first sample of the oldest chunk, 0 if this store keeps only the minimum.
+     */
+    private long getOldestChunkTime(){
+        while(true){
+            long stamp = chunkLock.tryOptimisticRead();
+            long first = firstChunk;
+            long t = nextChunk - first < MIN_CHUNKS ? 0 : table[slot(first)].getLong(TIME_OFFSET);
+            if(chunkLock.validate(stamp))
+                return t;
+        }
+    }
+
+    private int slot(long chunkNumber){
+        return (int) (chunkNumber % table.length);
+    }
+
+    /**
+     * Stores a value and updates the blocks holding it.
+     */
+    private static void add(ByteBuffer chunk, int axis, int p, double v){
+        chunk.putDouble(VALUES_OFFSET + 8*(axis*CHUNK_RECORDS + p), v);
+        for(int level = 1; level <= LEVELS; level++){
+            int shift = LEVEL_BITS * level;
+            int minOffset = summaryOffset(level, axis, false) + 8*(p >> shift);
+            int maxOffset = summaryOffset(level, axis, true) + 8*(p >> shift);
+            if((p & ((1 << shift) - 1)) == 0){
+                //First sample of the block
+                chunk.putDouble(minOffset, v);
+                chunk.putDouble(maxOffset, v);
+            }else{
+                if(v < chunk.getDouble(minOffset))
+                    chunk.putDouble(minOffset, v);
+                if(v > chunk.getDouble(maxOffset))
+                    chunk.putDouble(maxOffset, v);
+            }
+        }
+    }
+
+    /**
+     * @return Offset of the minimums (or maximums) of an axis at a level.
+     */
+    private static int summaryOffset(int level, int axis, boolean max){
+        int blocks = CHUNK_RECORDS >> (LEVEL_BITS * level);
+        return LEVEL_OFFSET[level] + 8*blocks*(2*axis + (max ? 1 : 0));
+    }
+
+    /**
+     * Decimates the samples received between two times, see {@link SignalSummaryInterface#decimate}.
+     */
+    @Override
+    public long decimate(long from, long to, int columns, double[][] colMin, double[][] colMax){
+        while(true){
+            long stamp = chunkLock.tryOptimisticRead();
+            long end = count.get();
+            long oldest = getOldestIndex(end);
+
+            long start = search(from, oldest, end);
+            long total = 0;
+            for(int c = 0; c < columns; c++){
+                long edge = from + (to - from) * (c + 1) / columns;
+                long stop = c == columns - 1 ? search(to + 1, start, end) : search(edge, start, end);
+                if(stop > start)
+                    range(start, stop, colMin, colMax, c);
+                else
+                    for(int axis = 0; axis < AccDataParser.AXES; axis++){
+                        colMin[axis][c] = Double.NaN;
+                        colMax[axis][c] = Double.NaN;
+                    }
+                total += stop - start;
+                start = stop;
+            }
+            if(chunkLock.validate(stamp))
+                return total;
+        }
+    }
+
+    /**
+     * Minimum and maximum of each axis of the samples from a to b-1, taking the largest aligned block at each step.
+     */
+    private void range(long a, long b, double[][] colMin, double[][] colMax, int column){
+        double loX = Double.POSITIVE_INFINITY, loY = loX, loZ = loX;
+        double hiX = Double.NEGATIVE_INFINITY, hiY = hiX, hiZ = hiX;
+
+        while(a < b){
+            int level = LEVELS;
+            while(level > 0 && ((a & ((1L << (LEVEL_BITS * level)) - 1)) != 0 || a + (1L << (LEVEL_BITS * level)) > b))
+                level--;
+
+            ByteBuffer chunk = table[slot(a >> CHUNK_BITS)];
+            int p = (int) a & CHUNK_MASK;
+            int minX, minY, minZ, maxX, maxY, maxZ;
+            if(level == 0){
+                minX = maxX = VALUES_OFFSET + 8*p;
+                minY = maxY = minX + 8*CHUNK_RECORDS;
+                minZ = maxZ = minY + 8*CHUNK_RECORDS;
+                a++;
+            }else{
+                int i = 8*(p >> (LEVEL_BITS * level));
+                minX = summaryOffset(level, 0, false) + i;
+                minY = summaryOffset(level, 1, false) + i;
+                minZ = summaryOffset(level, 2, false) + i;
+                maxX = summaryOffset(level, 0, true) + i;
+                maxY = summaryOffset(level, 1, true) + i;
+                maxZ = summaryOffset(level, 2, true) + i;
+                a += 1L << (LEVEL_BITS * level);
+            }
+            loX = Math.min(loX, chunk.getDouble(minX));
+            loY = Math.min(loY, chunk.getDouble(minY));
+            loZ = Math.min(loZ, chunk.getDouble(minZ));
+            hiX = Math.max(hiX, chunk.getDouble(maxX));
+            hiY = Math.max(hiY, chunk.getDouble(maxY));
+            hiZ = Math.max(hiZ, chunk.getDouble(maxZ));
+        }
+        colMin[0][column] = loX;
+        colMin[1][column] = loY;
+        colMin[2][column] = loZ;
+        colMax[0][column] = hiX;
+        colMax[1][column] = hiY;
+        colMax[2][column] = hiZ;
+    }
+
+    /**
+     * @return Index of the first sample received at or after the given time, between lo and hi.
+     */
+    private long search(long t, long lo, long hi){
+        while(lo < hi){
+            long mid = (lo + hi) >>> 1;
+            if(getTime(mid) - t < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private long getTime(long index){
+        return table[slot(index >> CHUNK_BITS)].getLong(TIME_OFFSET + 8*((int) index & CHUNK_MASK));
+    }
+
+    /**
+     * @return Index of the oldest sample kept, given the samples written.
+     */
+    private long getOldestIndex(long end){
+        return Math.min(end, firstChunk << CHUNK_BITS);
+    }
+
+    /**
+     * Copies samples to a batch, for analysis: times, raw readings and filtered values.
+     * @param first Index of the first sample, see {@link #indexOf} and {@link #getOldestIndex}.
+     * @param batch Receives up to its capacity samples, its length is set to the number copied.
+     * @return Number of samples copied, 0 if the first one is no longer kept or not received yet.
+     */
+    public int read(long first, SampleBatch batch){
+        while(true){
+            long stamp = chunkLock.tryOptimisticRead();
+            long end = count.get();
+            int n = first < getOldestIndex(end) ? 0 : (int) Math.max(0, Math.min(batch.getCapacity(), end - first));
+
+            for(int i = 0; i < n; i++){
+                long index = first + i;
+                ByteBuffer chunk = table[slot(index >> CHUNK_BITS)];
+                int p = (int) index & CHUNK_MASK;
+                batch.nanoTime[i] = chunk.getLong(TIME_OFFSET + 8*p);
+                batch.raw[3*i] = chunk.getShort(RAW_OFFSET + 2*p);
+                batch.raw[3*i + 1] = chunk.getShort(RAW_OFFSET + 2*(CHUNK_RECORDS + p));
+                batch.raw[3*i + 2] = chunk.getShort(RAW_OFFSET + 2*(2*CHUNK_RECORDS + p));
+                batch.x[i] = chunk.getDouble(VALUES_OFFSET + 8*p);
+                batch.y[i] = chunk.getDouble(VALUES_OFFSET + 8*(CHUNK_RECORDS + p));
+                batch.z[i] = chunk.getDouble(VALUES_OFFSET + 8*(2*CHUNK_RECORDS + p));
+            }
+            if(chunkLock.validate(stamp)){
+                batch.setLength(n);
+                return n;
+            }
+        }
+    }
+
+    /**
+     * @param time Time as given by System.nanoTime().
+     * @return Index of the first sample kept received at or after the given time, getCount() if none.
+     */
+    public long indexOf(long time){
+        while(true){
+            long stamp = chunkLock.tryOptimisticRead();
+            long end = count.get();
+            long index = search(time, getOldestIndex(end), end);
+            if(chunkLock.validate(stamp))
+                return index;
+        }
+    }
+
+    /**
+     * @return Index of the oldest sample kept, the newest one is getCount()-1.
+     */
+    public long getOldestIndex(){
+        return getOldestIndex(count.get());
+    }
+
+    /**
+     * @return Reception time of the newest sample, as given by System.nanoTime(), 0 if none.
+     */
+    @Override
+    public long getLatestTime(){
+        while(true){
+            long stamp = chunkLock.tryOptimisticRead();
+            long end = count.get();
+            long t = end == getOldestIndex(end) ? 0 : getTime(end - 1);
+            if(chunkLock.validate(stamp))
+                return t;
+        }
+    }
+
+    /**
+     * @return Reception time of the oldest sample kept, 0 if none.
+     */
+    @Override
+    public long getOldestTime(){
+        while(true){
+            long stamp = chunkLock.tryOptimisticRead();
+            long end = count.get();
+            long oldest = getOldestIndex(end);
+            long t = end == oldest ? 0 : getTime(oldest);
+            if(chunkLock.validate(stamp))
+                return t;
+        }
+    }
+
+    /**
+     * @return Samples received since the store was created.
+     */
+    @Override
+    public long getCount(){
+        return count.get();
+    }
+
+    /**
+     * @return Off-heap memory held by this store.
+     */
+    public long getBytes(){
+        return (nextChunk - firstChunk) * CHUNK_BYTES;
+    }
+
+    public Budget getBudget(){
+        return budget;
+    }
+
+    public long getDropped(){
+        SampleBus.Subscription s = subscription;
+        return s == null ? 0 : s.getDropped();
+    }
+
+}
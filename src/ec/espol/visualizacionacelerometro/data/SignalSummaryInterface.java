@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Source of x,y,z values that can be reduced to one minimum and maximum per pixel column,
+ * shown by the strip chart: the live history of a device or a recorded session.
+ * @author Federico Domínguez
+ */
+public interface SignalSummaryInterface {
+
+    /**
+     * Decimates the samples between two times into columns, each one with the minimum and
+     * maximum of each axis in its time slice. Columns without samples get NaN.
+     * @param from Time of the left edge of the first column, as given by System.nanoTime().
+     * @param to Time of the right edge of the last column.
+     * @param columns Number of columns.
+     * @param colMin Receives the minimum of each axis and column, colMin[axis][column].
+     * @param colMax Receives the maximum of each axis and column.
+     * @return Number of samples in the range.
+     */
+    public long decimate(long from, long to, int columns, double[][] colMin, double[][] colMax);
+
+    /**
+     * @return Time of the oldest sample available, as given by System.nanoTime(), 0 if none.
+     */
+    public long getOldestTime();
+
+    /**
+     * @return Time of the newest sample available, 0 if none.
+     */
+    public long getLatestTime();
+
+    /**
+     * @return Number of samples.
+     */
+    public long getCount();
+
+}
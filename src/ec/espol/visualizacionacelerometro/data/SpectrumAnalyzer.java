@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Real-time magnitude spectrum of the three axes of a device.
+ * The analyzer subscribes to the parsed samples of the data source (see {@link SampleBus}), so if it
+ * falls behind, samples are dropped from the analysis only, not from the acquisition.
+ * The subscription thread keeps the most recent samples of each axis in g units (before filtering) and,
+ * every hop samples, applies a Hann window to the last size samples, transforms them and publishes the magnitudes.
+ * The sample rate is estimated from the reception times over the window.
+ * All buffers are allocated at construction.
+ * @author Federico Domínguez
+ */
+public class SpectrumAnalyzer implements SampleSubscriberInterface {
+
+    public static final int DEFAULT_SIZE = 1024;
+    public static final int DEFAULT_HOP = 256;
+
+    //Batches queued for the analyzer
+    private static final int QUEUE_BATCHES = 64;
+
+    private final String name;
+    private final int size;
+    private final int hop;
+    private final FFT fft;
+    private final double[] window;
+
+    //Analyzer state, only touched by the subscription thread
+    private final long[] historyTime;
+    private final double[][] history;
+    private int historyPosition;
+    private long historyCount;
+    private int sinceLast;
+    private final double[] re;
+    private final double[] im;
+    private final double[][] magnitudes;
+
+    //Latest spectrum, guarded by latestLock
+    private final Object latestLock;
+    private final double[][] latest;
+    private double latestSampleRate;
+    private volatile long spectrumCount;
+
+    private DataCollectionInterface source;
+    private SampleBus.Subscription subscription;
+
+    /**
+     * @param name Name of the device, used for the thread name.
+     * @param size Samples in each transform, a power of two.
+     * @param hop Samples between transforms, size/4 gives a smooth update with the Hann window.
+     */
+    public SpectrumAnalyzer(String name, int size, int hop){
+        if(hop < 1 || hop > size)
+            throw new IllegalArgumentException("Invalid spectrum hop: " + hop);
+        this.name = name;
+        this.size = size;
+        this.hop = hop;
+        fft = new FFT(size);
+
+        window = new double[size];
+        for(int i = 0; i < size; i++)
+            window[i] = 0.5 - 0.5*Math.cos(2*Math.PI*i/(size - 1));
+
+        historyTime = new long[size];
+        history = new double[AccDataParser.AXES][size];
+        re = new double[size];
+        im = new double[size];
+        magnitudes = new double[AccDataParser.AXES][getBinCount()];
+
+        latestLock = new Object();
+        latest = new double[AccDataParser.AXES][getBinCount()];
+    }
+
+    /**
+     * Subscribes to the samples of a data source.
+     * @param source Data source of the device.
+     */
+    public void start(DataCollectionInterface source){
+        this.source = source;
+        subscription = source.subscribe(this, "Spectrum " + name, QUEUE_BATCHES);
+    }
+
+    /**
+     * Stops the analysis.
+     */
+    public void stop(){
+        if(subscription != null){
+            source.unsubscribe(subscription);
+            subscription = null;
+        }
+    }
+
+    @Override
+    public void receiveBatch(SampleBatch batch) {
+        for(int i = 0; i < batch.getLength(); i++){
+            historyTime[historyPosition] = batch.nanoTime[i];
+            history[0][historyPosition] = batch.x[i];
+            history[1][historyPosition] = batch.y[i];
+            history[2][historyPosition] = batch.z[i];
+            historyPosition = (historyPosition + 1) & (size - 1);
+            historyCount++;
+
+            if(++sinceLast >= hop && historyCount >= size){
+                sinceLast = 0;
+                analyze();
+            }
+        }
+    }
+
+    /**
+     * Transforms the last size samples of each axis and publishes the magnitudes.
+     */
+    private void analyze(){
+        //historyPosition is now the oldest sample
+        for(int axis = 0; axis < AccDataParser.AXES; axis++){
+            double[] h = history[axis];
+
+            //The mean (gravity) is removed so it doesn't leak into the low frequencies
+            double mean = 0;
+            for(int i = 0; i < size; i++)
+                mean += h[i];
+            mean /= size;
+
+            for(int i = 0; i < size; i++){
+                re[i] = (h[(historyPosition + i) & (size - 1)] - mean)*window[i];
+                im[i] = 0;
+            }
+            fft.transform(re, im);
+
+            //Amplitude of a sinusoid, corrected for the window gain (0.5)
+            double[] m = magnitudes[axis];
+            for(int k = 0; k < m.length; k++)
+                m[k] = Math.sqrt(re[k]*re[k] + im[k]*im[k])*(k == 0 || k == size/2 ? 2.0 : 4.0)/size;
+        }
+
+        long span = historyTime[(historyPosition - 1) & (size - 1)] - historyTime[historyPosition];
+        double sampleRate = span > 0 ? (size - 1)*1e9/span : 0;
+
+        synchronized(latestLock){
+            for(int axis = 0; axis < AccDataParser.AXES; axis++)
+                System.arraycopy(magnitudes[axis], 0, latest[axis], 0, magnitudes[axis].length);
+            latestSampleRate = sampleRate;
+        }
+        spectrumCount++;
+    }
+
+    /**
+     * Copies the latest spectrum.
+     * @param spectrum Receives the magnitudes of each axis, [3][getBinCount()], in g units.
+     *                 Bin k is the frequency k*sampleRate/size.
+     * @return Estimated sample rate in samples per second, 0 if still unknown.
+     */
+    public double readSpectrum(double[][] spectrum){
+        synchronized(latestLock){
+            for(int axis = 0; axis < AccDataParser.AXES; axis++)
+                System.arraycopy(latest[axis], 0, spectrum[axis], 0, latest[axis].length);
+            return latestSampleRate;
+        }
+    }
+
+    /**
+     * @return Number of spectra computed since the start, changes when a new one is available.
+     */
+    public long getSpectrumCount(){
+        return spectrumCount;
+    }
+
+    /**
+     * @return Number of frequency bins, from 0 to half the sample rate.
+     */
+    public int getBinCount(){
+        return size/2 + 1;
+    }
+
+    public int getSize(){
+        return size;
+    }
+
+    public int getHop(){
+        return hop;
+    }
+
+    /**
+     * @return Samples not analyzed because the analyzer fell behind.
+     */
+    public long getDropped(){
+        SampleBus.Subscription s = subscription;
+        return s == null ? 0 : s.getDropped();
+    }
+
+}
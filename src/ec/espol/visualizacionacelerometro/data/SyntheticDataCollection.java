@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Implements the data collection with a synthetic load generator, to stress the pipeline without hardware.
+ * Links are named "sim:waveform" or "sim:waveform@rate", for example "sim:sine@100000".
+ * Samples can be produced as tab separated ASCII lines or binary frames, which go through the same
+ * framer, parser and decoder as serial data, or as already parsed readings queued directly.
+ * The generator keeps the requested rate by producing the samples due since the connection in batches,
+ * so rates from a hundred to millions of samples per second are possible. If the pipeline can't keep up
+ * the ring buffer drops samples, exactly as with a real device.
+ * @author Federico Domínguez
+ */
+public class SyntheticDataCollection implements DataCollectionInterface, Runnable, FrameListenerInterface, SampleListenerInterface {
+
+    /**
+     * Enumeration of generated signals. MALFORMED is a sine wave with one corrupted sample out of ten.
+     */
+    static public enum WAVEFORM {
+        SINE, NOISE, STEP, SHOCK, MALFORMED};
+
+    /**
+     * Enumeration of the forms in which the samples are delivered.
+     */
+    static public enum ENCODING {
+        ASCII, BINARY, PARSED};
+
+    //Prefix of the links handled by this data source
+    public static final String LINK_PREFIX = "sim:";
+
+    public static final int DEFAULT_RATE = 1000;
+
+    //Maximum samples generated in one step
+    private static final int BATCH = 4096;
+
+    //Longest ASCII line: three 4-digit readings, two tabs, terminator
+    private static final int MAX_LINE = 16;
+
+    //Signal parameters, in g units and Hz
+    private static final double SINE_FREQUENCY = 2;
+    private static final double NOISE_SIGMA = 0.3;
+    private static final double STEP_PERIOD = 1;
+    private static final double SHOCK_PERIOD = 1;
+    private static final double SHOCK_PEAK = 2.5;
+    private static final double SHOCK_FREQUENCY = 40;
+    private static final double SHOCK_DECAY = 30;
+    private static final int MALFORMED_EVERY = 10;
+
+    private final SampleRingBuffer samples;
+    private final SampleBus bus;
+
+    //Decoding path, the same one used for serial data
+    private final LineFramer framer;
+    private final AccBinaryDecoder binaryDecoder;
+    private final AccDataParser parser;
+    private final double[] values;
+    private final byte[] chunk;
+    private final SplittableRandom random;
+
+    private ENCODING encoding;
+    private int defaultRate;
+    private double jitter;
+
+    //Generation state of the current connection
+    private WAVEFORM waveform;
+    private int rate;
+    private volatile long generated;
+    private long batchTime;
+    private volatile long parseErrors;
+    private volatile long bytesGenerated;
+    private volatile boolean running;
+    private Thread generator;
+
+    /**
+     * @param samples Ring buffer where the direct ADC readings are queued.
+     */
+    public SyntheticDataCollection(SampleRingBuffer samples){
+        this.samples = samples;
+        bus = new SampleBus();
+        framer = new LineFramer(this);
+        binaryDecoder = new AccBinaryDecoder(this);
+        parser = new AccDataParser();
+        values = new double[AccDataParser.AXES];
+        chunk = new byte[BATCH * MAX_LINE];
+        random = new SplittableRandom();
+        encoding = ENCODING.ASCII;
+        defaultRate = DEFAULT_RATE;
+    }
+
+    @Override
+    public ArrayList<String> getComLinks() {
+        return scanGenerators();
+    }
+
+    /**
+     * @return ArrayList containing one link per waveform, at the default rate.
+     */
+    public static ArrayList<String> scanGenerators() {
+        ArrayList<String> links = new ArrayList();
+        for(WAVEFORM w : WAVEFORM.values())
+            links.add(LINK_PREFIX + w.name().toLowerCase());
+        return links;
+    }
+
+    /**
+     * Starts generating.
+     * @param comLink "sim:waveform" or "sim:waveform@rate".
+     * @return CONNECTION_ERROR if the link is not a known waveform.
+     */
+    @Override
+    public CONNECTION_RESULT connect(String comLink) {
+        if(running)
+            return CONNECTION_RESULT.CONNECTION_OK;
+
+        try{
+            String spec = comLink.substring(LINK_PREFIX.length());
+            int at = spec.indexOf('@');
+            rate = at < 0 ? defaultRate : Integer.parseInt(spec.substring(at + 1));
+            waveform = WAVEFORM.valueOf((at < 0 ? spec : spec.substring(0, at)).toUpperCase());
+        }catch(RuntimeException e){
+            System.out.println("Error connecting to generator: "+comLink);
+            return CONNECTION_RESULT.CONNECTION_ERROR;
+        }
+        if(rate <= 0)
+            return CONNECTION_RESULT.CONNECTION_ERROR;
+
+        framer.reset();
+        binaryDecoder.reset();
+        generated = 0;
+        running = true;
+        generator = new Thread(this, "Generator " + comLink);
+        generator.setDaemon(true);
+        generator.start();
+
+        return CONNECTION_RESULT.CONNECTION_OK;
+    }
+
+    @Override
+    public void disconnect() {
+        running = false;
+        if(generator != null){
+            LockSupport.unpark(generator);
+            try{
+                generator.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            generator = null;
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return running;
+    }
+
+    @Override
+    public long getParseErrorCount() {
+        return parseErrors + binaryDecoder.getCrcErrors();
+    }
+
+    @Override
+    public SampleBus getSampleBus() {
+        return bus;
+    }
+
+    /**
+     * @return Bytes generated, the PARSED encoding doesn't produce any.
+     */
+    @Override
+    public long getBytesRead() {
+        return bytesGenerated;
+    }
+
+    @Override
+    public long getFramesDecoded() {
+        return framer.getFramesOk() + binaryDecoder.getFramesOk() + binaryDecoder.getCrcErrors();
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        double period = 1e9 / rate;
+
+        while(running){
+            //Samples due since the connection
+            long now = System.nanoTime();
+            long due = (long) ((now - start) / period);
+            int n = (int) Math.min(due - generated, BATCH);
+
+            if(n <= 0){
+                LockSupport.parkNanos((long) Math.max(period, 50000));
+                continue;
+            }
+
+            batchTime = now;
+            generateBatch(n, period);
+        }
+    }
+
+    /**
+     * Generates n consecutive samples and delivers them with the selected encoding.
+     */
+    private void generateBatch(int n, double period){
+        int length = 0;
+
+        for(int i = 0; i < n; i++){
+            long index = generated + i;
+            double t = index * period / 1e9;
+
+            //Each axis is sampled with its own timing jitter
+            int x = (int) Math.round(parser.toADC(signal(0, t + jitter())));
+            int y = (int) Math.round(parser.toADC(signal(1, t + jitter())));
+            int z = (int) Math.round(parser.toADC(signal(2, t + jitter())));
+            x = Math.max(0, Math.min(parser.ADC_BITS - 1, x));
+            y = Math.max(0, Math.min(parser.ADC_BITS - 1, y));
+            z = Math.max(0, Math.min(parser.ADC_BITS - 1, z));
+            boolean corrupt = waveform == WAVEFORM.MALFORMED && index % MALFORMED_EVERY == MALFORMED_EVERY - 1;
+
+            switch(encoding){
+                case ASCII:
+                    length = writeLine(x, y, z, corrupt, length);
+                    break;
+                case BINARY:
+                    AccBinaryDecoder.encode((int) index, x, y, z, chunk, length);
+                    if(corrupt)
+                        chunk[length + 3] ^= 0x40;
+                    length += AccBinaryDecoder.FRAME_LENGTH;
+                    break;
+                default:
+                    if(corrupt)
+                        parseErrors++;
+                    else{
+                        samples.offer(batchTime, x, y, z);
+                        bus.add(batchTime, x, y, z);
+                    }
+            }
+        }
+        generated += n;
+
+        bytesGenerated += length;
+        if(encoding == ENCODING.ASCII)
+            framer.feed(chunk, 0, length);
+        else if(encoding == ENCODING.BINARY)
+            binaryDecoder.feed(chunk, 0, length);
+        bus.flush();
+    }
+
+    /**
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @param t Time in seconds since the connection.
+     * @return Acceleration in g units.
+     */
+    private double signal(int axis, double t){
+        double phase = axis * 2 * Math.PI / 3;
+
+        switch(waveform){
+            case NOISE:
+                return (axis == 2 ? 1 : 0) + NOISE_SIGMA * gaussian();
+            case STEP:
+                //Alternates between lying flat and standing on its side
+                boolean flat = ((long) (t / STEP_PERIOD)) % 2 == 0;
+                return axis == (flat ? 2 : 0) ? 1 : 0;
+            case SHOCK:
+                double since = t % SHOCK_PERIOD;
+                double ring = SHOCK_PEAK * Math.exp(-SHOCK_DECAY * since) * Math.sin(2 * Math.PI * SHOCK_FREQUENCY * since + phase);
+                return (axis == 2 ? 1 : 0) + ring;
+            default:
+                return Math.sin(2 * Math.PI * SINE_FREQUENCY * t + phase);
+        }
+    }
+
+    /**
+     * Writes "x\ty\tz\n" at the given position of the chunk. A corrupted line has a letter in place of a digit.
+     * @return Position after the line.
+     */
+    private int writeLine(int x, int y, int z, boolean corrupt, int p){
+        int start = p;
+        p = writeInt(x, p);
+        chunk[p++] = '\t';
+        p = writeInt(y, p);
+        chunk[p++] = '\t';
+        p = writeInt(z, p);
+        chunk[p++] = '\n';
+        if(corrupt)
+            chunk[start] = 'X';
+        return p;
+    }
+
+    private int writeInt(int value, int p){
+        if(value >= 1000)
+            chunk[p++] = (byte) ('0' + value / 1000);
+        if(value >= 100)
+            chunk[p++] = (byte) ('0' + value / 100 % 10);
+        if(value >= 10)
+            chunk[p++] = (byte) ('0' + value / 10 % 10);
+        chunk[p++] = (byte) ('0' + value % 10);
+        return p;
+    }
+
+    /**
+     * @return Timing offset in seconds, uniform in [-jitter, jitter].
+     */
+    private double jitter(){
+        return jitter == 0 ? 0 : (2 * random.nextDouble() - 1) * jitter;
+    }
+
+    /**
+     * Standard normal value (Box-Muller).
+     */
+    private double gaussian(){
+        double u = 1 - random.nextDouble();
+        return Math.sqrt(-2 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    @Override
+    public void receiveFrame(byte[] buffer, int offset, int length) {
+        if(parser.parseRaw(buffer, offset, length, values) == AccDataParser.PARSE_RESULT.PARSE_OK){
+            int x = (int) values[0], y = (int) values[1], z = (int) values[2];
+            samples.offer(batchTime, x, y, z);
+            bus.add(batchTime, x, y, z);
+        }else
+            parseErrors++;
+    }
+
+    @Override
+    public void receiveSample(int x, int y, int z) {
+        samples.offer(batchTime, x, y, z);
+        bus.add(batchTime, x, y, z);
+    }
+
+    /**
+     * Sets how the samples of the next connection are delivered.
+     * @param encoding ENCODING enumeration.
+     */
+    public void setEncoding(ENCODING encoding){
+        this.encoding = encoding;
+    }
+
+    /**
+     * @param rate Samples per second of links that don't specify one.
+     */
+    public void setDefaultRate(int rate){
+        this.defaultRate = rate;
+    }
+
+    /**
+     * Sets a random timing offset applied independently to each axis of each sample.
+     * @param jitter Maximum offset in seconds, 0 to disable.
+     */
+    public void setJitter(double jitter){
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return Samples generated since the connection.
+     */
+    public long getGenerated(){
+        return generated;
+    }
+
+}
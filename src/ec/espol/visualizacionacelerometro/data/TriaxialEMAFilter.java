@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * EMA filter (see {@link EMAFilter}) of the three axes of an accelerometer, with a shared coefficient.
+ * Blocks are given as one array per axis, and the three axes are filtered in a single loop with
+ * the filter state held in local variables. Each axis depends on its own previous output only,
+ * so the three recurrences run side by side instead of one after the other.
+ * @author Federico Domínguez
+ */
+public class TriaxialEMAFilter {
+    private double alpha;
+    private boolean isFirst;
+    private double previousX;
+    private double previousY;
+    private double previousZ;
+    
+    public TriaxialEMAFilter(double alpha){
+        this.alpha = alpha;
+        isFirst = true;
+    }
+    
+    /**
+     * Filters a block of consecutive samples in place.
+     * @param x x-axis samples, replaced by the filtered values.
+     * @param y y-axis samples, replaced by the filtered values.
+     * @param z z-axis samples, replaced by the filtered values.
+     * @param off Position of the first sample.
+     * @param len Number of samples.
+     */
+    public void filter(double[] x, double[] y, double[] z, int off, int len){
+        if(len <= 0)
+            return;
+        //Sets first viewed sample as previous sample
+        if(isFirst){
+            previousX = x[off];
+            previousY = y[off];
+            previousZ = z[off];
+            isFirst = false;
+        }
+        
+        double a = alpha;
+        double b = 1 - alpha;
+        double sx = previousX;
+        double sy = previousY;
+        double sz = previousZ;
+        for(int i = off; i < off + len; i++){
+            sx = a*x[i] + b*sx;
+            sy = a*y[i] + b*sy;
+            sz = a*z[i] + b*sz;
+            x[i] = sx;
+            y[i] = sy;
+            z[i] = sz;
+        }
+        previousX = sx;
+        previousY = sy;
+        previousZ = sz;
+    }
+    
+    public void setAlpha(double alpha){
+        this.alpha = alpha;
+    }
+    
+    public double getAlpha(){
+        return alpha;
+    }
+    
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.data;
+
+/**
+ * Detects whether a device speaks the tab separated ASCII protocol or the binary one
+ * ({@link AccBinaryDecoder}) by looking at the first bytes received after connecting.
+ * The bytes used for detection are kept so they can be decoded afterwards.
+ * @author Federico Domínguez
+ */
+public class WireProtocolDetector {
+
+    /**
+     * Enumeration of supported wire protocols. AUTO means not known yet.
+     */
+    static public enum WIRE_PROTOCOL {
+        AUTO, ASCII, BINARY};
+
+    //Bytes examined before falling back to ASCII
+    public static final int DETECTION_BUFFER = 256;
+
+    //Consecutive valid binary frames needed to choose the binary protocol
+    public static final int FRAMES_REQUIRED = 3;
+
+    //Complete parseable lines needed to choose the ASCII protocol
+    public static final int LINES_REQUIRED = 2;
+
+    private final byte[] buffer;
+    private int length;
+    private WIRE_PROTOCOL detected;
+    private final AccDataParser parser;
+    private final double[] values;
+
+    public WireProtocolDetector(){
+        buffer = new byte[DETECTION_BUFFER];
+        parser = new AccDataParser();
+        values = new double[AccDataParser.AXES];
+        reset();
+    }
+
+    /**
+     * Adds received bytes to the detection buffer and tries to detect the protocol.
+     * @param data Buffer with the incoming bytes.
+     * @param offset Index of the first byte.
+     * @param count Number of bytes.
+     * @return Number of bytes taken. All bytes are taken while the protocol is still unknown.
+     */
+    public int append(byte[] data, int offset, int count){
+        int n = Math.min(count, buffer.length - length);
+        System.arraycopy(data, offset, buffer, length, n);
+        length += n;
+
+        if(AccBinaryDecoder.containsFrames(buffer, 0, length, FRAMES_REQUIRED))
+            detected = WIRE_PROTOCOL.BINARY;
+        else if(countAsciiLines() >= LINES_REQUIRED || length == buffer.length)
+            detected = WIRE_PROTOCOL.ASCII; //The legacy protocol is the fallback
+
+        return n;
+    }
+
+    /**
+     * Counts complete lines that parse correctly. The first line is skipped since it may be partial.
+     * Any byte outside the 7-bit ASCII range rules ASCII out.
+     */
+    private int countAsciiLines(){
+        int lines = 0;
+        int start = -1;
+
+        for(int i = 0; i < length; i++){
+            if(buffer[i] < 0)
+                return 0;
+            if(buffer[i] == '\n'){
+                if(start >= 0 && parser.parseRaw(buffer, start, i - start, values) == AccDataParser.PARSE_RESULT.PARSE_OK)
+                    lines++;
+                start = i + 1;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Forgets the examined bytes, for example before a new connection.
+     */
+    public void reset(){
+        length = 0;
+        detected = WIRE_PROTOCOL.AUTO;
+    }
+
+    /**
+     * @return Detected protocol, AUTO while undecided.
+     */
+    public WIRE_PROTOCOL getDetected(){
+        return detected;
+    }
+
+    /**
+     * @return Buffer holding the bytes examined so far.
+     */
+    public byte[] getBuffer(){
+        return buffer;
+    }
+
+    /**
+     * @return Number of bytes examined so far.
+     */
+    public int getLength(){
+        return length;
+    }
+
+}
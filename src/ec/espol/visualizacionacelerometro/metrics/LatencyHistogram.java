@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in power of two buckets: bucket i counts latencies from 2^(i-1) to 2^i - 1 nanoseconds.
+ * Recording is a few instructions and never allocates. There must be a single recording thread,
+ * counts are published with ordered stores so any other thread can read them.
+ * @author Federico Domínguez
+ */
+public class LatencyHistogram {
+
+    //Bucket 63 holds anything above 2^62 ns
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts;
+    private volatile long max;
+
+    public LatencyHistogram(){
+        counts = new AtomicLongArray(BUCKETS);
+    }
+
+    /**
+     * Adds a latency. Called by the recording thread only.
+     * @param nanos Latency in nanoseconds, negative values count as 0.
+     */
+    public void record(long nanos){
+        if(nanos < 0)
+            nanos = 0;
+        int bucket = BUCKETS - Long.numberOfLeadingZeros(nanos);
+        counts.lazySet(bucket, counts.get(bucket) + 1);
+        if(nanos > max)
+            max = nanos;
+    }
+
+    /**
+     * @param fraction Fraction of the recorded latencies, for example 0.99.
+     * @return Upper bound of the bucket holding that fraction of the latencies, in nanoseconds. 0 if empty.
+     */
+    public long getPercentile(double fraction){
+        long[] snapshot = getCounts();
+        long total = 0;
+        for(long c : snapshot)
+            total += c;
+        if(total == 0)
+            return 0;
+
+        long target = (long) Math.ceil(fraction*total);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += snapshot[i];
+            if(seen >= target && snapshot[i] > 0)
+                return i == 0 ? 0 : Math.min(max, (1L << Math.min(i, 62)) - 1);
+        }
+        return max;
+    }
+
+    /**
+     * @return Copy of the bucket counts.
+     */
+    public long[] getCounts(){
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++)
+            snapshot[i] = counts.get(i);
+        return snapshot;
+    }
+
+    public long getCount(){
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        return total;
+    }
+
+    public long getMax(){
+        return max;
+    }
+
+    /**
+     * Clears the histogram. Recordings made at the same time may be lost.
+     */
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        max = 0;
+    }
+
+}
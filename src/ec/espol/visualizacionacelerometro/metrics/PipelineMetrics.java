@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.metrics;
+
+import ec.espol.visualizacionacelerometro.data.DevicePipeline;
+import ec.espol.visualizacionacelerometro.data.SessionStore;
+import ec.espol.visualizacionacelerometro.data.SpectrumAnalyzer;
+import ec.espol.visualizacionacelerometro.network.SampleForwarder;
+import ec.espol.visualizacionacelerometro.storage.SessionRecorder;
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metrics of a device pipeline, published as a JMX MBean named
+ * ec.espol.visualizacionacelerometro:type=Pipeline,name="link".
+ * Nothing is collected here: each stage keeps its own counters (plain or ordered writes by a single
+ * thread, no locks), and they are only read when a JMX client asks for them.
+ * @author Federico Domínguez
+ */
+public class PipelineMetrics implements PipelineMetricsMBean {
+
+    public static final String DOMAIN = "ec.espol.visualizacionacelerometro";
+
+    private final DevicePipeline pipeline;
+    private ObjectName name;
+
+    public PipelineMetrics(DevicePipeline pipeline){
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Registers this MBean in the platform MBean server. Errors are reported and ignored.
+     */
+    public void register(){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            name = new ObjectName(DOMAIN + ":type=Pipeline,name=" + ObjectName.quote(pipeline.getName()));
+            if(server.isRegistered(name))
+                server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }catch(JMException e){
+            System.out.println("Error registering metrics: "+e.getLocalizedMessage());
+            name = null;
+        }
+    }
+
+    /**
+     * Removes this MBean from the platform MBean server.
+     */
+    public void unregister(){
+        if(name == null)
+            return;
+        try{
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }catch(JMException e){
+            System.out.println("Error unregistering metrics: "+e.getLocalizedMessage());
+        }
+        name = null;
+    }
+
+    @Override
+    public String getDeviceName() {
+        return pipeline.getName();
+    }
+
+    /**
+     * Not the same as pollStatus(), which can only be called by the GUI.
+     */
+    @Override
+    public String getStatus() {
+        if(!pipeline.isRunning() || !pipeline.getSource().isConnected())
+            return DevicePipeline.DEVICE_STATUS.DEVICE_OFF.name();
+        return DevicePipeline.DEVICE_STATUS.DEVICE_OK.name();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return pipeline.getSource().getBytesRead();
+    }
+
+    @Override
+    public long getFramesDecoded() {
+        return pipeline.getSource().getFramesDecoded();
+    }
+
+    @Override
+    public long getParseErrors() {
+        return pipeline.getSource().getParseErrorCount();
+    }
+
+    @Override
+    public long getSamplesFiltered() {
+        return pipeline.getSampleCount();
+    }
+
+    @Override
+    public long getSamplesDropped() {
+        return pipeline.getSampleBuffer().getDropped();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return pipeline.getSampleBuffer().size();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return pipeline.getSampleBuffer().getCapacity();
+    }
+
+    @Override
+    public long getFilterLatencyP50Micros() {
+        return pipeline.getFilterLatency().getPercentile(0.5)/1000;
+    }
+
+    @Override
+    public long getFilterLatencyP99Micros() {
+        return pipeline.getFilterLatency().getPercentile(0.99)/1000;
+    }
+
+    @Override
+    public long getFilterLatencyMaxMicros() {
+        return pipeline.getFilterLatency().getMax()/1000;
+    }
+
+    @Override
+    public long getFramesRendered() {
+        return pipeline.getFramesRendered();
+    }
+
+    @Override
+    public long getPaintLatencyP50Micros() {
+        return pipeline.getPaintLatency().getPercentile(0.5)/1000;
+    }
+
+    @Override
+    public long getPaintLatencyP99Micros() {
+        return pipeline.getPaintLatency().getPercentile(0.99)/1000;
+    }
+
+    @Override
+    public long getPaintLatencyMaxMicros() {
+        return pipeline.getPaintLatency().getMax()/1000;
+    }
+
+    @Override
+    public long[] getPaintLatencyHistogram() {
+        return pipeline.getPaintLatency().getCounts();
+    }
+
+    @Override
+    public long getRecordsWritten() {
+        SessionRecorder recorder = pipeline.getRecorder();
+        return recorder == null ? 0 : recorder.getRecordsWritten();
+    }
+
+    @Override
+    public long getRecorderDropped() {
+        SessionRecorder recorder = pipeline.getRecorder();
+        return recorder == null ? 0 : recorder.getDropped();
+    }
+
+    @Override
+    public int getRecorderQueueDepth() {
+        SessionRecorder recorder = pipeline.getRecorder();
+        return recorder == null ? 0 : recorder.getQueued();
+    }
+
+    @Override
+    public long getSpectrumDropped() {
+        SpectrumAnalyzer spectrum = pipeline.getSpectrumAnalyzer();
+        return spectrum == null ? 0 : spectrum.getDropped();
+    }
+
+    @Override
+    public long getSamplesForwarded() {
+        SampleForwarder forwarder = pipeline.getForwarder();
+        return forwarder == null ? 0 : forwarder.getSamplesSent();
+    }
+
+    @Override
+    public long getForwardDropped() {
+        SampleForwarder forwarder = pipeline.getForwarder();
+        return forwarder == null ? 0 : forwarder.getSamplesDropped();
+    }
+
+    @Override
+    public long getStoreBytes() {
+        SessionStore store = pipeline.getStore();
+        return store == null ? 0 : store.getBytes();
+    }
+
+    @Override
+    public long getStoreSeconds() {
+        SessionStore store = pipeline.getStore();
+        return store == null ? 0 : (store.getLatestTime() - store.getOldestTime()) / 1000000000L;
+    }
+
+    @Override
+    public long getStoreDropped() {
+        SessionStore store = pipeline.getStore();
+        return store == null ? 0 : store.getDropped();
+    }
+
+    @Override
+    public void resetLatencies() {
+        pipeline.getFilterLatency().reset();
+        pipeline.getPaintLatency().reset();
+    }
+
+}
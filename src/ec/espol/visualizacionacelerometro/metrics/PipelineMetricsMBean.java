@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.metrics;
+
+/**
+ * Management interface of {@link PipelineMetrics}, as seen by JMX clients (JConsole, VisualVM...).
+ * Counters are totals since the device was connected, latencies are in microseconds.
+ * The name must end in MBean, as required by JMX for standard MBeans.
+ * @author Federico Domínguez
+ */
+public interface PipelineMetricsMBean {
+
+    public String getDeviceName();
+
+    public String getStatus();
+
+    //Data source
+    public long getBytesRead();
+
+    public long getFramesDecoded();
+
+    public long getParseErrors();
+
+    //Pipeline
+    public long getSamplesFiltered();
+
+    public long getSamplesDropped();
+
+    public int getQueueDepth();
+
+    public int getQueueCapacity();
+
+    public long getFilterLatencyP50Micros();
+
+    public long getFilterLatencyP99Micros();
+
+    public long getFilterLatencyMaxMicros();
+
+    //Display
+    public long getFramesRendered();
+
+    public long getPaintLatencyP50Micros();
+
+    public long getPaintLatencyP99Micros();
+
+    public long getPaintLatencyMaxMicros();
+
+    /**
+     * @return Counts of the paint latency histogram, bucket i holds latencies from 2^(i-1) to 2^i - 1 nanoseconds.
+     */
+    public long[] getPaintLatencyHistogram();
+
+    //Recorder and spectrum analyzer, 0 if not enabled
+    public long getRecordsWritten();
+
+    public long getRecorderDropped();
+
+    public int getRecorderQueueDepth();
+
+    public long getSpectrumDropped();
+
+    //Forwarding to a collector, 0 if not enabled
+    public long getSamplesForwarded();
+
+    public long getForwardDropped();
+
+    //Off-heap session store, 0 if not enabled
+    public long getStoreBytes();
+
+    public long getStoreSeconds();
+
+    public long getStoreDropped();
+
+    /**
+     * Clears the latency histograms.
+     */
+    public void resetLatencies();
+
+}
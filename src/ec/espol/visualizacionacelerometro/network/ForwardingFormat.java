@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.network;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Layout of the frames sent by {@link SampleForwarder}. All values are little endian.
+ * Over UDP each datagram holds one frame, over TCP each frame is preceded by its length (int).
+ * <pre>
+ * Header
+ *   0  int    magic "ACCF"
+ *   4  byte   format version
+ *   5  byte   flags, FLAG_DELTA if the samples are delta encoded
+ *   6  short  number of samples
+ *   8  int    frame sequence number of the device, consecutive (lost frames show as gaps)
+ *   12 long   System.nanoTime() of the sender at the reception of the first sample
+ *   20 byte   length of the device name, followed by the name (UTF-8)
+ * Sample, plain
+ *   int    microseconds since the first sample
+ *   float  x,y,z filtered values in g units
+ * Sample, delta encoded
+ *   varint microseconds since the previous sample, then x,y,z in units of QUANTUM g minus the
+ *   previous sample's (the first sample of a frame is relative to 0), all zig-zag encoded
+ * </pre>
+ * Frames are independent: a lost datagram only loses its own samples.
+ * @author Federico Domínguez
+ */
+public final class ForwardingFormat {
+
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    //"ACCF" read as a little endian int
+    public static final int MAGIC = 0x46434341;
+    public static final int VERSION = 1;
+
+    public static final int FLAG_DELTA = 1;
+
+    //Resolution of the delta encoded values, in g units
+    public static final double QUANTUM = 1e-4;
+
+    //Header fields
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 4;
+    public static final int FLAGS_OFFSET = 5;
+    public static final int COUNT_OFFSET = 6;
+    public static final int SEQUENCE_OFFSET = 8;
+    public static final int START_NANOS_OFFSET = 12;
+    public static final int NAME_OFFSET = 20;
+    public static final int MAX_NAME_LENGTH = 127;
+
+    //Largest sample
+    public static final int PLAIN_SAMPLE_SIZE = 16;
+    public static final int MAX_DELTA_SAMPLE_SIZE = 20;
+
+    private ForwardingFormat(){
+    }
+
+    /**
+     * Writes a value as an unsigned LEB128 varint.
+     */
+    static void putVarint(ByteBuffer buffer, int value){
+        while((value & ~0x7F) != 0){
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer buffer){
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7){
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if(b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int zigZag(int value){
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unZigZag(int value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Decodes a frame, for collectors and tests.
+     * @param frame Buffer holding the frame from its position, without the TCP length prefix.
+     * The position is moved to the end of the frame.
+     * @param batch Receives the sample times (in the sender's clock) and the x,y,z values.
+     * Must be large enough for the samples of the frame.
+     * @return Name of the device.
+     * @throws IllegalArgumentException Not a valid frame.
+     */
+    public static String decode(ByteBuffer frame, SampleBatch batch){
+        ByteOrder order = frame.order();
+        frame.order(ORDER);
+        try{
+            int start = frame.position();
+            if(frame.remaining() < NAME_OFFSET + 1 || frame.getInt(start + MAGIC_OFFSET) != MAGIC
+                    || frame.get(start + VERSION_OFFSET) != VERSION)
+                throw new IllegalArgumentException("Not a forwarded frame");
+            boolean delta = (frame.get(start + FLAGS_OFFSET) & FLAG_DELTA) != 0;
+            int count = frame.getShort(start + COUNT_OFFSET) & 0xFFFF;
+            long time = frame.getLong(start + START_NANOS_OFFSET);
+            if(count > batch.getCapacity())
+                throw new IllegalArgumentException("Frame of " + count + " samples");
+
+            frame.position(start + NAME_OFFSET);
+            byte[] name = new byte[frame.get() & 0xFF];
+            frame.get(name);
+
+            int t = 0, x = 0, y = 0, z = 0;
+            for(int i = 0; i < count; i++){
+                if(delta){
+                    t += unZigZag(getVarint(frame));
+                    x += unZigZag(getVarint(frame));
+                    y += unZigZag(getVarint(frame));
+                    z += unZigZag(getVarint(frame));
+                    batch.x[i] = x * QUANTUM;
+                    batch.y[i] = y * QUANTUM;
+                    batch.z[i] = z * QUANTUM;
+                }else{
+                    t = frame.getInt();
+                    batch.x[i] = frame.getFloat();
+                    batch.y[i] = frame.getFloat();
+                    batch.z[i] = frame.getFloat();
+                }
+                batch.nanoTime[i] = time + t * 1000L;
+            }
+            batch.setLength(count);
+            return new String(name, StandardCharsets.UTF_8);
+        }catch(java.nio.BufferUnderflowException e){
+            throw new IllegalArgumentException("Truncated frame");
+        }finally{
+            frame.order(order);
+        }
+    }
+
+    /**
+     * @param frame Buffer holding the frame from its position.
+     * @return Sequence number of the frame.
+     */
+    public static int getSequence(ByteBuffer frame){
+        return frame.order() == ORDER ? frame.getInt(frame.position() + SEQUENCE_OFFSET)
+                : Integer.reverseBytes(frame.getInt(frame.position() + SEQUENCE_OFFSET));
+    }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.network;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import ec.espol.visualizacionacelerometro.data.SampleBus;
+import ec.espol.visualizacionacelerometro.data.SampleSubscriberInterface;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Sends the filtered samples of a device to a remote collector over UDP or TCP (see {@link ForwardingFormat}).
+ * The forwarder subscribes to the filtered bus of the pipeline and coalesces the samples into frames,
+ * sent when full or when the oldest sample has waited the maximum delay: one write per frame, never one
+ * per sample. Sockets are non-blocking and TCP_NODELAY is set, so a frame leaves as soon as it is complete.
+ * Nothing waits for the collector: if it is unreachable or slow, frames are dropped and counted,
+ * and a slow forwarder only loses batches of its own subscription, acquisition goes on.
+ * A lost TCP connection is opened again after RECONNECT_MILLIS.
+ * @author Federico Domínguez
+ */
+public class SampleForwarder implements SampleSubscriberInterface {
+
+    /**
+     * Enumeration of transports.
+     */
+    static public enum TRANSPORT {
+        UDP, TCP};
+
+    //Frame sizes: a UDP frame fits in an Ethernet packet, TCP frames can be larger
+    public static final int UDP_FRAME_BYTES = 1400;
+    public static final int TCP_FRAME_BYTES = 16384;
+
+    //Default longest wait of a sample in a frame
+    public static final int DEFAULT_DELAY_MILLIS = 20;
+
+    //Unsent TCP data kept while the connection is congested
+    public static final int TCP_PENDING_BYTES = 256 * 1024;
+
+    //Wait before connecting again after a TCP error
+    public static final long RECONNECT_MILLIS = 2000;
+
+    //Batches queued for the forwarder
+    private static final int QUEUE_BATCHES = 64;
+
+    private final String name;
+    private final byte[] nameBytes;
+    private final TRANSPORT transport;
+    private final InetSocketAddress collector;
+    private final boolean delta;
+    private final long delayNanos;
+
+    //Frame being filled and its state, only touched by the subscription thread
+    private final ByteBuffer frame;
+    private final int maxSampleBytes;
+    private int frameSamples;
+    private long frameStart;
+    private long frameOpened;
+    private int lastT;
+    private int lastX;
+    private int lastY;
+    private int lastZ;
+    private int sequence;
+
+    //Socket, opened by the subscription thread
+    private ByteChannel channel;
+    private final ByteBuffer pending;
+    private long retryTime;
+
+    private SampleBus bus;
+    private SampleBus.Subscription subscription;
+
+    private volatile long samplesSent;
+    private volatile long samplesDropped;
+    private volatile long framesSent;
+    private volatile long bytesSent;
+
+    /**
+     * @param name Name of the device, sent in every frame.
+     * @param transport UDP or TCP.
+     * @param collector Address of the collector.
+     * @param delta true to send delta encoded samples instead of plain values.
+     * @param delayMillis Longest time a sample waits in a frame.
+     */
+    public SampleForwarder(String name, TRANSPORT transport, InetSocketAddress collector, boolean delta, int delayMillis){
+        this.name = name;
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        nameBytes = Arrays.copyOf(bytes, Math.min(bytes.length, ForwardingFormat.MAX_NAME_LENGTH));
+        this.transport = transport;
+        this.collector = collector;
+        this.delta = delta;
+        delayNanos = delayMillis * 1000000L;
+
+        int frameBytes = transport == TRANSPORT.UDP ? UDP_FRAME_BYTES : TCP_FRAME_BYTES;
+        //TCP frames are preceded by their length
+        frame = ByteBuffer.allocateDirect(frameBytes + 4).order(ForwardingFormat.ORDER);
+        maxSampleBytes = delta ? ForwardingFormat.MAX_DELTA_SAMPLE_SIZE : ForwardingFormat.PLAIN_SAMPLE_SIZE;
+        pending = transport == TRANSPORT.TCP ? ByteBuffer.allocateDirect(TCP_PENDING_BYTES) : null;
+    }
+
+    /**
+     * Parses a collector description.
+     * @param target "udp://host:port" or "tcp://host:port".
+     * @return Transport of the target.
+     * @throws IllegalArgumentException Invalid description.
+     */
+    public static TRANSPORT parseTransport(String target){
+        int colon = target.indexOf("://");
+        if(colon < 0)
+            throw new IllegalArgumentException("Invalid collector: " + target);
+        try{
+            return TRANSPORT.valueOf(target.substring(0, colon).toUpperCase());
+        }catch(IllegalArgumentException e){
+            throw new IllegalArgumentException("Invalid collector transport: " + target);
+        }
+    }
+
+    /**
+     * @param target "udp://host:port" or "tcp://host:port".
+     * @return Address of the target, resolved when the socket is opened.
+     * @throws IllegalArgumentException Invalid description.
+     */
+    public static InetSocketAddress parseAddress(String target){
+        int start = target.indexOf("://") + 3;
+        int colon = target.lastIndexOf(':');
+        if(start < 3 || colon < start)
+            throw new IllegalArgumentException("Invalid collector: " + target);
+        try{
+            return InetSocketAddress.createUnresolved(target.substring(start, colon), Integer.parseInt(target.substring(colon + 1)));
+        }catch(IllegalArgumentException e){
+            throw new IllegalArgumentException("Invalid collector port: " + target);
+        }
+    }
+
+    /**
+     * Subscribes to a bus of filtered samples.
+     * @param bus Filtered bus of the device pipeline.
+     */
+    public void start(SampleBus bus){
+        this.bus = bus;
+        subscription = bus.subscribe(this, "Forwarder " + name, QUEUE_BATCHES);
+    }
+
+    /**
+     * Unsubscribes, sends the last frame and closes the socket.
+     */
+    public void stop(){
+        if(subscription != null){
+            bus.unsubscribe(subscription);
+            subscription = null;
+            //The subscription thread has ended
+            sendFrame();
+            if(channel != null && pending != null)
+                writePending();
+            close();
+        }
+    }
+
+    @Override
+    public void receiveBatch(SampleBatch batch) {
+        int n = batch.getLength();
+        for(int i = 0; i < n; i++){
+            if(frame.remaining() < maxSampleBytes)
+                sendFrame();
+            if(frameSamples == 0)
+                startFrame(batch.nanoTime[i]);
+            addSample(batch.nanoTime[i], batch.x[i], batch.y[i], batch.z[i]);
+        }
+
+        if(frameSamples > 0 && System.nanoTime() - frameOpened >= delayNanos)
+            sendFrame();
+        else if(pending != null && pending.position() > 0 && channel != null)
+            writePending();
+    }
+
+    @Override
+    public void idle() {
+        if(frameSamples > 0)
+            sendFrame();
+        else if(pending != null && pending.position() > 0 && channel != null)
+            writePending();
+    }
+
+    private void startFrame(long time){
+        frame.clear();
+        if(transport == TRANSPORT.TCP)
+            frame.putInt(0);
+        frame.putInt(ForwardingFormat.MAGIC);
+        frame.put((byte) ForwardingFormat.VERSION);
+        frame.put((byte) (delta ? ForwardingFormat.FLAG_DELTA : 0));
+        frame.putShort((short) 0);
+        frame.putInt(sequence);
+        frame.putLong(time);
+        frame.put((byte) nameBytes.length);
+        frame.put(nameBytes);
+
+        frameStart = time;
+        frameOpened = System.nanoTime();
+        lastT = lastX = lastY = lastZ = 0;
+    }
+
+    private void addSample(long time, double x, double y, double z){
+        int t = (int) ((time - frameStart) / 1000);
+        if(delta){
+            int qx = (int) Math.round(x / ForwardingFormat.QUANTUM);
+            int qy = (int) Math.round(y / ForwardingFormat.QUANTUM);
+            int qz = (int) Math.round(z / ForwardingFormat.QUANTUM);
+            ForwardingFormat.putVarint(frame, ForwardingFormat.zigZag(t - lastT));
+            ForwardingFormat.putVarint(frame, ForwardingFormat.zigZag(qx - lastX));
+            ForwardingFormat.putVarint(frame, ForwardingFormat.zigZag(qy - lastY));
+            ForwardingFormat.putVarint(frame, ForwardingFormat.zigZag(qz - lastZ));
+            lastT = t;
+            lastX = qx;
+            lastY = qy;
+            lastZ = qz;
+        }else{
+            frame.putInt(t);
+            frame.putFloat((float) x);
+            frame.putFloat((float) y);
+            frame.putFloat((float) z);
+        }
+        frameSamples++;
+    }
+
+    /**
+     * Completes the current frame and writes it, or drops it if the socket can't take it now.
+     */
+    private void sendFrame(){
+        if(frameSamples == 0)
+            return;
+
+        int headerStart = transport == TRANSPORT.TCP ? 4 : 0;
+        frame.putShort(headerStart + ForwardingFormat.COUNT_OFFSET, (short) frameSamples);
+        if(transport == TRANSPORT.TCP)
+            frame.putInt(0, frame.position() - 4);
+        frame.flip();
+
+        int samples = frameSamples;
+        int length = frame.remaining();
+        frameSamples = 0;
+        sequence++;
+
+        boolean sent;
+        try{
+            sent = write();
+        }catch(IOException e){
+            System.out.println("Error forwarding samples of "+name+": "+e.getLocalizedMessage());
+            close();
+            sent = false;
+        }
+
+        if(sent){
+            samplesSent += samples;
+            framesSent++;
+            bytesSent += length;
+        }else
+            samplesDropped += samples;
+        frame.clear();
+    }
+
+    /**
+     * @return false if the frame could not be sent or queued.
+     */
+    private boolean write() throws IOException {
+        if(channel == null && !open())
+            return false;
+
+        if(transport == TRANSPORT.UDP){
+            //A full socket buffer doesn't take the datagram, it is dropped
+            try{
+                return ((DatagramChannel) channel).write(frame) > 0;
+            }catch(PortUnreachableException e){
+                //Collector not listening yet, it is not an error of the socket
+                return false;
+            }
+        }
+
+        SocketChannel socket = (SocketChannel) channel;
+        if(socket.isConnectionPending() && !socket.finishConnect())
+            return false;
+
+        //Frames queue behind unsent data, up to the pending limit
+        if(pending.position() > 0 && !writePending())
+            return false;
+        if(pending.position() == 0)
+            socket.write(frame);
+        if(!frame.hasRemaining())
+            return true;
+        if(frame.remaining() > pending.remaining())
+            return false;
+        pending.put(frame);
+        return true;
+    }
+
+    /**
+     * Writes the data left by congested TCP writes.
+     * @return false if the socket failed or is still connecting.
+     */
+    private boolean writePending(){
+        try{
+            SocketChannel socket = (SocketChannel) channel;
+            if(socket.isConnectionPending() && !socket.finishConnect())
+                return false;
+            pending.flip();
+            socket.write(pending);
+            pending.compact();
+            return true;
+        }catch(IOException e){
+            System.out.println("Error forwarding samples of "+name+": "+e.getLocalizedMessage());
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Opens the socket without waiting, unless the previous attempt failed recently.
+     */
+    private boolean open(){
+        if(System.currentTimeMillis() < retryTime)
+            return false;
+        retryTime = System.currentTimeMillis() + RECONNECT_MILLIS;
+
+        try{
+            InetSocketAddress address = new InetSocketAddress(collector.getHostString(), collector.getPort());
+            if(address.isUnresolved())
+                throw new IOException("Unknown host " + collector.getHostString());
+            if(transport == TRANSPORT.UDP){
+                DatagramChannel datagram = DatagramChannel.open();
+                datagram.configureBlocking(false);
+                datagram.connect(address);
+                channel = datagram;
+            }else{
+                SocketChannel socket = SocketChannel.open();
+                socket.configureBlocking(false);
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                socket.connect(address);
+                pending.clear();
+                channel = socket;
+            }
+            return true;
+        }catch(IOException e){
+            System.out.println("Error connecting to collector "+collector+": "+e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    private void close(){
+        if(channel != null){
+            try{
+                channel.close();
+            }catch(IOException e){
+                System.out.println("Error closing collector connection: "+e.getLocalizedMessage());
+            }
+            channel = null;
+        }
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * @return Samples sent or queued in the socket.
+     */
+    public long getSamplesSent(){
+        return samplesSent;
+    }
+
+    /**
+     * @return Samples dropped because the collector was unreachable or slow, including the
+     * batches the subscription dropped.
+     */
+    public long getSamplesDropped(){
+        SampleBus.Subscription s = subscription;
+        return samplesDropped + (s == null ? 0 : s.getDropped());
+    }
+
+    public long getFramesSent(){
+        return framesSent;
+    }
+
+    public long getBytesSent(){
+        return bytesSent;
+    }
+
+}
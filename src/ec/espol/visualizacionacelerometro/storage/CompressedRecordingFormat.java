@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Layout of the compressed recording files (.accz). All values are little endian.
+ * <pre>
+ * Header (64 bytes)
+ *   0  long   magic "ACCBLK01"
+ *   8  int    format version
+ *   12 int    maximum records per block
+ *   16 long   wall clock time of the segment start, in milliseconds since the epoch
+ *   24 long   System.nanoTime() at the segment start
+ *   32 long   number of committed records
+ *   40 int    state, STATE_OPEN while being written, STATE_CLOSED once finished
+ *   44 int    segment index within the session
+ *   48 long   committed bytes, end of the last complete block
+ * Block header (64 bytes)
+ *   0  int    sync "ABLK"
+ *   4  int    number of records
+ *   8  int    payload length, the bytes after this header
+ *   12 int    CRC-32 of the payload
+ *   16 long   System.nanoTime() of the first record
+ *   24 long   System.nanoTime() of the last record
+ *   32 int    byte length of each payload column: time, raw x, y, z, filtered x, y, z
+ * Payload, one column after another
+ *   time      delta of delta of the times, zig-zag varints, from the second record
+ *   raw       ADC reading minus the previous one (the first one minus 0), zig-zag varints
+ *   filtered  doubles XOR encoded as in Facebook's Gorilla: the first value in 64 bits, then
+ *             '0' if equal to the previous one, '10' and the meaningful bits if they fit in the
+ *             previous leading/trailing zero window, or '11', 5 bits of leading zeros, 6 bits of
+ *             meaningful bits length minus 1 and the meaningful bits
+ * </pre>
+ * Blocks don't depend on each other, so they can be decoded in any order and in parallel.
+ * A block is committed by updating the header after writing it, after a crash readers only see
+ * the blocks before the committed bytes.
+ * @author Federico Domínguez
+ */
+public final class CompressedRecordingFormat {
+
+    //"ACCBLK01" read as a little endian long
+    public static final long MAGIC = 0x31304B4C42434341L;
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".accz";
+
+    //Records per block, a block is also written when it has waited long enough
+    public static final int BLOCK_RECORDS = 4096;
+
+    //Header fields
+    public static final int HEADER_SIZE = 64;
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 8;
+    public static final int BLOCK_RECORDS_OFFSET = 12;
+    public static final int START_MILLIS_OFFSET = 16;
+    public static final int START_NANOS_OFFSET = 24;
+    public static final int COUNT_OFFSET = 32;
+    public static final int STATE_OFFSET = 40;
+    public static final int SEGMENT_OFFSET = 44;
+    public static final int COMMITTED_OFFSET = 48;
+
+    //Block header fields
+    public static final int BLOCK_HEADER_SIZE = 64;
+    public static final int BLOCK_SYNC = 0x4B4C4241;
+    public static final int SYNC_OFFSET = 0;
+    public static final int RECORDS_OFFSET = 4;
+    public static final int PAYLOAD_LENGTH_OFFSET = 8;
+    public static final int CRC_OFFSET = 12;
+    public static final int FIRST_TIME_OFFSET = 16;
+    public static final int LAST_TIME_OFFSET = 24;
+    public static final int COLUMNS_OFFSET = 32;
+    public static final int COLUMNS = 7;
+
+    //Largest encoded record: time varint, three raw varints and three XOR encoded doubles
+    public static final int MAX_RECORD_SIZE = 10 + 3*3 + 3*10;
+
+    private CompressedRecordingFormat(){
+    }
+
+    /**
+     * @param records Records of the block.
+     * @return Largest size of an encoded block.
+     */
+    public static int maxBlockSize(int records){
+        return BLOCK_HEADER_SIZE + records * MAX_RECORD_SIZE + 3*8;
+    }
+
+    /**
+     * Encodes records of a batch as a block.
+     * @param batch Records, with their ADC readings and filtered values.
+     * @param from First record to encode.
+     * @param n Number of records, at least 1.
+     * @param out Heap buffer, the block is written from its position, which is moved to the end of the block.
+     * Must have maxBlockSize(n) bytes remaining.
+     * @return Size of the block.
+     */
+    public static int encodeBlock(SampleBatch batch, int from, int n, ByteBuffer out){
+        byte[] a = out.array();
+        int start = out.arrayOffset() + out.position();
+        int p = start + BLOCK_HEADER_SIZE;
+        int[] lengths = new int[COLUMNS];
+
+        //Times, delta of delta
+        int columnStart = p;
+        long[] time = batch.nanoTime;
+        long previousDelta = 0;
+        for(int i = from + 1; i < from + n; i++){
+            long delta = time[i] - time[i - 1];
+            p = putVarint(a, p, zigZag(delta - previousDelta));
+            previousDelta = delta;
+        }
+        lengths[0] = p - columnStart;
+
+        //ADC readings, delta
+        short[] raw = batch.raw;
+        for(int axis = 0; axis < 3; axis++){
+            columnStart = p;
+            int previous = 0;
+            for(int i = from; i < from + n; i++){
+                int value = raw[3*i + axis];
+                p = putVarint(a, p, zigZag(value - previous));
+                previous = value;
+            }
+            lengths[1 + axis] = p - columnStart;
+        }
+
+        //Filtered values, XOR
+        double[][] filtered = {batch.x, batch.y, batch.z};
+        for(int axis = 0; axis < 3; axis++){
+            columnStart = p;
+            p = putDoubles(filtered[axis], from, n, a, p);
+            lengths[4 + axis] = p - columnStart;
+        }
+
+        int payload = p - start - BLOCK_HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(a, start + BLOCK_HEADER_SIZE, payload);
+
+        int header = out.position();
+        out.putInt(header + SYNC_OFFSET, BLOCK_SYNC);
+        out.putInt(header + RECORDS_OFFSET, n);
+        out.putInt(header + PAYLOAD_LENGTH_OFFSET, payload);
+        out.putInt(header + CRC_OFFSET, (int) crc.getValue());
+        out.putLong(header + FIRST_TIME_OFFSET, time[from]);
+        out.putLong(header + LAST_TIME_OFFSET, time[from + n - 1]);
+        for(int c = 0; c < COLUMNS; c++)
+            out.putInt(header + COLUMNS_OFFSET + 4*c, lengths[c]);
+        out.position(header + BLOCK_HEADER_SIZE + payload);
+
+        return BLOCK_HEADER_SIZE + payload;
+    }
+
+    /**
+     * Decodes a block.
+     * @param in Buffer holding the block, it is only read with absolute gets so it can be shared by several threads.
+     * @param position Index of the block header.
+     * @param batch Receives the records, its length is set to their number. Must be large enough for the block.
+     * @return Number of records.
+     * @throws IOException The block is corrupted.
+     */
+    public static int decodeBlock(ByteBuffer in, int position, SampleBatch batch) throws IOException {
+        int n = in.getInt(position + RECORDS_OFFSET);
+        int payload = in.getInt(position + PAYLOAD_LENGTH_OFFSET);
+        if(in.getInt(position + SYNC_OFFSET) != BLOCK_SYNC || n <= 0 || n > batch.getCapacity()
+                || payload < 0 || position + BLOCK_HEADER_SIZE + payload > in.limit())
+            throw new IOException("Corrupted recording block at " + position);
+
+        ByteBuffer data = in.duplicate();
+        data.limit(position + BLOCK_HEADER_SIZE + payload).position(position + BLOCK_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if((int) crc.getValue() != in.getInt(position + CRC_OFFSET))
+            throw new IOException("CRC error in recording block at " + position);
+
+        //Start of each column
+        int[] columns = new int[COLUMNS];
+        columns[0] = position + BLOCK_HEADER_SIZE;
+        for(int c = 1; c < COLUMNS; c++)
+            columns[c] = columns[c - 1] + in.getInt(position + COLUMNS_OFFSET + 4*(c - 1));
+
+        try{
+            int p = columns[0];
+            long[] time = batch.nanoTime;
+            time[0] = in.getLong(position + FIRST_TIME_OFFSET);
+            long delta = 0;
+            for(int i = 1; i < n; i++){
+                long v = 0;
+                int shift = 0;
+                byte b;
+                do{
+                    b = in.get(p++);
+                    v |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                }while(b < 0);
+                delta += unZigZag(v);
+                time[i] = time[i - 1] + delta;
+            }
+
+            short[] raw = batch.raw;
+            for(int axis = 0; axis < 3; axis++){
+                int value = 0;
+                p = columns[1 + axis];
+                for(int i = 0; i < n; i++){
+                    long v = 0;
+                    int shift = 0;
+                    byte b;
+                    do{
+                        b = in.get(p++);
+                        v |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    }while(b < 0);
+                    value += (int) unZigZag(v);
+                    raw[3*i + axis] = (short) value;
+                }
+            }
+
+            getDoubles(in, columns[4], batch.x, n);
+            getDoubles(in, columns[5], batch.y, n);
+            getDoubles(in, columns[6], batch.z, n);
+        }catch(IndexOutOfBoundsException e){
+            throw new IOException("Corrupted recording block at " + position);
+        }
+        batch.setLength(n);
+        return n;
+    }
+
+    private static int putDoubles(double[] values, int from, int n, byte[] a, int p){
+        BitWriter w = new BitWriter(a, p);
+        long previous = Double.doubleToRawLongBits(values[from]);
+        w.write(previous, 64);
+        int previousLeading = -1, previousTrailing = 0;
+
+        for(int i = from + 1; i < from + n; i++){
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previous;
+            if(xor == 0){
+                w.write(0, 1);
+            }else{
+                int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+                int trailing = Long.numberOfTrailingZeros(xor);
+                if(previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing){
+                    w.write(2, 2);
+                    w.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+                }else{
+                    int meaningful = 64 - leading - trailing;
+                    w.write(3, 2);
+                    w.write(leading, 5);
+                    w.write(meaningful - 1, 6);
+                    w.write(xor >>> trailing, meaningful);
+                    previousLeading = leading;
+                    previousTrailing = trailing;
+                }
+            }
+            previous = bits;
+        }
+        return w.finish();
+    }
+
+    private static void getDoubles(ByteBuffer in, int p, double[] values, int n){
+        BitReader r = new BitReader(in, p);
+        long previous = r.read(64);
+        values[0] = Double.longBitsToDouble(previous);
+        int leading = 0, trailing = 0;
+
+        for(int i = 1; i < n; i++){
+            if(r.read(1) != 0){
+                if(r.read(1) != 0){
+                    leading = (int) r.read(5);
+                    int meaningful = (int) r.read(6) + 1;
+                    trailing = 64 - leading - meaningful;
+                }
+                previous ^= r.read(64 - leading - trailing) << trailing;
+            }
+            values[i] = Double.longBitsToDouble(previous);
+        }
+    }
+
+    private static int putVarint(byte[] a, int p, long value){
+        while((value & ~0x7FL) != 0){
+            a[p++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        a[p++] = (byte) value;
+        return p;
+    }
+
+    private static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Writes bits most significant first into a byte array.
+     */
+    private static final class BitWriter {
+        private final byte[] a;
+        private int p;
+        private long pending;
+        private int count;
+
+        BitWriter(byte[] a, int p){
+            this.a = a;
+            this.p = p;
+        }
+
+        /**
+         * Writes the n lowest bits of a value, 1 to 64.
+         */
+        void write(long value, int n){
+            if(n > 32){
+                write(value >>> 32, n - 32);
+                n = 32;
+            }
+            pending = (pending << n) | (value & ((1L << n) - 1));
+            count += n;
+            while(count >= 8){
+                count -= 8;
+                a[p++] = (byte) (pending >>> count);
+            }
+        }
+
+        /**
+         * Pads the last byte with zeros.
+         * @return Index after the last byte.
+         */
+        int finish(){
+            if(count > 0)
+                a[p++] = (byte) (pending << (8 - count));
+            count = 0;
+            return p;
+        }
+    }
+
+    /**
+     * Reads bits most significant first from a buffer, with absolute gets.
+     */
+    private static final class BitReader {
+        private final ByteBuffer in;
+        private int p;
+        private long pending;
+        private int count;
+
+        BitReader(ByteBuffer in, int p){
+            this.in = in;
+            this.p = p;
+        }
+
+        /**
+         * Reads n bits, 1 to 64.
+         */
+        long read(int n){
+            if(n > 32){
+                long high = read(n - 32);
+                return (high << 32) | read(32);
+            }
+            while(count < n){
+                pending = (pending << 8) | (in.get(p++) & 0xFF);
+                count += 8;
+            }
+            count -= n;
+            return (pending >>> count) & ((1L << n) - 1);
+        }
+    }
+
+}
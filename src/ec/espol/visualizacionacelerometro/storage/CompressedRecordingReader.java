@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a compressed recording segment (see {@link CompressedRecordingFormat}) through a read-only memory mapping.
+ * The block headers are scanned when opening, up to the committed bytes of the file header, so a segment
+ * left open by a crash can still be read. Blocks are decoded on demand: readBlock() can be called from any
+ * number of threads, while the record getters decode into a shared block and are meant for one thread.
+ * @author Federico Domínguez
+ */
+public class CompressedRecordingReader implements RecordingSegmentInterface {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+
+    private final int recordCount;
+    private final long startMillis;
+    private final long startNanos;
+    private final int segmentIndex;
+    private final boolean closed;
+    private final int maxBlockRecords;
+
+    //Position of each block and index of its first record, blockStart[blockCount] is the record count
+    private final int[] blockPosition;
+    private final int[] blockStart;
+    private final int blockCount;
+
+    //Last block decoded by the record getters
+    private final SampleBatch cached;
+    private int cachedBlock;
+
+    /**
+     * Opens and validates a segment file.
+     * @param file Segment file.
+     * @throws IOException The file can't be read or is not a compressed recording.
+     */
+    public CompressedRecordingReader(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+
+        try{
+            long size = raf.length();
+            if(size < CompressedRecordingFormat.HEADER_SIZE)
+                throw new IOException("Not a recording: " + file.getName());
+
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+            buffer.order(RecordingFormat.ORDER);
+
+            maxBlockRecords = buffer.getInt(CompressedRecordingFormat.BLOCK_RECORDS_OFFSET);
+            if(buffer.getLong(CompressedRecordingFormat.MAGIC_OFFSET) != CompressedRecordingFormat.MAGIC
+                    || buffer.getInt(CompressedRecordingFormat.VERSION_OFFSET) != CompressedRecordingFormat.VERSION
+                    || maxBlockRecords <= 0)
+                throw new IOException("Not a recording: " + file.getName());
+
+            startMillis = buffer.getLong(CompressedRecordingFormat.START_MILLIS_OFFSET);
+            startNanos = buffer.getLong(CompressedRecordingFormat.START_NANOS_OFFSET);
+            segmentIndex = buffer.getInt(CompressedRecordingFormat.SEGMENT_OFFSET);
+            closed = buffer.getInt(CompressedRecordingFormat.STATE_OFFSET) == RecordingFormat.STATE_CLOSED;
+
+            //Blocks up to the committed bytes, a block that doesn't look complete ends the scan
+            long committed = Math.min(buffer.getLong(CompressedRecordingFormat.COMMITTED_OFFSET), buffer.capacity());
+            int[] positions = new int[64];
+            int[] starts = new int[65];
+            int blocks = 0, records = 0;
+            int p = CompressedRecordingFormat.HEADER_SIZE;
+            while(p + CompressedRecordingFormat.BLOCK_HEADER_SIZE <= committed){
+                int n = buffer.getInt(p + CompressedRecordingFormat.RECORDS_OFFSET);
+                int payload = buffer.getInt(p + CompressedRecordingFormat.PAYLOAD_LENGTH_OFFSET);
+                if(buffer.getInt(p + CompressedRecordingFormat.SYNC_OFFSET) != CompressedRecordingFormat.BLOCK_SYNC
+                        || n <= 0 || n > maxBlockRecords || payload < 0
+                        || (long) p + CompressedRecordingFormat.BLOCK_HEADER_SIZE + payload > committed)
+                    break;
+
+                if(blocks == positions.length){
+                    positions = Arrays.copyOf(positions, 2 * blocks);
+                    starts = Arrays.copyOf(starts, 2 * blocks + 1);
+                }
+                positions[blocks] = p;
+                starts[blocks] = records;
+                blocks++;
+                records += n;
+                p += CompressedRecordingFormat.BLOCK_HEADER_SIZE + payload;
+            }
+            starts[blocks] = records;
+            blockPosition = positions;
+            blockStart = starts;
+            blockCount = blocks;
+            recordCount = records;
+        }catch(IOException e){
+            raf.close();
+            throw e;
+        }
+
+        cached = new SampleBatch(maxBlockRecords, null);
+        cachedBlock = -1;
+    }
+
+    @Override
+    public int readBlock(int block, SampleBatch batch) throws IOException {
+        return CompressedRecordingFormat.decodeBlock(buffer, blockPosition[block], batch);
+    }
+
+    /**
+     * @return Block holding a record, decoded in the shared batch.
+     */
+    private int decoded(int record){
+        if(cachedBlock < 0 || record < blockStart[cachedBlock] || record >= blockStart[cachedBlock + 1]){
+            int block = Arrays.binarySearch(blockStart, 0, blockCount + 1, record);
+            block = block >= 0 ? block : -block - 2;
+            try{
+                readBlock(block, cached);
+            }catch(IOException e){
+                cachedBlock = -1;
+                throw new UncheckedIOException(e);
+            }
+            cachedBlock = block;
+        }
+        return record - blockStart[cachedBlock];
+    }
+
+    @Override
+    public long getTime(int record){
+        return cached.nanoTime[decoded(record)];
+    }
+
+    @Override
+    public int getRaw(int record, int axis){
+        return cached.getRaw(decoded(record), axis);
+    }
+
+    @Override
+    public double getFiltered(int record, int axis){
+        int i = decoded(record);
+        return axis == 0 ? cached.x[i] : axis == 1 ? cached.y[i] : cached.z[i];
+    }
+
+    /**
+     * @param block Block index.
+     * @return Time of the first record of the block, read from its header without decoding it.
+     */
+    public long getBlockFirstTime(int block){
+        return buffer.getLong(blockPosition[block] + CompressedRecordingFormat.FIRST_TIME_OFFSET);
+    }
+
+    @Override
+    public int getBlockCount(){
+        return blockCount;
+    }
+
+    @Override
+    public int getBlockStart(int block){
+        return blockStart[block];
+    }
+
+    @Override
+    public int getMaxBlockRecords(){
+        return maxBlockRecords;
+    }
+
+    @Override
+    public long toEpochMillis(long time){
+        return startMillis + (time - startNanos) / 1000000;
+    }
+
+    @Override
+    public int getRecordCount(){
+        return recordCount;
+    }
+
+    @Override
+    public long getStartMillis(){
+        return startMillis;
+    }
+
+    @Override
+    public long getStartNanos(){
+        return startNanos;
+    }
+
+    @Override
+    public int getSegmentIndex(){
+        return segmentIndex;
+    }
+
+    @Override
+    public boolean isClosed(){
+        return closed;
+    }
+
+    @Override
+    public File getFile(){
+        return file;
+    }
+
+    /**
+     * @return Bytes of the committed blocks and the header.
+     */
+    public long getCompressedSize(){
+        return blockCount == 0 ? CompressedRecordingFormat.HEADER_SIZE
+                : blockPosition[blockCount - 1] + CompressedRecordingFormat.BLOCK_HEADER_SIZE
+                + buffer.getInt(blockPosition[blockCount - 1] + CompressedRecordingFormat.PAYLOAD_LENGTH_OFFSET);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+}
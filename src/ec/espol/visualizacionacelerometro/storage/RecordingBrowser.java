@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import ec.espol.visualizacionacelerometro.data.SignalSummaryInterface;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Decimated view of a recorded session for the strip chart: the segments of the session are opened
+ * with their indexes, and any time range is reduced to a minimum, maximum and mean per column from
+ * the coarsest summaries that fit, so hours of samples are browsed without reading them.
+ * @author Federico Domínguez
+ */
+public class RecordingBrowser implements SignalSummaryInterface, Closeable {
+
+    private final File file;
+    private final ArrayList<RecordingSegmentInterface> readers;
+    private final ArrayList<RecordingIndex> indexes;
+
+    //Running summary of a column
+    private final double[] min;
+    private final double[] max;
+    private final double[] sum;
+
+    private long count;
+
+    /**
+     * Opens a segment and the segments that follow it in the same session, building the missing indexes.
+     * @param file Any segment file of the session.
+     * @throws IOException The segment can't be read or is not a recording.
+     */
+    public RecordingBrowser(File file) throws IOException {
+        this.file = file;
+        readers = new ArrayList<>();
+        indexes = new ArrayList<>();
+        min = new double[AccDataParser.AXES];
+        max = new double[AccDataParser.AXES];
+        sum = new double[AccDataParser.AXES];
+
+        try{
+            for(File segment : RecordingReader.sessionSegments(file)){
+                RecordingSegmentInterface reader = RecordingSegmentInterface.open(segment);
+                readers.add(reader);
+                if(reader.getRecordCount() > 0){
+                    indexes.add(RecordingIndex.open(reader));
+                    count += reader.getRecordCount();
+                }
+            }
+        }catch(IOException e){
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public long decimate(long from, long to, int columns, double[][] colMin, double[][] colMax){
+        return decimate(from, to, columns, colMin, colMax, null);
+    }
+
+    /**
+     * Decimates the records between two times into columns, see {@link SignalSummaryInterface#decimate}.
+     * @param colMean Receives the mean of each axis and column, null if not needed.
+     */
+    public long decimate(long from, long to, int columns, double[][] colMin, double[][] colMax, double[][] colMean){
+        long total = 0;
+        int first = 0;
+        long start = from;
+
+        for(int c = 0; c < columns; c++){
+            long stop = c == columns - 1 ? to + 1 : from + (to - from) * (c + 1) / columns;
+            Arrays.fill(min, Double.POSITIVE_INFINITY);
+            Arrays.fill(max, Double.NEGATIVE_INFINITY);
+            Arrays.fill(sum, 0);
+
+            //Segments are in time order, those that end before the column are skipped for good
+            while(first < indexes.size() && indexes.get(first).getLastTime() - start < 0)
+                first++;
+            int n = 0;
+            for(int s = first; s < indexes.size() && indexes.get(s).getFirstTime() - stop < 0; s++){
+                RecordingIndex index = indexes.get(s);
+                n += index.summarize(index.findRecord(start), index.findRecord(stop), min, max, sum);
+            }
+
+            for(int axis = 0; axis < AccDataParser.AXES; axis++){
+                colMin[axis][c] = n > 0 ? min[axis] : Double.NaN;
+                colMax[axis][c] = n > 0 ? max[axis] : Double.NaN;
+                if(colMean != null)
+                    colMean[axis][c] = n > 0 ? sum[axis] / n : Double.NaN;
+            }
+            total += n;
+            start = stop;
+        }
+        return total;
+    }
+
+    /**
+     * Converts a record time to wall clock time.
+     * @param time Time as returned by getOldestTime() or getLatestTime().
+     * @return Milliseconds since the epoch.
+     */
+    public long toEpochMillis(long time){
+        return readers.isEmpty() ? 0 : readers.get(0).toEpochMillis(time);
+    }
+
+    @Override
+    public long getOldestTime(){
+        return indexes.isEmpty() ? 0 : indexes.get(0).getFirstTime();
+    }
+
+    @Override
+    public long getLatestTime(){
+        return indexes.isEmpty() ? 0 : indexes.get(indexes.size() - 1).getLastTime();
+    }
+
+    /**
+     * @return Records of all the segments.
+     */
+    @Override
+    public long getCount(){
+        return count;
+    }
+
+    public int getSegmentCount(){
+        return readers.size();
+    }
+
+    public File getFile(){
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(RecordingIndex index : indexes)
+            index.close();
+        for(RecordingSegmentInterface reader : readers)
+            reader.close();
+    }
+
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Exports recorded sessions for analysis tools, as CSV or as MATLAB MAT files (level 5, read by
+ * MATLAB's load and by scipy.io.loadmat). Stretches of TASK_BLOCKS blocks are decoded and formatted
+ * in parallel on a ForkJoinPool, into buffers taken from a small pool, so the export runs as fast as
+ * the disk takes the data:
+ * <ul>
+ * <li>CSV: each stretch is formatted into its own buffer, numbers with fixed decimals and no allocation,
+ * and the buffers are written in order by the calling thread, at most two per thread waiting.</li>
+ * <li>MAT: every column is a variable of known size, so each stretch writes its part of every
+ * column straight to its place in the file.</li>
+ * </ul>
+ * Columns: time (seconds since the start of the session), raw_x, raw_y, raw_z (ADC readings) and
+ * x, y, z (filtered, g units). MAT files also hold start_epoch_ms, the wall clock time of the start.
+ * @author Federico Domínguez
+ */
+public class RecordingExporter {
+
+    public static enum FORMAT {CSV, MAT}
+
+    //Decimals of the filtered values in CSV files, 1 µg
+    public static final int DEFAULT_DECIMALS = 6;
+    public static final int MAX_DECIMALS = 15;
+
+    //Blocks formatted by each task
+    public static final int TASK_BLOCKS = 4;
+
+    public static final String CSV_HEADER = "time,raw_x,raw_y,raw_z,x,y,z\n";
+
+    private static final long[] POWERS_OF_TEN = new long[19];
+    static{
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    //MAT level 5 constants: data types, array classes, header size and largest element
+    private static final int MAT_HEADER_SIZE = 128;
+    private static final int MI_INT8 = 1;
+    private static final int MI_INT16 = 3;
+    private static final int MI_INT32 = 5;
+    private static final int MI_UINT32 = 6;
+    private static final int MI_DOUBLE = 9;
+    private static final int MI_MATRIX = 14;
+    private static final int MX_DOUBLE_CLASS = 6;
+    private static final int MX_INT16_CLASS = 10;
+    private static final long MAT_MAX_ELEMENT = 0xFFFFFFFFL;
+    private static final String[] MAT_COLUMNS = {"time", "raw_x", "raw_y", "raw_z", "x", "y", "z"};
+    private static final int MAT_RECORD_SIZE = 4*8 + 3*2;
+
+    private final ForkJoinPool pool;
+    private final int decimals;
+    private final int lineBytes;
+
+    //Buffers of the tasks, reused
+    private final ArrayBlockingQueue<byte[]> buffers;
+    private final int bufferRecords;
+
+    /**
+     * @param threads Parallelism of the pool.
+     * @param decimals Decimals of the filtered values in CSV files, at most MAX_DECIMALS.
+     */
+    public RecordingExporter(int threads, int decimals){
+        if(decimals < 0 || decimals > MAX_DECIMALS)
+            throw new IllegalArgumentException("Invalid decimals: " + decimals);
+        this.decimals = decimals;
+        pool = new ForkJoinPool(threads);
+        //Longest CSV line: time, 3 readings and 3 values with their separators (Double.toString for huge values)
+        lineBytes = 21 + 3*7 + 3*(Math.max(21, decimals + 3) + 4) + 1;
+        bufferRecords = TASK_BLOCKS * Math.max(RecordingReader.BLOCK_RECORDS, CompressedRecordingFormat.BLOCK_RECORDS);
+        buffers = new ArrayBlockingQueue<>(2 * threads + 1);
+    }
+
+    /**
+     * Exports a session.
+     * @param session Session to export.
+     * @param output File to create, replaced if it exists.
+     * @param format Format of the file.
+     * @return Number of records exported.
+     * @throws IOException Error reading the session or writing the file.
+     */
+    public long export(RecordingSession session, File output, FORMAT format) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(output, "rw")){
+            file.setLength(0);
+            if(format == FORMAT.CSV)
+                exportCsv(session, file.getChannel());
+            else
+                exportMat(session, file);
+        }
+        return session.getRecordCount();
+    }
+
+    /**
+     * Formats the stretches in parallel and writes them in order.
+     */
+    private void exportCsv(RecordingSession session, FileChannel channel) throws IOException {
+        channel.write(ByteBuffer.wrap(CSV_HEADER.getBytes(StandardCharsets.US_ASCII)));
+
+        ArrayDeque<ForkJoinTask<ByteBuffer>> pending = new ArrayDeque<>();
+        int blocks = session.getBlockCount();
+        int next = 0;
+        try{
+            while(next < blocks || !pending.isEmpty()){
+                //Keeps every thread busy with at most two stretches waiting per thread
+                while(next < blocks && pending.size() < 2 * pool.getParallelism()){
+                    int first = next;
+                    int last = Math.min(blocks, next + TASK_BLOCKS);
+                    pending.add(pool.submit(() -> formatCsv(session, first, last)));
+                    next = last;
+                }
+
+                ByteBuffer buffer = join(pending.poll());
+                while(buffer.hasRemaining())
+                    channel.write(buffer);
+                releaseBuffer(buffer.array());
+            }
+        }finally{
+            //Tasks left after an error are let finish
+            for(ForkJoinTask<ByteBuffer> task : pending)
+                task.quietlyJoin();
+        }
+    }
+
+    private ByteBuffer formatCsv(RecordingSession session, int first, int last) throws IOException {
+        byte[] out = acquireBuffer();
+        SampleBatch batch = new SampleBatch(session.getMaxBlockRecords(), null);
+        long start = session.getStartNanos();
+        double[][] values = {batch.x, batch.y, batch.z};
+        int p = 0;
+
+        for(int block = first; block < last; block++){
+            int n = session.readBlock(block, batch);
+            for(int i = 0; i < n; i++){
+                p = putFixed(out, p, batch.nanoTime[i] - start, 9);
+                for(int axis = 0; axis < 3; axis++){
+                    out[p++] = ',';
+                    p = putLong(out, p, batch.raw[3*i + axis]);
+                }
+                for(int axis = 0; axis < 3; axis++){
+                    out[p++] = ',';
+                    p = putDouble(out, p, values[axis][i], decimals);
+                }
+                out[p++] = '\n';
+            }
+        }
+        return ByteBuffer.wrap(out, 0, p);
+    }
+
+    /**
+     * Writes the MAT header and the headers of the columns, then the stretches fill the columns in parallel.
+     */
+    private void exportMat(RecordingSession session, RandomAccessFile file) throws IOException {
+        long n = session.getRecordCount();
+        if(n * 8 + 64 > MAT_MAX_ELEMENT)
+            throw new IOException("Too many records for a MAT file: " + n);
+        FileChannel channel = file.getChannel();
+
+        //File header and start time
+        ByteBuffer header = ByteBuffer.allocate(MAT_HEADER_SIZE + 128).order(ByteOrder.LITTLE_ENDIAN);
+        String text = String.format("%-116s", "MATLAB 5.0 MAT-file, VisualizacionAcelerometro, " + session.getFile().getName());
+        header.put(text.getBytes(StandardCharsets.US_ASCII), 0, 116);
+        header.putLong(0);
+        header.putShort((short) 0x0100);
+        header.put((byte) 'I').put((byte) 'M');
+        putMatScalar(header, "start_epoch_ms", session.getStartMillis());
+        long position = write(channel, header, 0);
+
+        //Header of each column followed by room for its data
+        long[] columnOffset = new long[MAT_COLUMNS.length];
+        for(int c = 0; c < MAT_COLUMNS.length; c++){
+            long bytes = n * columnSize(c);
+            header.clear();
+            putMatArrayHeader(header, MAT_COLUMNS[c], columnSize(c) == 2 ? MX_INT16_CLASS : MX_DOUBLE_CLASS,
+                    columnSize(c) == 2 ? MI_INT16 : MI_DOUBLE, n, bytes);
+            columnOffset[c] = write(channel, header, position);
+            position = columnOffset[c] + pad(bytes);
+        }
+        file.setLength(position);
+
+        try{
+            pool.invoke(new MatTask(session, channel, columnOffset, 0, session.getBlockCount()));
+        }catch(RuntimeException e){
+            throw ioException(e);
+        }
+    }
+
+    /**
+     * Writes the buffer from the start to its position.
+     * @return Position in the file after the data.
+     */
+    private static long write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        return position;
+    }
+
+    /**
+     * @return Bytes of each value of a column, ADC readings are int16 and the rest double.
+     */
+    private static int columnSize(int column){
+        return column >= 1 && column <= 3 ? 2 : 8;
+    }
+
+    /**
+     * Writes the part of every column of the blocks from first to last-1, split in halves while longer than a task.
+     */
+    private final class MatTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RecordingSession session;
+        private final FileChannel channel;
+        private final long[] columnOffset;
+        private final int first;
+        private final int last;
+
+        private MatTask(RecordingSession session, FileChannel channel, long[] columnOffset, int first, int last){
+            this.session = session;
+            this.channel = channel;
+            this.columnOffset = columnOffset;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if(last - first > TASK_BLOCKS){
+                int middle = (first + last) >>> 1;
+                invokeAll(new MatTask(session, channel, columnOffset, first, middle),
+                        new MatTask(session, channel, columnOffset, middle, last));
+                return;
+            }
+
+            byte[] out = acquireBuffer();
+            try{
+                write(out);
+            }catch(IOException e){
+                throw new UncheckedIOException(e);
+            }finally{
+                releaseBuffer(out);
+            }
+        }
+
+        private void write(byte[] out) throws IOException {
+            SampleBatch batch = new SampleBatch(session.getMaxBlockRecords(), null);
+            long start = session.getStartNanos();
+            long firstRecord = session.getBlockStart(first);
+            int records = (int) (session.getBlockStart(last) - firstRecord);
+
+            //Columns one after the other in the buffer, in the order of the file
+            ByteBuffer buffer = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN);
+            int[] columnStart = new int[MAT_COLUMNS.length];
+            for(int c = 1; c < MAT_COLUMNS.length; c++)
+                columnStart[c] = columnStart[c - 1] + records * columnSize(c - 1);
+
+            int r = 0;
+            for(int block = first; block < last; block++){
+                int n = session.readBlock(block, batch);
+                for(int i = 0; i < n; i++, r++){
+                    buffer.putDouble(columnStart[0] + 8*r, (batch.nanoTime[i] - start) / 1e9);
+                    buffer.putShort(columnStart[1] + 2*r, batch.raw[3*i]);
+                    buffer.putShort(columnStart[2] + 2*r, batch.raw[3*i + 1]);
+                    buffer.putShort(columnStart[3] + 2*r, batch.raw[3*i + 2]);
+                    buffer.putDouble(columnStart[4] + 8*r, batch.x[i]);
+                    buffer.putDouble(columnStart[5] + 8*r, batch.y[i]);
+                    buffer.putDouble(columnStart[6] + 8*r, batch.z[i]);
+                }
+            }
+
+            for(int c = 0; c < MAT_COLUMNS.length; c++){
+                ByteBuffer column = ByteBuffer.wrap(out, columnStart[c], records * columnSize(c));
+                long position = columnOffset[c] + firstRecord * columnSize(c);
+                while(column.hasRemaining())
+                    position += channel.write(column, position);
+            }
+        }
+    }
+
+    private static void putMatScalar(ByteBuffer header, String name, double value){
+        putMatArrayHeader(header, name, MX_DOUBLE_CLASS, MI_DOUBLE, 1, 8);
+        header.putDouble(value);
+    }
+
+    /**
+     * Puts the tags of a column vector up to the tag of its data.
+     */
+    private static void putMatArrayHeader(ByteBuffer header, String name, int arrayClass, int dataType, long rows, long bytes){
+        byte[] nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+        header.putInt(MI_MATRIX).putInt((int) (16 + 16 + 8 + pad(nameBytes.length) + 8 + pad(bytes)));
+        header.putInt(MI_UINT32).putInt(8).putInt(arrayClass).putInt(0);
+        header.putInt(MI_INT32).putInt(8).putInt((int) rows).putInt(1);
+        header.putInt(MI_INT8).putInt(nameBytes.length).put(nameBytes);
+        header.position(header.position() + (int) (pad(nameBytes.length) - nameBytes.length));
+        header.putInt(dataType).putInt((int) bytes);
+    }
+
+    /**
+     * @return Size rounded up to 8 bytes, MAT elements are aligned.
+     */
+    private static long pad(long size){
+        return (size + 7) & ~7L;
+    }
+
+    private byte[] acquireBuffer(){
+        byte[] buffer = buffers.poll();
+        return buffer != null ? buffer : new byte[bufferRecords * Math.max(lineBytes, MAT_RECORD_SIZE)];
+    }
+
+    private void releaseBuffer(byte[] buffer){
+        buffers.offer(buffer);
+    }
+
+    private static ByteBuffer join(ForkJoinTask<ByteBuffer> task) throws IOException {
+        try{
+            return task.join();
+        }catch(RuntimeException e){
+            throw ioException(e);
+        }
+    }
+
+    /**
+     * Exceptions of the tasks come wrapped, once or more.
+     * @return The IOException that caused the exception.
+     * @throws RuntimeException The exception itself if it was not caused by an IOException.
+     */
+    private static IOException ioException(RuntimeException e){
+        for(Throwable cause = e; cause != null; cause = cause.getCause())
+            if(cause instanceof IOException)
+                return (IOException) cause;
+        throw e;
+    }
+
+    public void shutdown(){
+        pool.shutdown();
+    }
+
+    public int getParallelism(){
+        return pool.getParallelism();
+    }
+
+    /**
+     * Writes a long in decimal.
+     * @return Position after the last character.
+     */
+    public static int putLong(byte[] out, int p, long v){
+        if(v < 0){
+            if(v == Long.MIN_VALUE){
+                byte[] text = Long.toString(v).getBytes(StandardCharsets.US_ASCII);
+                System.arraycopy(text, 0, out, p, text.length);
+                return p + text.length;
+            }
+            out[p++] = '-';
+            v = -v;
+        }
+        int digits = 1;
+        while(digits < 19 && v >= POWERS_OF_TEN[digits])
+            digits++;
+        for(int i = p + digits - 1; i >= p; i--){
+            out[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        return p + digits;
+    }
+
+    /**
+     * Writes a fixed point number, value / 10^decimals, with all its decimals.
+     * @return Position after the last character.
+     */
+    public static int putFixed(byte[] out, int p, long value, int decimals){
+        if(decimals == 0)
+            return putLong(out, p, value);
+        if(value < 0){
+            out[p++] = '-';
+            value = -value;
+        }
+        p = putLong(out, p, value / POWERS_OF_TEN[decimals]);
+        out[p++] = '.';
+        long fraction = value % POWERS_OF_TEN[decimals];
+        for(int i = p + decimals - 1; i >= p; i--){
+            out[i] = (byte) ('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return p + decimals;
+    }
+
+    /**
+     * Writes a double rounded to a number of decimals, without allocating except for huge values.
+     * NaN and infinities are written as NaN, Inf and -Inf.
+     * @return Position after the last character.
+     */
+    public static int putDouble(byte[] out, int p, double v, int decimals){
+        if(Double.isNaN(v))
+            return putAscii(out, p, "NaN");
+        if(Double.isInfinite(v))
+            return putAscii(out, p, v > 0 ? "Inf" : "-Inf");
+
+        double scaled = v * POWERS_OF_TEN[decimals];
+        if(Math.abs(scaled) >= 9e18)
+            return putAscii(out, p, Double.toString(v));
+        return putFixed(out, p, Math.round(scaled), decimals);
+    }
+
+    private static int putAscii(byte[] out, int p, String text){
+        for(int i = 0; i < text.length(); i++)
+            out[p++] = (byte) text.charAt(i);
+        return p;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import java.nio.ByteOrder;
+
+/**
+ * Layout of the fixed record recording files (.acc). All values are little endian.
+ * <pre>
+ * Header (64 bytes)
+ *   0  long   magic "ACCREC01"
+ *   8  int    format version
+ *   12 int    record size
+ *   16 long   wall clock time of the segment start, in milliseconds since the epoch
+ *   24 long   System.nanoTime() at the segment start
+ *   32 long   number of committed records
+ *   40 int    state, STATE_OPEN while being written, STATE_CLOSED once finished
+ *   44 int    segment index within the session
+ * Record (40 bytes)
+ *   0  long   System.nanoTime() at reception
+ *   8  short  x,y,z direct ADC readings
+ *   14 short  reserved
+ *   16 double x,y,z filtered values in g units
+ * </pre>
+ * Records are written before the record count is updated, so after a crash a reader
+ * only sees complete records.
+ * @author Federico Domínguez
+ */
+public final class RecordingFormat {
+
+    public static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    //"ACCREC01" read as a little endian long
+    public static final long MAGIC = 0x3130434552434341L;
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".acc";
+
+    //Header fields
+    public static final int HEADER_SIZE = 64;
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 8;
+    public static final int RECORD_SIZE_OFFSET = 12;
+    public static final int START_MILLIS_OFFSET = 16;
+    public static final int START_NANOS_OFFSET = 24;
+    public static final int COUNT_OFFSET = 32;
+    public static final int STATE_OFFSET = 40;
+    public static final int SEGMENT_OFFSET = 44;
+
+    public static final int STATE_OPEN = 0;
+    public static final int STATE_CLOSED = 1;
+
+    //Record fields
+    public static final int RECORD_SIZE = 40;
+    public static final int TIME_OFFSET = 0;
+    public static final int RAW_OFFSET = 8;
+    public static final int FILTERED_OFFSET = 16;
+
+    private RecordingFormat(){
+    }
+
+}
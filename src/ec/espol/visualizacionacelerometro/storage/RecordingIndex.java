@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Index of a recording segment (see {@link RecordingIndexFormat}), read through a read-only memory mapping.
+ * Finds the first record at a given time and the minimum, maximum and mean of any range of records
+ * from the coarsest summaries that fit in it, so only a few pages are touched whatever the range length.
+ * When the index file is missing or stale (a segment left open by a crash, or recorded before indexes
+ * existed) it is rebuilt from the segment and saved if the segment is closed.
+ * @author Federico Domínguez
+ */
+public class RecordingIndex implements Closeable {
+
+    private static final int LEVELS = RecordingIndexFormat.LEVELS;
+    private static final int LEVEL_BITS = RecordingIndexFormat.LEVEL_BITS;
+
+    private final RecordingSegmentInterface reader;
+    private final RandomAccessFile raf;
+    private final ByteBuffer index;
+    private final int recordCount;
+
+    //File offset and number of entries of each level, level 0 is unused
+    private final int[] levelOffset;
+    private final int[] levelEntries;
+
+    private RecordingIndex(RecordingSegmentInterface reader, ByteBuffer index, RandomAccessFile raf){
+        this.reader = reader;
+        this.index = index;
+        this.raf = raf;
+        recordCount = reader.getRecordCount();
+        levelOffset = new int[LEVELS + 1];
+        levelEntries = new int[LEVELS + 1];
+        for(int level = 1; level <= LEVELS; level++){
+            levelOffset[level] = (int) index.getLong(RecordingIndexFormat.LEVEL_TABLE_OFFSET + 8 * (level - 1));
+            levelEntries[level] = (int) ((recordCount + (1L << (LEVEL_BITS * level)) - 1) >> (LEVEL_BITS * level));
+        }
+    }
+
+    /**
+     * Opens the index of a segment, building it if needed.
+     * @param reader Open segment, must stay open while the index is used.
+     * @return Index of the segment.
+     * @throws IOException The segment can't be read.
+     */
+    public static RecordingIndex open(RecordingSegmentInterface reader) throws IOException {
+        File file = indexFile(reader.getFile());
+
+        if(file.exists()){
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try{
+                ByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length()).order(RecordingFormat.ORDER);
+                if(isValid(mapped, reader.getRecordCount()))
+                    return new RecordingIndex(reader, mapped, raf);
+            }catch(IOException e){
+                System.out.println("Error reading recording index: "+e.getLocalizedMessage());
+            }
+            raf.close();
+        }
+
+        RecordingIndexBuilder builder = new RecordingIndexBuilder(reader.getRecordCount());
+        SampleBatch batch = new SampleBatch(reader.getMaxBlockRecords(), null);
+        for(int block = 0; block < reader.getBlockCount(); block++){
+            reader.readBlock(block, batch);
+            for(int i = 0; i < batch.getLength(); i++)
+                builder.add(batch.nanoTime[i], batch.x[i], batch.y[i], batch.z[i]);
+        }
+
+        //A segment still open may grow, its index is only kept in memory
+        if(reader.isClosed()){
+            try{
+                builder.write(file);
+            }catch(IOException e){
+                System.out.println("Error writing recording index: "+e.getLocalizedMessage());
+            }
+        }
+        return new RecordingIndex(reader, builder.build(), null);
+    }
+
+    /**
+     * @return true if the buffer holds an index of the expected number of records.
+     */
+    private static boolean isValid(ByteBuffer index, long records){
+        if(index.capacity() < RecordingIndexFormat.HEADER_SIZE
+                || index.getLong(RecordingIndexFormat.MAGIC_OFFSET) != RecordingIndexFormat.MAGIC
+                || index.getInt(RecordingIndexFormat.VERSION_OFFSET) != RecordingIndexFormat.VERSION
+                || index.getInt(RecordingIndexFormat.ENTRY_SIZE_OFFSET) != RecordingIndexFormat.ENTRY_SIZE
+                || index.getInt(RecordingIndexFormat.LEVELS_OFFSET) != LEVELS
+                || index.getInt(RecordingIndexFormat.LEVEL_BITS_OFFSET) != LEVEL_BITS
+                || index.getLong(RecordingIndexFormat.COUNT_OFFSET) != records)
+            return false;
+
+        //The entries of every level must be inside the file
+        for(int level = 1; level <= LEVELS; level++){
+            long entries = (records + (1L << (LEVEL_BITS * level)) - 1) >> (LEVEL_BITS * level);
+            long offset = index.getLong(RecordingIndexFormat.LEVEL_TABLE_OFFSET + 8 * (level - 1));
+            if(offset < RecordingIndexFormat.HEADER_SIZE || offset + entries * RecordingIndexFormat.ENTRY_SIZE > index.capacity())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param segment Recording segment file.
+     * @return Index file of the segment, the same name with the index extension.
+     */
+    public static File indexFile(File segment){
+        String name = segment.getName();
+        if(RecordingReader.isRecordingFile(name))
+            name = name.substring(0, name.lastIndexOf('.'));
+        return new File(segment.getAbsoluteFile().getParentFile(), name + RecordingIndexFormat.FILE_EXTENSION);
+    }
+
+    /**
+     * Finds the first record received at or after a time.
+     * @param time Time as given by System.nanoTime() in the recording session.
+     * @return Record index, the record count if all records are older.
+     */
+    public int findRecord(long time){
+        int block = lastBefore(LEVELS, 0, levelEntries[LEVELS], time);
+        if(block < 0)
+            return 0;
+
+        //The block holding the time is among the 16 children of the block found on the level above
+        for(int level = LEVELS - 1; level >= 1; level--){
+            int first = block << LEVEL_BITS;
+            block = lastBefore(level, first, Math.min(first + (1 << LEVEL_BITS), levelEntries[level]), time);
+        }
+
+        int record = block << LEVEL_BITS;
+        int end = Math.min(record + (1 << LEVEL_BITS), recordCount);
+        while(record < end && reader.getTime(record) - time < 0)
+            record++;
+        return record;
+    }
+
+    /**
+     * @return Last block between lo and hi-1 whose first record is older than the time, lo-1 if none.
+     */
+    private int lastBefore(int level, int lo, int hi, long time){
+        while(lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if(index.getLong(entry(level, mid) + RecordingIndexFormat.TIME_OFFSET) - time < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Adds the records from a to b-1 to a running summary, taking the largest aligned block at each step.
+     * @param a First record.
+     * @param b Record after the last one.
+     * @param min Minimum of each axis, updated.
+     * @param max Maximum of each axis, updated.
+     * @param sum Sum of each axis, updated.
+     * @return Number of records summarized.
+     */
+    public int summarize(int a, int b, double[] min, double[] max, double[] sum){
+        a = Math.max(a, 0);
+        b = Math.min(b, recordCount);
+        int n = Math.max(0, b - a);
+
+        while(a < b){
+            int level = LEVELS;
+            while(level > 0 && ((a & ((1 << (LEVEL_BITS * level)) - 1)) != 0 || Math.min(a + (1L << (LEVEL_BITS * level)), recordCount) > b))
+                level--;
+
+            if(level == 0){
+                for(int axis = 0; axis < AccDataParser.AXES; axis++){
+                    double v = reader.getFiltered(a, axis);
+                    min[axis] = Math.min(min[axis], v);
+                    max[axis] = Math.max(max[axis], v);
+                    sum[axis] += v;
+                }
+                a++;
+            }else{
+                int p = entry(level, a >> (LEVEL_BITS * level));
+                int count = index.getInt(p + RecordingIndexFormat.BLOCK_COUNT_OFFSET);
+                p += RecordingIndexFormat.SUMMARY_OFFSET;
+                for(int axis = 0; axis < AccDataParser.AXES; axis++, p += RecordingIndexFormat.AXIS_SIZE){
+                    min[axis] = Math.min(min[axis], index.getFloat(p + RecordingIndexFormat.MIN_OFFSET));
+                    max[axis] = Math.max(max[axis], index.getFloat(p + RecordingIndexFormat.MAX_OFFSET));
+                    sum[axis] += (double) index.getFloat(p + RecordingIndexFormat.MEAN_OFFSET) * count;
+                }
+                a += count;
+            }
+        }
+        return n;
+    }
+
+    private int entry(int level, int block){
+        return levelOffset[level] + block * RecordingIndexFormat.ENTRY_SIZE;
+    }
+
+    /**
+     * @return Time of the first record, 0 if the segment is empty.
+     */
+    public long getFirstTime(){
+        return recordCount == 0 ? 0 : reader.getTime(0);
+    }
+
+    /**
+     * @return Time of the last record, 0 if the segment is empty.
+     */
+    public long getLastTime(){
+        return recordCount == 0 ? 0 : reader.getTime(recordCount - 1);
+    }
+
+    public int getRecordCount(){
+        return recordCount;
+    }
+
+    public RecordingSegmentInterface getReader(){
+        return reader;
+    }
+
+    /**
+     * Closes the index file, the segment is left open.
+     */
+    @Override
+    public void close() throws IOException {
+        if(raf != null)
+            raf.close();
+    }
+
+}
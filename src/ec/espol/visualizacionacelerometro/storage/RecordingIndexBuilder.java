@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.AccDataParser;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Builds the index of a recording segment (see {@link RecordingIndexFormat}) one record at a time,
+ * so the recorder can keep it up to date while writing and save it when the segment is closed.
+ * Only the finest level looks at every record, each coarser level is merged from the blocks of the
+ * level below. Means are accumulated in double precision and stored rounded to float.
+ * @author Federico Domínguez
+ */
+public class RecordingIndexBuilder {
+
+    private static final int LEVELS = RecordingIndexFormat.LEVELS;
+    private static final int AXES = AccDataParser.AXES;
+
+    //Entries of each level, level 0 is unused
+    private final ByteBuffer[] entries;
+
+    //Block being accumulated on each level, blockCount holds records on level 1 and blocks of the level below on the others
+    private final long[] firstTime;
+    private final int[] blockCount;
+    private final double[][] min;
+    private final double[][] max;
+    private final double[][] sum;
+
+    private long records;
+
+    /**
+     * @param expectedRecords Records the segment is expected to hold, to size the entry buffers.
+     */
+    public RecordingIndexBuilder(long expectedRecords){
+        entries = new ByteBuffer[LEVELS + 1];
+        for(int level = 1; level <= LEVELS; level++){
+            long blocks = (expectedRecords >> (RecordingIndexFormat.LEVEL_BITS * level)) + 1;
+            entries[level] = ByteBuffer.allocate((int) Math.min(blocks * RecordingIndexFormat.ENTRY_SIZE, Integer.MAX_VALUE / 2))
+                    .order(RecordingFormat.ORDER);
+        }
+        firstTime = new long[LEVELS + 1];
+        blockCount = new int[LEVELS + 1];
+        min = new double[LEVELS + 1][AXES];
+        max = new double[LEVELS + 1][AXES];
+        sum = new double[LEVELS + 1][AXES];
+    }
+
+    /**
+     * Adds the next record of the segment.
+     * @param time Reception time of the record.
+     * @param x x-axis filtered value in g units.
+     * @param y y-axis filtered value in g units.
+     * @param z z-axis filtered value in g units.
+     */
+    public void add(long time, double x, double y, double z){
+        double[] lo = min[1], hi = max[1], s = sum[1];
+        if(blockCount[1] == 0){
+            firstTime[1] = time;
+            lo[0] = hi[0] = s[0] = x;
+            lo[1] = hi[1] = s[1] = y;
+            lo[2] = hi[2] = s[2] = z;
+        }else{
+            lo[0] = Math.min(lo[0], x);
+            lo[1] = Math.min(lo[1], y);
+            lo[2] = Math.min(lo[2], z);
+            hi[0] = Math.max(hi[0], x);
+            hi[1] = Math.max(hi[1], y);
+            hi[2] = Math.max(hi[2], z);
+            s[0] += x;
+            s[1] += y;
+            s[2] += z;
+        }
+        records++;
+        if(++blockCount[1] == 1 << RecordingIndexFormat.LEVEL_BITS)
+            completeBlock(1);
+    }
+
+    /**
+     * Stores the full block of a level and merges it into the block of the level above.
+     */
+    private void completeBlock(int level){
+        putEntry(level, firstTime[level], blockCount[level], min[level], max[level], sum[level]);
+
+        if(level < LEVELS){
+            int up = level + 1;
+            merge(up, firstTime[level], min[level], max[level], sum[level]);
+            if(++blockCount[up] == 1 << RecordingIndexFormat.LEVEL_BITS)
+                completeBlock(up);
+        }
+        blockCount[level] = 0;
+    }
+
+    /**
+     * Merges a block into the block being accumulated on a level.
+     */
+    private void merge(int level, long time, double[] lo, double[] hi, double[] s){
+        boolean first = blockCount[level] == 0;
+        if(first)
+            firstTime[level] = time;
+        for(int axis = 0; axis < AXES; axis++){
+            min[level][axis] = first ? lo[axis] : Math.min(min[level][axis], lo[axis]);
+            max[level][axis] = first ? hi[axis] : Math.max(max[level][axis], hi[axis]);
+            sum[level][axis] = first ? s[axis] : sum[level][axis] + s[axis];
+        }
+    }
+
+    private void putEntry(int level, long time, int blocks, double[] lo, double[] hi, double[] s){
+        //A full block of level n holds 2^(n*bits) records
+        putEntry(level, time, blocks << (RecordingIndexFormat.LEVEL_BITS * (level - 1)), lo, hi, s, entries);
+    }
+
+    private void putEntry(int level, long time, int count, double[] lo, double[] hi, double[] s, ByteBuffer[] target){
+        ByteBuffer b = target[level];
+        if(b.remaining() < RecordingIndexFormat.ENTRY_SIZE){
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * b.capacity(), RecordingIndexFormat.ENTRY_SIZE)).order(RecordingFormat.ORDER);
+            b.flip();
+            larger.put(b);
+            target[level] = b = larger;
+        }
+        b.putLong(time);
+        b.putInt(count);
+        for(int axis = 0; axis < AXES; axis++){
+            b.putFloat((float) lo[axis]);
+            b.putFloat((float) hi[axis]);
+            b.putFloat((float) (s[axis] / count));
+        }
+    }
+
+    /**
+     * Returns the complete index of the records added so far, including the partial last block of each level.
+     * The builder can keep receiving records afterwards.
+     * @return Buffer holding the index file, positioned at 0.
+     */
+    public ByteBuffer build(){
+        int[] levelEntries = new int[LEVELS + 1];
+        long size = RecordingIndexFormat.HEADER_SIZE;
+        for(int level = 1; level <= LEVELS; level++){
+            levelEntries[level] = (int) ((records + (1L << (RecordingIndexFormat.LEVEL_BITS * level)) - 1) >> (RecordingIndexFormat.LEVEL_BITS * level));
+            size += (long) levelEntries[level] * RecordingIndexFormat.ENTRY_SIZE;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) size).order(RecordingFormat.ORDER);
+        index.putLong(RecordingIndexFormat.MAGIC_OFFSET, RecordingIndexFormat.MAGIC);
+        index.putInt(RecordingIndexFormat.VERSION_OFFSET, RecordingIndexFormat.VERSION);
+        index.putInt(RecordingIndexFormat.ENTRY_SIZE_OFFSET, RecordingIndexFormat.ENTRY_SIZE);
+        index.putLong(RecordingIndexFormat.COUNT_OFFSET, records);
+        index.putInt(RecordingIndexFormat.LEVELS_OFFSET, LEVELS);
+        index.putInt(RecordingIndexFormat.LEVEL_BITS_OFFSET, RecordingIndexFormat.LEVEL_BITS);
+
+        //Partial last blocks: the block of each level merged with the partial block of the level below
+        ByteBuffer[] partial = new ByteBuffer[LEVELS + 1];
+        long time = 0;
+        int count = 0;
+        double[] lo = new double[AXES], hi = new double[AXES], s = new double[AXES];
+        for(int level = 1; level <= LEVELS; level++){
+            if(blockCount[level] > 0){
+                for(int axis = 0; axis < AXES; axis++){
+                    lo[axis] = count > 0 ? Math.min(lo[axis], min[level][axis]) : min[level][axis];
+                    hi[axis] = count > 0 ? Math.max(hi[axis], max[level][axis]) : max[level][axis];
+                    s[axis] = count > 0 ? s[axis] + sum[level][axis] : sum[level][axis];
+                }
+                time = firstTime[level];
+                count += blockCount[level] << (RecordingIndexFormat.LEVEL_BITS * (level - 1));
+            }
+            if(count > 0){
+                partial[level] = ByteBuffer.allocate(RecordingIndexFormat.ENTRY_SIZE).order(RecordingFormat.ORDER);
+                putEntry(level, time, count, lo, hi, s, partial);
+            }
+        }
+
+        int offset = RecordingIndexFormat.HEADER_SIZE;
+        for(int level = 1; level <= LEVELS; level++){
+            index.putLong(RecordingIndexFormat.LEVEL_TABLE_OFFSET + 8 * (level - 1), offset);
+            index.position(offset);
+            index.put(entries[level].array(), 0, entries[level].position());
+            if(partial[level] != null)
+                index.put(partial[level].array(), 0, RecordingIndexFormat.ENTRY_SIZE);
+            offset = index.position();
+        }
+        index.position(0);
+        return index;
+    }
+
+    /**
+     * Writes the index to a file. The file is replaced at once, readers never see a partial index.
+     * @param file Index file.
+     * @throws IOException The file can't be written.
+     */
+    public void write(File file) throws IOException {
+        ByteBuffer index = build();
+        File temporary = new File(file.getPath() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while(index.hasRemaining())
+                channel.write(index);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Starts the index of a new segment, keeping the buffers.
+     */
+    public void reset(){
+        for(int level = 1; level <= LEVELS; level++){
+            entries[level].clear();
+            blockCount[level] = 0;
+        }
+        records = 0;
+    }
+
+    /**
+     * @return Records added since the builder was created or reset.
+     */
+    public long getRecordCount(){
+        return records;
+    }
+
+}
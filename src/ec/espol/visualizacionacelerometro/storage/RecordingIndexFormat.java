@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+/**
+ * Layout of the index files (.idx) kept next to each recording segment, with the same name.
+ * All values are little endian.
+ * <pre>
+ * Header (64 bytes)
+ *   0  long   magic "ACCIDX01"
+ *   8  int    format version
+ *   12 int    entry size
+ *   16 long   number of records of the segment summarized
+ *   24 int    number of levels
+ *   28 int    level bits, level n summarizes blocks of 2^(n*bits) records
+ *   32 long   file offset of the entries of level 1, 2 and 3
+ * Entry (48 bytes), one per block of records
+ *   0  long   System.nanoTime() of the first record of the block
+ *   8  int    number of records of the block, only the last block of a level may be partial
+ *   12 float  x minimum, maximum and mean of the filtered values in g units
+ *   24 float  y minimum, maximum and mean
+ *   36 float  z minimum, maximum and mean
+ * </pre>
+ * Levels summarize blocks of 16, 256 and 4096 records. The first times of the blocks are also a sparse
+ * time index: a time is located with a binary search on level 3 followed by at most 16 blocks on each
+ * finer level and 16 records. An index whose record count differs from the segment header is stale.
+ * @author Federico Domínguez
+ */
+public final class RecordingIndexFormat {
+
+    //"ACCIDX01" read as a little endian long
+    public static final long MAGIC = 0x3130584449434341L;
+    public static final int VERSION = 1;
+
+    public static final String FILE_EXTENSION = ".idx";
+
+    public static final int LEVELS = 3;
+    public static final int LEVEL_BITS = 4;
+
+    //Header fields
+    public static final int HEADER_SIZE = 64;
+    public static final int MAGIC_OFFSET = 0;
+    public static final int VERSION_OFFSET = 8;
+    public static final int ENTRY_SIZE_OFFSET = 12;
+    public static final int COUNT_OFFSET = 16;
+    public static final int LEVELS_OFFSET = 24;
+    public static final int LEVEL_BITS_OFFSET = 28;
+    public static final int LEVEL_TABLE_OFFSET = 32;
+
+    //Entry fields
+    public static final int ENTRY_SIZE = 48;
+    public static final int TIME_OFFSET = 0;
+    public static final int BLOCK_COUNT_OFFSET = 8;
+    public static final int SUMMARY_OFFSET = 12;
+    public static final int MIN_OFFSET = 0;
+    public static final int MAX_OFFSET = 4;
+    public static final int MEAN_OFFSET = 8;
+    public static final int AXIS_SIZE = 12;
+
+    private RecordingIndexFormat(){
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Reads a recording segment file written by {@link SessionRecorder} through a read-only memory mapping.
+ * Only committed records are visible: the record count is taken from the header and
+ * bounded by the file size, so a segment left open by a crash can still be read.
+ * Blocks are fixed ranges of BLOCK_RECORDS records.
+ * @author Federico Domínguez
+ */
+public class RecordingReader implements RecordingSegmentInterface {
+
+    //Records per block
+    public static final int BLOCK_RECORDS = 4096;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+
+    private final int recordCount;
+    private final long startMillis;
+    private final long startNanos;
+    private final int segmentIndex;
+    private final boolean closed;
+
+    /**
+     * Opens and validates a segment file.
+     * @param file Segment file.
+     * @throws IOException The file can't be read or is not a recording.
+     */
+    public RecordingReader(File file) throws IOException {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+
+        try{
+            long size = raf.length();
+            if(size < RecordingFormat.HEADER_SIZE)
+                throw new IOException("Not a recording: " + file.getName());
+
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+            buffer.order(RecordingFormat.ORDER);
+
+            if(buffer.getLong(RecordingFormat.MAGIC_OFFSET) != RecordingFormat.MAGIC
+                    || buffer.getInt(RecordingFormat.VERSION_OFFSET) != RecordingFormat.VERSION
+                    || buffer.getInt(RecordingFormat.RECORD_SIZE_OFFSET) != RecordingFormat.RECORD_SIZE)
+                throw new IOException("Not a recording: " + file.getName());
+
+            long fit = (buffer.capacity() - RecordingFormat.HEADER_SIZE) / RecordingFormat.RECORD_SIZE;
+            recordCount = (int) Math.max(0, Math.min(buffer.getLong(RecordingFormat.COUNT_OFFSET), fit));
+            startMillis = buffer.getLong(RecordingFormat.START_MILLIS_OFFSET);
+            startNanos = buffer.getLong(RecordingFormat.START_NANOS_OFFSET);
+            segmentIndex = buffer.getInt(RecordingFormat.SEGMENT_OFFSET);
+            closed = buffer.getInt(RecordingFormat.STATE_OFFSET) == RecordingFormat.STATE_CLOSED;
+        }catch(IOException e){
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param record Record index.
+     * @return Reception time as given by System.nanoTime() in the recording session.
+     */
+    @Override
+    public long getTime(int record){
+        return buffer.getLong(position(record) + RecordingFormat.TIME_OFFSET);
+    }
+
+    /**
+     * @param record Record index.
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Direct ADC reading.
+     */
+    @Override
+    public int getRaw(int record, int axis){
+        return buffer.getShort(position(record) + RecordingFormat.RAW_OFFSET + 2*axis);
+    }
+
+    /**
+     * @param record Record index.
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Filtered value in g units.
+     */
+    @Override
+    public double getFiltered(int record, int axis){
+        return buffer.getDouble(position(record) + RecordingFormat.FILTERED_OFFSET + 8*axis);
+    }
+
+    /**
+     * Converts a record time to wall clock time.
+     * @param time Time as returned by getTime().
+     * @return Milliseconds since the epoch.
+     */
+    @Override
+    public long toEpochMillis(long time){
+        return startMillis + (time - startNanos) / 1000000;
+    }
+
+    @Override
+    public int getBlockCount(){
+        return (recordCount + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+    }
+
+    @Override
+    public int getBlockStart(int block){
+        return Math.min(block * BLOCK_RECORDS, recordCount);
+    }
+
+    @Override
+    public int getMaxBlockRecords(){
+        return BLOCK_RECORDS;
+    }
+
+    /**
+     * Copies the records of a block, only with absolute reads of the mapping.
+     */
+    @Override
+    public int readBlock(int block, SampleBatch batch){
+        int first = getBlockStart(block);
+        int n = getBlockStart(block + 1) - first;
+        for(int i = 0; i < n; i++){
+            int p = position(first + i);
+            batch.nanoTime[i] = buffer.getLong(p + RecordingFormat.TIME_OFFSET);
+            batch.raw[3*i] = buffer.getShort(p + RecordingFormat.RAW_OFFSET);
+            batch.raw[3*i + 1] = buffer.getShort(p + RecordingFormat.RAW_OFFSET + 2);
+            batch.raw[3*i + 2] = buffer.getShort(p + RecordingFormat.RAW_OFFSET + 4);
+            batch.x[i] = buffer.getDouble(p + RecordingFormat.FILTERED_OFFSET);
+            batch.y[i] = buffer.getDouble(p + RecordingFormat.FILTERED_OFFSET + 8);
+            batch.z[i] = buffer.getDouble(p + RecordingFormat.FILTERED_OFFSET + 16);
+        }
+        batch.setLength(n);
+        return n;
+    }
+
+    private int position(int record){
+        return RecordingFormat.HEADER_SIZE + record * RecordingFormat.RECORD_SIZE;
+    }
+
+    @Override
+    public int getRecordCount(){
+        return recordCount;
+    }
+
+    @Override
+    public long getStartMillis(){
+        return startMillis;
+    }
+
+    @Override
+    public long getStartNanos(){
+        return startNanos;
+    }
+
+    @Override
+    public int getSegmentIndex(){
+        return segmentIndex;
+    }
+
+    /**
+     * @return false if the segment was not closed properly (still being written, or after a crash).
+     */
+    @Override
+    public boolean isClosed(){
+        return closed;
+    }
+
+    @Override
+    public File getFile(){
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Lists a segment and the segments that follow it in the same session, in order.
+     * Segment files are named prefix-index.acc (or .accz), all segments of a session share the prefix.
+     * @param segment Any segment file of the session.
+     * @return The given segment followed by the ones with a higher index.
+     */
+    public static ArrayList<File> sessionSegments(File segment){
+        ArrayList<File> segments = new ArrayList<>();
+        String name = segment.getName();
+        int dash = name.lastIndexOf('-');
+        int first = segmentNumber(name);
+
+        File directory = segment.getAbsoluteFile().getParentFile();
+        File[] files = directory == null ? null : directory.listFiles();
+        if(dash < 0 || first < 0 || files == null){
+            segments.add(segment);
+            return segments;
+        }
+
+        String prefix = name.substring(0, dash + 1);
+        for(File f : files){
+            String n = f.getName();
+            if(n.startsWith(prefix) && segmentNumber(n) >= first && n.lastIndexOf('-') == dash)
+                segments.add(f);
+        }
+        segments.sort((a, b) -> Integer.compare(segmentNumber(a.getName()), segmentNumber(b.getName())));
+
+        return segments;
+    }
+
+    /**
+     * @param name File name.
+     * @return Segment index taken from a file name, -1 if the name doesn't follow the convention.
+     */
+    public static int segmentNumber(String name){
+        int dash = name.lastIndexOf('-');
+        if(dash < 0 || !isRecordingFile(name))
+            return -1;
+        try{
+            return Integer.parseInt(name.substring(dash + 1, name.lastIndexOf('.')));
+        }catch(NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /**
+     * @param name File name.
+     * @return true if the name has the extension of a recording, fixed record or compressed.
+     */
+    public static boolean isRecordingFile(String name){
+        return name.endsWith(RecordingFormat.FILE_EXTENSION) || name.endsWith(CompressedRecordingFormat.FILE_EXTENSION);
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Read access to a recording segment, whatever its format. Records can be read one at a time or
+ * a block at a time. Blocks are independent: any number of threads can read different blocks.
+ * @author Federico Domínguez
+ */
+public interface RecordingSegmentInterface extends Closeable {
+
+    /**
+     * Opens a segment with the reader of its format, given by the file extension.
+     * @param file Segment file.
+     * @return Reader of the segment.
+     * @throws IOException The file can't be read or is not a recording.
+     */
+    public static RecordingSegmentInterface open(File file) throws IOException {
+        if(file.getName().endsWith(CompressedRecordingFormat.FILE_EXTENSION))
+            return new CompressedRecordingReader(file);
+        return new RecordingReader(file);
+    }
+
+    public int getRecordCount();
+
+    /**
+     * @param record Record index.
+     * @return Reception time as given by System.nanoTime() in the recording session.
+     */
+    public long getTime(int record);
+
+    /**
+     * @param record Record index.
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Direct ADC reading.
+     */
+    public int getRaw(int record, int axis);
+
+    /**
+     * @param record Record index.
+     * @param axis 0, 1 or 2 for x, y or z.
+     * @return Filtered value in g units.
+     */
+    public double getFiltered(int record, int axis);
+
+    public int getBlockCount();
+
+    /**
+     * @param block Block index, getBlockCount() for the record count.
+     * @return Index of the first record of the block.
+     */
+    public int getBlockStart(int block);
+
+    /**
+     * @return Most records a block can hold, the capacity needed by readBlock().
+     */
+    public int getMaxBlockRecords();
+
+    /**
+     * Reads the records of a block. Can be called from several threads at once.
+     * @param block Block index.
+     * @param batch Receives the times, ADC readings and filtered values, its length is set to the number of records.
+     * @return Number of records.
+     * @throws IOException The block is corrupted.
+     */
+    public int readBlock(int block, SampleBatch batch) throws IOException;
+
+    /**
+     * Converts a record time to wall clock time.
+     * @param time Time as returned by getTime().
+     * @return Milliseconds since the epoch.
+     */
+    public long toEpochMillis(long time);
+
+    public long getStartMillis();
+
+    public long getStartNanos();
+
+    public int getSegmentIndex();
+
+    /**
+     * @return false if the segment was not closed properly (still being written, or after a crash).
+     */
+    public boolean isClosed();
+
+    public File getFile();
+
+}
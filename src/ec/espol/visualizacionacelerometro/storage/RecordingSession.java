@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The segments of a recorded session opened together, with their blocks numbered across the segments,
+ * for tools that split a session in stretches of blocks and process them in parallel.
+ * Blocks can be read from several threads at once.
+ * @author Federico Domínguez
+ */
+public class RecordingSession implements Closeable {
+
+    private final File file;
+    private final ArrayList<RecordingSegmentInterface> segments;
+
+    //Segment, block within the segment and first record of each block of the session
+    private final int[] blockSegment;
+    private final int[] blockIndex;
+    private final long[] blockStart;
+    private final int maxBlockRecords;
+
+    /**
+     * @param files Segment files of the session, in order (see {@link RecordingReader#sessionSegments}).
+     * @throws IOException A segment can't be read or is not a recording.
+     */
+    public RecordingSession(List<File> files) throws IOException {
+        file = files.get(0);
+        segments = new ArrayList<>();
+        int blocks = 0, max = 1;
+        try{
+            for(File f : files){
+                RecordingSegmentInterface segment = RecordingSegmentInterface.open(f);
+                segments.add(segment);
+                blocks += segment.getBlockCount();
+                max = Math.max(max, segment.getMaxBlockRecords());
+            }
+        }catch(IOException e){
+            close();
+            throw e;
+        }
+
+        blockSegment = new int[blocks];
+        blockIndex = new int[blocks];
+        blockStart = new long[blocks + 1];
+        int b = 0;
+        long records = 0;
+        for(int s = 0; s < segments.size(); s++){
+            RecordingSegmentInterface segment = segments.get(s);
+            for(int i = 0; i < segment.getBlockCount(); i++, b++){
+                blockSegment[b] = s;
+                blockIndex[b] = i;
+                blockStart[b] = records;
+                records += segment.getBlockStart(i + 1) - segment.getBlockStart(i);
+            }
+        }
+        blockStart[blocks] = records;
+        maxBlockRecords = max;
+    }
+
+    /**
+     * Reads the records of a block. Can be called from several threads at once.
+     * @param block Block index in the session.
+     * @param batch Receives the records, with a capacity of at least getMaxBlockRecords().
+     * @return Number of records.
+     * @throws IOException The block is corrupted.
+     */
+    public int readBlock(int block, SampleBatch batch) throws IOException {
+        return segments.get(blockSegment[block]).readBlock(blockIndex[block], batch);
+    }
+
+    public int getBlockCount(){
+        return blockSegment.length;
+    }
+
+    /**
+     * @param block Block index in the session, getBlockCount() for the record count.
+     * @return Index of the first record of the block in the session.
+     */
+    public long getBlockStart(int block){
+        return blockStart[block];
+    }
+
+    public int getBlockRecords(int block){
+        return (int) (blockStart[block + 1] - blockStart[block]);
+    }
+
+    public int getMaxBlockRecords(){
+        return maxBlockRecords;
+    }
+
+    public long getRecordCount(){
+        return blockStart[blockSegment.length];
+    }
+
+    /**
+     * @return Time of the start of the session as given by System.nanoTime() while recording, record times are comparable.
+     */
+    public long getStartNanos(){
+        return segments.isEmpty() ? 0 : segments.get(0).getStartNanos();
+    }
+
+    /**
+     * @return Wall clock time of the start of the session, milliseconds since the epoch.
+     */
+    public long getStartMillis(){
+        return segments.isEmpty() ? 0 : segments.get(0).getStartMillis();
+    }
+
+    public int getSegmentCount(){
+        return segments.size();
+    }
+
+    /**
+     * @return First segment file.
+     */
+    public File getFile(){
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for(RecordingSegmentInterface segment : segments)
+            segment.close();
+    }
+
+}
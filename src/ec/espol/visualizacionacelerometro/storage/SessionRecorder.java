@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2015 Federico Domínguez
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ec.espol.visualizacionacelerometro.storage;
+
+import ec.espol.visualizacionacelerometro.data.SampleBatch;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every sample of a device to disk in fixed size records (see {@link RecordingFormat}).
+ * The pipeline thread encodes each record into an in-memory single producer / single consumer
+ * byte ring and never waits. A writer thread copies the records in bulk to a memory mapped
+ * segment file and commits the record count in the header after each copy.
+ * A new segment is started when the current one reaches its size or duration limit.
+ * If the writer falls behind and the ring fills up, records are dropped and counted.
+ * Segments can be compressed instead (see {@link CompressedRecordingFormat}): the writer then
+ * gathers the records in blocks, and writes and commits each block once full or after BLOCK_WAIT_NANOS.
+ * @author Federico Domínguez
+ */
+public class SessionRecorder implements Runnable {
+
+    //Default segment limits
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_NANOS = 10L * 60 * 1000000000L;
+
+    //Default number of records queued for the writer thread
+    public static final int DEFAULT_QUEUE_RECORDS = 16384;
+
+    //Writer sleep when there is nothing to write
+    private static final long IDLE_NANOS = 2000000;
+
+    //Mapped segments are flushed to disk at least this often
+    private static final long FORCE_INTERVAL_NANOS = 5000000000L;
+
+    //Longest wait of a record in a partial compressed block
+    private static final long BLOCK_WAIT_NANOS = 1000000000L;
+
+    private final File directory;
+    private final String deviceName;
+    
+    //All segments of a session share the name prefix device-yyyyMMdd-HHmmss
+    private String sessionPrefix;
+    private final long segmentBytes;
+    private final long segmentRecords;
+    private final long segmentNanos;
+    private boolean compressed;
+
+    //Record ring, written by the pipeline thread and read by the writer thread
+    private final byte[] ring;
+    private final ByteBuffer ringView;
+    private final int ringRecords;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private long cachedHead;
+    private volatile long dropped;
+
+    //Writer state, only touched by the writer thread
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private File segmentFile;
+    private int segmentIndex;
+    private long segmentCount;
+    private long segmentStartTime;
+    private long lastForce;
+    private final RecordingIndexBuilder indexBuilder;
+    private volatile long recordsWritten;
+
+    //Compressed writer state: block being filled, encoded block and file header
+    private SampleBatch block;
+    private ByteBuffer blockBuffer;
+    private ByteBuffer header;
+    private long filePosition;
+    private long segmentStartMillis;
+    private long blockStartedAt;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    /**
+     * @param directory Directory where the segment files are created.
+     * @param deviceName Name of the recorded device, used in the file names.
+     */
+    public SessionRecorder(File directory, String deviceName){
+        this(directory, deviceName, DEFAULT_SEGMENT_BYTES, DEFAULT_SEGMENT_NANOS, DEFAULT_QUEUE_RECORDS);
+    }
+
+    /**
+     * @param directory Directory where the segment files are created.
+     * @param deviceName Name of the recorded device, used in the file names.
+     * @param segmentBytes Maximum size of a segment file.
+     * @param segmentNanos Maximum time span of a segment file.
+     * @param queueRecords Number of records that can wait for the writer thread, rounded up to a power of two.
+     */
+    public SessionRecorder(File directory, String deviceName, long segmentBytes, long segmentNanos, int queueRecords){
+        this.directory = directory;
+        this.deviceName = deviceName.replaceAll("[^A-Za-z0-9_.-]", "_");
+        //A mapped buffer can't exceed 2 GB, a compressed segment may end one block past the limit
+        long bytes = Math.min(segmentBytes, Integer.MAX_VALUE - CompressedRecordingFormat.maxBlockSize(CompressedRecordingFormat.BLOCK_RECORDS));
+        this.segmentBytes = bytes;
+        this.segmentRecords = Math.max(1, (bytes - RecordingFormat.HEADER_SIZE) / RecordingFormat.RECORD_SIZE);
+        this.segmentNanos = segmentNanos;
+
+        ringRecords = Integer.highestOneBit(Math.max(1, queueRecords - 1)) << 1;
+        ring = new byte[ringRecords * RecordingFormat.RECORD_SIZE];
+        ringView = ByteBuffer.wrap(ring).order(RecordingFormat.ORDER);
+        head = new AtomicLong();
+        tail = new AtomicLong();
+        indexBuilder = new RecordingIndexBuilder(segmentRecords);
+    }
+
+    /**
+     * Selects the format of the segments, must be called before start().
+     * @param compressed true for compressed segments, false for fixed size records.
+     */
+    public void setCompressed(boolean compressed){
+        this.compressed = compressed;
+    }
+
+    public boolean isCompressed(){
+        return compressed;
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start(){
+        directory.mkdirs();
+        if(compressed && block == null){
+            block = new SampleBatch(CompressedRecordingFormat.BLOCK_RECORDS, null);
+            blockBuffer = ByteBuffer.allocate(CompressedRecordingFormat.maxBlockSize(CompressedRecordingFormat.BLOCK_RECORDS)).order(RecordingFormat.ORDER);
+            header = ByteBuffer.allocate(CompressedRecordingFormat.HEADER_SIZE).order(RecordingFormat.ORDER);
+        }
+        sessionPrefix = deviceName + "-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        running = true;
+        writer = new Thread(this, "Recorder " + deviceName);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes the queued records, closes the current segment and stops the writer thread.
+     */
+    public void stop(){
+        running = false;
+        if(writer != null){
+            LockSupport.unpark(writer);
+            try{
+                writer.join();
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Queues a sample. Called by the pipeline thread only, never blocks.
+     * @param nanoTime Reception time as given by System.nanoTime().
+     * @param rawX x-axis ADC reading.
+     * @param rawY y-axis ADC reading.
+     * @param rawZ z-axis ADC reading.
+     * @param x x-axis filtered value in g units.
+     * @param y y-axis filtered value in g units.
+     * @param z z-axis filtered value in g units.
+     * @return false if the queue is full and the sample was dropped.
+     */
+    public boolean append(long nanoTime, int rawX, int rawY, int rawZ, double x, double y, double z){
+        long currentTail = tail.get();
+
+        if(currentTail - cachedHead >= ringRecords){
+            cachedHead = head.get();
+            if(currentTail - cachedHead >= ringRecords){
+                dropped++;
+                return false;
+            }
+        }
+
+        int p = ((int) currentTail & (ringRecords - 1)) * RecordingFormat.RECORD_SIZE;
+        ringView.putLong(p + RecordingFormat.TIME_OFFSET, nanoTime);
+        ringView.putShort(p + RecordingFormat.RAW_OFFSET, (short) rawX);
+        ringView.putShort(p + RecordingFormat.RAW_OFFSET + 2, (short) rawY);
+        ringView.putShort(p + RecordingFormat.RAW_OFFSET + 4, (short) rawZ);
+        ringView.putShort(p + RecordingFormat.RAW_OFFSET + 6, (short) 0);
+        ringView.putDouble(p + RecordingFormat.FILTERED_OFFSET, x);
+        ringView.putDouble(p + RecordingFormat.FILTERED_OFFSET + 8, y);
+        ringView.putDouble(p + RecordingFormat.FILTERED_OFFSET + 16, z);
+
+        tail.lazySet(currentTail + 1);
+        return true;
+    }
+
+    /**
+     * Queues all the samples of a batch, with their filtered values. Called by the pipeline thread only,
+     * never blocks. The free space is checked and the queue published once for the whole batch.
+     * @param batch Batch holding the ADC readings and the filtered values in g units.
+     * @return Number of samples queued, the rest were dropped.
+     */
+    public int append(SampleBatch batch){
+        long currentTail = tail.get();
+        int n = batch.getLength();
+
+        if(currentTail - cachedHead > ringRecords - n)
+            cachedHead = head.get();
+        int queued = (int) Math.min(n, ringRecords - (currentTail - cachedHead));
+        dropped += n - queued;
+
+        for(int i = 0; i < queued; i++){
+            int p = ((int) (currentTail + i) & (ringRecords - 1)) * RecordingFormat.RECORD_SIZE;
+            ringView.putLong(p + RecordingFormat.TIME_OFFSET, batch.nanoTime[i]);
+            ringView.putShort(p + RecordingFormat.RAW_OFFSET, batch.raw[3*i]);
+            ringView.putShort(p + RecordingFormat.RAW_OFFSET + 2, batch.raw[3*i + 1]);
+            ringView.putShort(p + RecordingFormat.RAW_OFFSET + 4, batch.raw[3*i + 2]);
+            ringView.putShort(p + RecordingFormat.RAW_OFFSET + 6, (short) 0);
+            ringView.putDouble(p + RecordingFormat.FILTERED_OFFSET, batch.x[i]);
+            ringView.putDouble(p + RecordingFormat.FILTERED_OFFSET + 8, batch.y[i]);
+            ringView.putDouble(p + RecordingFormat.FILTERED_OFFSET + 16, batch.z[i]);
+        }
+
+        tail.lazySet(currentTail + queued);
+        return queued;
+    }
+
+    @Override
+    public void run() {
+        try{
+            while(running || tail.get() != head.get()){
+                if((compressed ? writeBlocks() : writeQueued()) == 0)
+                    LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }catch(IOException e){
+            System.out.println("Error writing recording: "+e.getLocalizedMessage());
+        }finally{
+            closeSegment();
+        }
+    }
+
+    /**
+     * Copies the queued records to the mapped segment.
+     * @return Number of records written.
+     */
+    private int writeQueued() throws IOException {
+        long currentHead = head.get();
+        long available = tail.get() - currentHead;
+        if(available <= 0)
+            return 0;
+
+        int written = 0;
+        while(written < available){
+            int first = (int) (currentHead + written) & (ringRecords - 1);
+            long time = ringView.getLong(first * RecordingFormat.RECORD_SIZE + RecordingFormat.TIME_OFFSET);
+
+            if(segment == null || segmentCount == segmentRecords || time - segmentStartTime >= segmentNanos)
+                openSegment(time);
+
+            //Contiguous records that fit in the segment and don't wrap around the ring
+            int n = (int) Math.min(available - written, Math.min(ringRecords - first, segmentRecords - segmentCount));
+            segment.position(RecordingFormat.HEADER_SIZE + (int) (segmentCount * RecordingFormat.RECORD_SIZE));
+            segment.put(ring, first * RecordingFormat.RECORD_SIZE, n * RecordingFormat.RECORD_SIZE);
+            for(int i = first; i < first + n; i++){
+                int p = i * RecordingFormat.RECORD_SIZE;
+                indexBuilder.add(ringView.getLong(p + RecordingFormat.TIME_OFFSET),
+                        ringView.getDouble(p + RecordingFormat.FILTERED_OFFSET),
+                        ringView.getDouble(p + RecordingFormat.FILTERED_OFFSET + 8),
+                        ringView.getDouble(p + RecordingFormat.FILTERED_OFFSET + 16));
+            }
+
+            segmentCount += n;
+            written += n;
+        }
+
+        //Frees the ring slots, then commits the records
+        head.lazySet(currentHead + written);
+        segment.putLong(RecordingFormat.COUNT_OFFSET, segmentCount);
+        recordsWritten += written;
+
+        long now = System.nanoTime();
+        if(now - lastForce >= FORCE_INTERVAL_NANOS){
+            segment.force();
+            lastForce = now;
+        }
+        return written;
+    }
+
+    /**
+     * Moves the queued records to the block being filled, writing each block when full.
+     * @return Number of records taken from the queue.
+     */
+    private int writeBlocks() throws IOException {
+        long currentHead = head.get();
+        int available = (int) (tail.get() - currentHead);
+
+        for(int k = 0; k < available; k++){
+            int p = ((int) (currentHead + k) & (ringRecords - 1)) * RecordingFormat.RECORD_SIZE;
+            long time = ringView.getLong(p + RecordingFormat.TIME_OFFSET);
+
+            if(file == null || (block.getLength() == 0 && filePosition >= segmentBytes) || time - segmentStartTime >= segmentNanos)
+                openSegment(time);
+            if(block.getLength() == 0)
+                blockStartedAt = System.nanoTime();
+
+            int i = block.getLength();
+            block.add(time, ringView.getShort(p + RecordingFormat.RAW_OFFSET), ringView.getShort(p + RecordingFormat.RAW_OFFSET + 2),
+                    ringView.getShort(p + RecordingFormat.RAW_OFFSET + 4));
+            block.x[i] = ringView.getDouble(p + RecordingFormat.FILTERED_OFFSET);
+            block.y[i] = ringView.getDouble(p + RecordingFormat.FILTERED_OFFSET + 8);
+            block.z[i] = ringView.getDouble(p + RecordingFormat.FILTERED_OFFSET + 16);
+            indexBuilder.add(time, block.x[i], block.y[i], block.z[i]);
+
+            if(block.isFull())
+                writeBlock();
+        }
+        head.lazySet(currentHead + available);
+
+        long now = System.nanoTime();
+        if(block.getLength() > 0 && now - blockStartedAt >= BLOCK_WAIT_NANOS)
+            writeBlock();
+        if(file != null && now - lastForce >= FORCE_INTERVAL_NANOS){
+            channel.force(false);
+            lastForce = now;
+        }
+        return available;
+    }
+
+    /**
+     * Encodes and appends the block being filled, then commits it in the file header.
+     */
+    private void writeBlock() throws IOException {
+        int n = block.getLength();
+        if(n == 0)
+            return;
+
+        blockBuffer.clear();
+        CompressedRecordingFormat.encodeBlock(block, 0, n, blockBuffer);
+        blockBuffer.flip();
+        while(blockBuffer.hasRemaining())
+            filePosition += channel.write(blockBuffer, filePosition);
+        block.setLength(0);
+
+        segmentCount += n;
+        recordsWritten += n;
+        writeHeader(RecordingFormat.STATE_OPEN);
+    }
+
+    /**
+     * Rewrites the header of the compressed segment with the records and bytes committed so far.
+     */
+    private void writeHeader(int state) throws IOException {
+        header.putLong(CompressedRecordingFormat.COUNT_OFFSET, segmentCount);
+        header.putInt(CompressedRecordingFormat.STATE_OFFSET, state);
+        header.putLong(CompressedRecordingFormat.COMMITTED_OFFSET, filePosition);
+        header.clear();
+        while(header.hasRemaining())
+            channel.write(header, header.position());
+    }
+
+    /**
+     * Closes the current segment and opens a new one.
+     * @param startTime Time of the first record of the new segment.
+     */
+    private void openSegment(long startTime) throws IOException {
+        closeSegment();
+
+        String extension = compressed ? CompressedRecordingFormat.FILE_EXTENSION : RecordingFormat.FILE_EXTENSION;
+        segmentFile = new File(directory, sessionPrefix + "-" + segmentIndex + extension);
+        file = new RandomAccessFile(segmentFile, "rw");
+        channel = file.getChannel();
+
+        //Wall clock and monotonic time of the segment start, records use the monotonic time
+        long nanosAgo = System.nanoTime() - startTime;
+        segmentStartMillis = System.currentTimeMillis() - nanosAgo / 1000000;
+        segmentStartTime = startTime;
+        segmentCount = 0;
+        indexBuilder.reset();
+
+        if(compressed){
+            channel.truncate(0);
+            filePosition = CompressedRecordingFormat.HEADER_SIZE;
+            header.putLong(CompressedRecordingFormat.MAGIC_OFFSET, CompressedRecordingFormat.MAGIC);
+            header.putInt(CompressedRecordingFormat.VERSION_OFFSET, CompressedRecordingFormat.VERSION);
+            header.putInt(CompressedRecordingFormat.BLOCK_RECORDS_OFFSET, CompressedRecordingFormat.BLOCK_RECORDS);
+            header.putLong(CompressedRecordingFormat.START_MILLIS_OFFSET, segmentStartMillis);
+            header.putLong(CompressedRecordingFormat.START_NANOS_OFFSET, startTime);
+            header.putInt(CompressedRecordingFormat.SEGMENT_OFFSET, segmentIndex);
+            writeHeader(RecordingFormat.STATE_OPEN);
+            segmentIndex++;
+            return;
+        }
+
+        long size = RecordingFormat.HEADER_SIZE + segmentRecords * RecordingFormat.RECORD_SIZE;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segment.order(RecordingFormat.ORDER);
+
+        segment.putLong(RecordingFormat.MAGIC_OFFSET, RecordingFormat.MAGIC);
+        segment.putInt(RecordingFormat.VERSION_OFFSET, RecordingFormat.VERSION);
+        segment.putInt(RecordingFormat.RECORD_SIZE_OFFSET, RecordingFormat.RECORD_SIZE);
+        segment.putLong(RecordingFormat.START_MILLIS_OFFSET, segmentStartMillis);
+        segment.putLong(RecordingFormat.START_NANOS_OFFSET, startTime);
+        segment.putLong(RecordingFormat.COUNT_OFFSET, 0);
+        segment.putInt(RecordingFormat.STATE_OFFSET, RecordingFormat.STATE_OPEN);
+        segment.putInt(RecordingFormat.SEGMENT_OFFSET, segmentIndex);
+        segmentIndex++;
+    }
+
+    /**
+     * Marks the current segment as closed, flushes it, trims the unused space and saves its index.
+     */
+    private void closeSegment(){
+        if(file == null)
+            return;
+
+        try{
+            if(compressed){
+                writeBlock();
+                writeHeader(RecordingFormat.STATE_CLOSED);
+                channel.force(true);
+                file.close();
+            }else
+                closeMappedSegment();
+        }catch(IOException e){
+            System.out.println("Error closing recording: "+e.getLocalizedMessage());
+        }finally{
+            file = null;
+            segment = null;
+        }
+
+        //Without index the segment is indexed again when browsed
+        try{
+            indexBuilder.write(RecordingIndex.indexFile(segmentFile));
+        }catch(IOException e){
+            System.out.println("Error writing recording index: "+e.getLocalizedMessage());
+        }
+    }
+
+    private void closeMappedSegment() throws IOException {
+        segment.putLong(RecordingFormat.COUNT_OFFSET, segmentCount);
+        segment.putInt(RecordingFormat.STATE_OFFSET, RecordingFormat.STATE_CLOSED);
+        segment.force();
+        segment = null;
+
+        try{
+            channel.truncate(RecordingFormat.HEADER_SIZE + segmentCount * RecordingFormat.RECORD_SIZE);
+        }catch(IOException e){
+            //Some platforms refuse to truncate a mapped file, the header count is enough for readers
+        }
+        file.close();
+    }
+
+    /**
+     * @return Number of records written to disk.
+     */
+    public long getRecordsWritten(){
+        return recordsWritten;
+    }
+
+    /**
+     * @return Number of records dropped because the writer fell behind.
+     */
+    public long getDropped(){
+        return dropped;
+    }
+
+    /**
+     * @return Records waiting for the writer thread.
+     */
+    public int getQueued(){
+        return (int) (tail.get() - head.get());
+    }
+
+    public File getDirectory(){
+        return directory;
+    }
+
+}